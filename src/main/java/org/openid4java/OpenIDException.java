@@ -21,6 +21,7 @@ public class OpenIDException extends Exception
     public static final int VERIFY_ERROR = 0x0400;
 
     public static final int DISCOVERY_ERROR = 0x0500;
+    public static final int DISCOVERY_TIMEOUT_ERROR = 0x0501;
 
     public static final int DISCOVERY_HTML_ERROR = 0x0600;
     public static final int DISCOVERY_HTML_GET_ERROR = 0x0601;
@@ -53,6 +54,10 @@ public class OpenIDException extends Exception
     public static final int SREG_ERROR = 0x0C20;
     public static final int PAPE_ERROR = 0x0C30;
 
+    public static final int HTTP_ERROR = 0x0D00;
+    public static final int HTTP_CIRCUIT_OPEN = 0x0D01;
+    public static final int HTTP_BULKHEAD_FULL = 0x0D02;
+
     public OpenIDException(String message)
     {
         this(message, OPENID_ERROR);
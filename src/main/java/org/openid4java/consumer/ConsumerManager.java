@@ -537,6 +537,21 @@ public class ConsumerManager
         return _discovery.discover(identifier);
     }
 
+    /**
+     * Does discovery on a batch of identifiers, e.g. to warm up the
+     * discovery cache before associating with the discovered endpoints.
+     * It delegates the call to its discovery manager.
+     *
+     * @return      Map of identifier to
+     *              {@link org.openid4java.discovery.DiscoveryResult}.
+     *
+     * @see Discovery#discoverAll(java.util.Collection, int, long)
+     */
+    public Map discoverAll(Collection identifiers, int parallelism, long timeoutMillis)
+    {
+        return _discovery.discoverAll(identifiers, parallelism, timeoutMillis);
+    }
+
     /**
      * Configures a private association store for signing consumer nonces.
      * <p>
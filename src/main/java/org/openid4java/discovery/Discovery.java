@@ -6,15 +6,34 @@ package org.openid4java.discovery;
 
 import com.google.inject.Inject;
 
+import org.openid4java.OpenIDException;
 import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.html.HtmlResult;
 import org.openid4java.discovery.xri.XriResolver;
 import org.openid4java.discovery.yadis.YadisResolver;
 import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
 import org.openid4java.util.OpenID4JavaUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 /**
@@ -29,10 +48,46 @@ public class Discovery
     private static final Pattern XRI_PATTERN =
             Pattern.compile("^[!=@\\$\\+\\(]", Pattern.CASE_INSENSITIVE);
 
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory()
+    {
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "openid4java-discovery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Runs the HTML discoveries of the parallel mode and the refreshes
+     * of cached results, unless another executor is configured.
+     */
+    private static final ExecutorService DEFAULT_EXECUTOR =
+        Executors.newCachedThreadPool(THREAD_FACTORY);
+
     private HtmlResolver _htmlResolver;
     private YadisResolver _yadisResolver;
     private XriResolver _xriResolver;
 
+    /**
+     * If set, HTML discovery on URL identifiers is started along with
+     * Yadis discovery, instead of after it.
+     */
+    private boolean _parallelDiscovery = false;
+
+    private ExecutorService _executor = DEFAULT_EXECUTOR;
+
+    /**
+     * Time allowed for the discovery on an identifier, in milliseconds;
+     * zero for no limit.
+     */
+    private long _discoveryTimeout = 0;
+
+    /**
+     * Cache of the discovery results, or null if results are not cached.
+     */
+    private DiscoveryCache _discoveryCache;
+
     private static final String XRI_RESOLVER_CLASS_NAME_KEY = "discovery.xri.resolver";
 
     public static XriResolver getXriResolver()
@@ -78,6 +133,73 @@ public class Discovery
         _htmlResolver = htmlResolver;
     }
 
+    public boolean isParallelDiscovery()
+    {
+        return _parallelDiscovery;
+    }
+
+    /**
+     * If set, HTML discovery on URL identifiers runs in parallel with Yadis
+     * discovery, rather than after it when Yadis discovers no endpoints.
+     * The Yadis endpoints are still preferred; the HTML discovery is
+     * cancelled if Yadis discovery finds endpoints or fails. Both place
+     * their GET request with the same options, so that a single response
+     * is fetched for the identifier.
+     */
+    public void setParallelDiscovery(boolean parallelDiscovery)
+    {
+        _parallelDiscovery = parallelDiscovery;
+    }
+
+    public long getDiscoveryTimeout()
+    {
+        return _discoveryTimeout;
+    }
+
+    /**
+     * Sets the time allowed for the discovery on an identifier, across all
+     * its HTTP requests, in milliseconds; zero or less (the default) for no
+     * limit other than the timeouts of each request. The timeouts of each
+     * request are limited to the time left, and discovery fails with a
+     * DiscoveryException of code
+     * {@link OpenIDException#DISCOVERY_TIMEOUT_ERROR} once the time is up.
+     *
+     * @see DiscoveryDeadline
+     */
+    public void setDiscoveryTimeout(long discoveryTimeout)
+    {
+        _discoveryTimeout = discoveryTimeout;
+    }
+
+    ExecutorService getExecutor()
+    {
+        return _executor;
+    }
+
+    /**
+     * Sets the executor running the HTML discoveries in parallel mode
+     * and the background refreshes of the {@link DiscoveryRefresher};
+     * by default, a shared pool of daemon threads.
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        _executor = executor;
+    }
+
+    public DiscoveryCache getDiscoveryCache()
+    {
+        return _discoveryCache;
+    }
+
+    /**
+     * Sets the cache of the discovery results; null (the default)
+     * disables the caching of discovery results.
+     */
+    public void setDiscoveryCache(DiscoveryCache discoveryCache)
+    {
+        _discoveryCache = discoveryCache;
+    }
+
     public Identifier parseIdentifier(String identifier)
             throws DiscoveryException
     {
@@ -127,13 +249,52 @@ public class Discovery
     }
 
     public List discover(Identifier identifier) throws DiscoveryException
+    {
+        return discover(identifier, new DiscoveryDeadline(_discoveryTimeout));
+    }
+
+    /**
+     * Performs discovery on the identifier, through the discovery cache,
+     * within the deadline.
+     */
+    private List discover(Identifier identifier, DiscoveryDeadline deadline)
+        throws DiscoveryException
+    {
+        DiscoveryCache discoveryCache = _discoveryCache;
+
+        List result = discoveryCache != null ? discoveryCache.get(identifier) : null;
+        if (result != null)
+        {
+            LOGGER.info("Returning " + result.size() +
+                    " cached OpenID endpoints for: " + identifier);
+            return result;
+        }
+
+        result = discoverUncached(identifier, deadline);
+
+        if (discoveryCache != null)
+            discoveryCache.put(identifier, result);
+
+        return result;
+    }
+
+    /**
+     * Performs discovery on the identifier, without the discovery cache.
+     */
+    List discoverUncached(Identifier identifier) throws DiscoveryException
+    {
+        return discoverUncached(identifier, new DiscoveryDeadline(_discoveryTimeout));
+    }
+
+    private List discoverUncached(Identifier identifier, DiscoveryDeadline deadline)
+        throws DiscoveryException
     {
         List result;
 
         if (identifier instanceof XriIdentifier)
         {
             LOGGER.info("Starting discovery on XRI identifier: " + identifier);
-            result = _xriResolver.discover((XriIdentifier) identifier);
+            result = _xriResolver.discover((XriIdentifier) identifier, deadline);
         }
         else if (identifier instanceof UrlIdentifier)
         {
@@ -141,15 +302,21 @@ public class Discovery
 
             UrlIdentifier urlId = (UrlIdentifier) identifier;
 
-            result = _yadisResolver.discover(urlId.getIdentifier());
+            // the links of the page parsed by Yadis, if it was an HTML page
+            HtmlResult htmlResult = new HtmlResult();
+
+            if (_parallelDiscovery)
+                result = discoverParallel(urlId, deadline);
+            else
+                result = _yadisResolver.discover(urlId.getIdentifier(), htmlResult, deadline);
 
             // fall-back to HTML discovery
-            if (result == null || result.size() == 0)
+            if (! _parallelDiscovery && (result == null || result.size() == 0))
             {
                 LOGGER.info("No OpenID service endpoints discovered through Yadis;" +
                         " attempting HTML discovery...");
 
-                result = _htmlResolver.discoverHtml(urlId);
+                result = _htmlResolver.discoverHtml(urlId, htmlResult, deadline);
             }
         }
         else
@@ -163,6 +330,227 @@ public class Discovery
         return result;
     }
 
+    /**
+     * Performs discovery on a batch of identifiers, e.g. to fill the
+     * discovery cache with the results of the most used identifiers.
+     * Up to parallelism discoveries run at the same time, on threads of
+     * their own rather than on the executor, which the HTML discoveries
+     * of the parallel mode need even when it is bounded; the call returns
+     * once all are complete, or when the timeout expires.
+     * <p>
+     * Each discovery gets the time left in the batch, or the
+     * {@link #setDiscoveryTimeout(long) discovery timeout} if it is shorter,
+     * so that the discoveries still running when the batch times out fail
+     * on their own, instead of being interrupted in the middle of their
+     * requests.
+     *
+     * @param identifiers   Collection of String identifiers.
+     * @param parallelism   The maximum number of concurrent discoveries.
+     * @param timeoutMillis The time allowed for the whole batch, in
+     *                      milliseconds; zero or less for no limit.
+     * @return              Map of identifier to {@link DiscoveryResult},
+     *                      in the order of the provided identifiers.
+     *                      Identifiers not discovered before the timeout
+     *                      expired have failed results, with the error
+     *                      code {@link OpenIDException#DISCOVERY_TIMEOUT_ERROR}.
+     */
+    public Map discoverAll(Collection identifiers, int parallelism, final long timeoutMillis)
+    {
+        final long deadline = timeoutMillis > 0 ?
+            System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+
+        final Set ordered = new LinkedHashSet(identifiers);
+        final Iterator pending = new ArrayList(ordered).iterator();
+        final Map completed = new ConcurrentHashMap();
+
+        Runnable worker = new Runnable()
+        {
+            public void run()
+            {
+                while (! Thread.currentThread().isInterrupted() &&
+                    System.currentTimeMillis() < deadline)
+                {
+                    String identifier;
+                    synchronized (pending)
+                    {
+                        if (! pending.hasNext())
+                            return;
+
+                        identifier = (String) pending.next();
+                    }
+
+                    long timeout = _discoveryTimeout;
+                    if (timeoutMillis > 0)
+                    {
+                        long remaining = Math.max(1, deadline - System.currentTimeMillis());
+                        timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+                    }
+
+                    DiscoveryResult result;
+                    try
+                    {
+                        result = new DiscoveryResult(identifier, discover(
+                            parseIdentifier(identifier, true), new DiscoveryDeadline(timeout)));
+                    }
+                    catch (DiscoveryException e)
+                    {
+                        result = new DiscoveryResult(identifier, e);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        result = new DiscoveryResult(identifier, new DiscoveryException(
+                            "Error discovering: " + identifier, e));
+                    }
+
+                    completed.put(identifier, result);
+                }
+            }
+        };
+
+        LOGGER.info("Starting discovery on " + ordered.size() + " identifiers.");
+
+        int threads = Math.max(1, Math.min(parallelism, ordered.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, THREAD_FACTORY);
+
+        List workers = new ArrayList();
+        for (int i = 0; i < threads; i++)
+            workers.add(executor.submit(worker));
+
+        try
+        {
+            Iterator iter = workers.iterator();
+            while (iter.hasNext())
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+
+                ((Future) iter.next()).get(remaining, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (TimeoutException e)
+        {
+            // results completed so far are returned
+        }
+        catch (ExecutionException e)
+        {
+            LOGGER.error("Error running batch discovery.", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+        finally
+        {
+            // the discoveries still running end with their deadline
+            executor.shutdown();
+        }
+
+        Map results = new LinkedHashMap();
+
+        Iterator iter = ordered.iterator();
+        while (iter.hasNext())
+        {
+            String identifier = (String) iter.next();
+
+            DiscoveryResult result = (DiscoveryResult) completed.get(identifier);
+            if (result == null)
+                result = new DiscoveryResult(identifier, new DiscoveryException(
+                    "Discovery not completed before the batch timeout: " + identifier,
+                    OpenIDException.DISCOVERY_TIMEOUT_ERROR));
+
+            results.put(identifier, result);
+        }
+
+        LOGGER.info("Completed discovery on " + completed.size() + " of " +
+            ordered.size() + " identifiers.");
+
+        return results;
+    }
+
+    /**
+     * Performs Yadis discovery on the URL identifier, with HTML discovery
+     * running in parallel as the fall-back, both within the deadline.
+     */
+    private List discoverParallel(final UrlIdentifier urlId, final DiscoveryDeadline deadline)
+        throws DiscoveryException
+    {
+        final HtmlResolver htmlResolver = _htmlResolver;
+        final HttpRequestOptions requestOptions =
+            _yadisResolver.getGetRequestOptions(_yadisResolver.getMaxRedirects());
+
+        Future htmlResult = _executor.submit(new Callable()
+        {
+            public Object call() throws DiscoveryException
+            {
+                return htmlResolver.discoverHtml(urlId, requestOptions, deadline);
+            }
+        });
+
+        List result;
+        try
+        {
+            result = _yadisResolver.discover(urlId.getIdentifier(), null, deadline);
+        }
+        catch (DiscoveryException e)
+        {
+            htmlResult.cancel(true);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            htmlResult.cancel(true);
+            throw e;
+        }
+
+        // the Yadis endpoints win
+        if (result != null && result.size() > 0)
+        {
+            htmlResult.cancel(true);
+            return result;
+        }
+
+        LOGGER.info("No OpenID service endpoints discovered through Yadis;" +
+                " using HTML discovery...");
+
+        try
+        {
+            if (deadline.isLimited())
+                return (List) htmlResult.get(
+                    deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+
+            return (List) htmlResult.get();
+        }
+        catch (TimeoutException e)
+        {
+            htmlResult.cancel(true);
+            throw new DiscoveryException(
+                    "HTML discovery not completed in time on: " + urlId,
+                    OpenIDException.DISCOVERY_TIMEOUT_ERROR);
+        }
+        catch (InterruptedException e)
+        {
+            htmlResult.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DiscoveryException(
+                    "Interrupted during HTML discovery on: " + urlId, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof DiscoveryException)
+                throw (DiscoveryException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new DiscoveryException(
+                    "HTML discovery failed on: " + urlId, cause);
+        }
+    }
+
     /**
      * Performs discovery on the Relying Party's realm and returns a list of
      * OpenID 2.0 DiscoveryInformation entries.
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe cache of discovery results: the lists of
+ * {@link DiscoveryInformation} endpoints discovered on identifiers,
+ * keyed by the normalized identifier.
+ * <p>
+ * Set on a {@link Discovery} object, it lets repeated discoveries on the
+ * same identifier (e.g. when verifying stateless or bare authentication
+ * responses) skip the HTTP requests and the parsing of the XRDS and HTML
+ * documents. Results are kept for ttlSeconds, and the least recently used
+ * ones are evicted once maxEntries is reached; failed discoveries are
+ * not cached.
+ * <p>
+ * The number of times each result is used is tracked, so that a
+ * {@link DiscoveryRefresher} can renew the frequently used ones before
+ * they expire.
+ */
+public class DiscoveryCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveryCache.class);
+
+    private long _ttlSeconds = 60;
+
+    private int _maxEntries = 1000;
+
+    /**
+     * Discovery results, least recently used first. Identifier -> Entry.
+     * <p>
+     * In insertion order: get() and put() move the entries they use to
+     * the end, while the lookups and replacements of the refreshes leave
+     * the order of use unchanged.
+     */
+    private final LinkedHashMap _entries = new LinkedHashMap()
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > _maxEntries;
+        }
+    };
+
+    public long getTtlSeconds()
+    {
+        return _ttlSeconds;
+    }
+
+    /**
+     * Sets the time, in seconds, during which a discovery result is used.
+     * Default 60 seconds.
+     */
+    public void setTtlSeconds(long ttlSeconds)
+    {
+        _ttlSeconds = ttlSeconds;
+    }
+
+    public int getMaxEntries()
+    {
+        return _maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of discovery results kept. Default 1000.
+     */
+    public synchronized void setMaxEntries(int maxEntries)
+    {
+        _maxEntries = maxEntries;
+
+        while (_entries.size() > _maxEntries)
+        {
+            _entries.remove(_entries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Gets the endpoints discovered on the identifier.
+     *
+     * @return  A new list of the DiscoveryInformation endpoints, or null
+     *          if the identifier was not discovered, or too long ago.
+     */
+    public synchronized List get(Identifier identifier)
+    {
+        String key = identifier.getIdentifier();
+
+        Entry entry = (Entry) _entries.remove(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis())
+            return null;
+
+        _entries.put(key, entry);
+        entry.hits++;
+        return new ArrayList(entry.endpoints);
+    }
+
+    /**
+     * Stores the endpoints discovered on the identifier.
+     *
+     * @param endpoints List of DiscoveryInformation endpoints.
+     */
+    public synchronized void put(Identifier identifier, List endpoints)
+    {
+        if (_ttlSeconds <= 0 || _maxEntries <= 0)
+            return;
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Caching " + endpoints.size() + " endpoints discovered on: " + identifier);
+
+        String key = identifier.getIdentifier();
+        _entries.remove(key);
+        _entries.put(key, newEntry(identifier, endpoints));
+    }
+
+    private Entry newEntry(Identifier identifier, List endpoints)
+    {
+        return new Entry(identifier, Collections.unmodifiableList(new ArrayList(endpoints)),
+            System.currentTimeMillis() + _ttlSeconds * 1000);
+    }
+
+    /**
+     * Gets the entries to refresh: those expiring within the provided
+     * time and used at least minHits times since they were stored, and
+     * not already being refreshed. They are marked as being refreshed.
+     *
+     * @param aheadMillis   The time before expiry from which entries
+     *                      are refreshed, in milliseconds.
+     * @return              List of Entry objects.
+     */
+    synchronized List getRefreshCandidates(long aheadMillis, int minHits)
+    {
+        List candidates = new ArrayList();
+        long now = System.currentTimeMillis();
+
+        Iterator iter = _entries.values().iterator();
+        while (iter.hasNext())
+        {
+            Entry entry = (Entry) iter.next();
+            if (entry.refreshing || entry.hits < minHits ||
+                entry.expiresAt < now || entry.expiresAt - now > aheadMillis)
+                continue;
+
+            entry.refreshing = true;
+            candidates.add(entry);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Replaces a refreshed entry with the endpoints discovered again, unless
+     * it was removed or replaced in the meantime.
+     */
+    synchronized void replace(Entry entry, List endpoints)
+    {
+        String key = entry.identifier.getIdentifier();
+
+        // a key put again keeps its place in the order of use
+        if (_ttlSeconds > 0 && _entries.get(key) == entry)
+            _entries.put(key, newEntry(entry.identifier, endpoints));
+    }
+
+    /**
+     * Forgets the endpoints discovered on the identifier, e.g. after
+     * the identifier was moved to another OpenID Provider.
+     *
+     * @return  True if endpoints were cached for the identifier.
+     */
+    public synchronized boolean remove(Identifier identifier)
+    {
+        return _entries.remove(identifier.getIdentifier()) != null;
+    }
+
+    /**
+     * Forgets all the discovery results.
+     */
+    public synchronized void clear()
+    {
+        _entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    static class Entry
+    {
+        final Identifier identifier;
+        final List endpoints;
+        final long expiresAt;
+
+        /**
+         * Number of times the entry was used.
+         */
+        int hits;
+
+        boolean refreshing;
+
+        Entry(Identifier identifier, List endpoints, long expiresAt)
+        {
+            this.identifier = identifier;
+            this.endpoints = endpoints;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import org.openid4java.OpenIDException;
+import org.openid4java.util.HttpRequestOptions;
+
+/**
+ * Time budget of a discovery, shared by all the HTTP requests it places.
+ * <p>
+ * Before each request, the deadline is checked and the connect and socket
+ * timeouts of the request are limited to the time left, so that a
+ * discovery going through several requests (Yadis HEAD and GET, XRDS
+ * document, HTML page) does not take more than its budget, give or take
+ * the granularity of the timeouts: the socket timeout applies to each read.
+ * Once the time is up, discovery fails with a DiscoveryException of code
+ * {@link OpenIDException#DISCOVERY_TIMEOUT_ERROR}.
+ *
+ * @see Discovery#setDiscoveryTimeout(long)
+ */
+public final class DiscoveryDeadline
+{
+    /**
+     * Deadline of the discoveries without a time limit.
+     */
+    public static final DiscoveryDeadline NONE = new DiscoveryDeadline(0);
+
+    private final long _timeoutMillis;
+
+    /**
+     * Expiration time, in System.nanoTime() units.
+     */
+    private final long _expiresAt;
+
+    /**
+     * Starts the time budget of a discovery.
+     *
+     * @param timeoutMillis The time allowed for the discovery, in
+     *                      milliseconds; zero or less for no limit.
+     */
+    public DiscoveryDeadline(long timeoutMillis)
+    {
+        _timeoutMillis = timeoutMillis;
+        _expiresAt = timeoutMillis > 0 ?
+            System.nanoTime() + timeoutMillis * 1000000L : 0;
+    }
+
+    /**
+     * Returns true if the discovery has a time limit.
+     */
+    public boolean isLimited()
+    {
+        return _timeoutMillis > 0;
+    }
+
+    /**
+     * Gets the time left, in milliseconds; Long.MAX_VALUE if there is
+     * no time limit.
+     */
+    public long getRemainingMillis()
+    {
+        if (! isLimited())
+            return Long.MAX_VALUE;
+
+        return Math.max(0, (_expiresAt - System.nanoTime()) / 1000000L);
+    }
+
+    public boolean isExpired()
+    {
+        return getRemainingMillis() == 0;
+    }
+
+    /**
+     * Fails if the time is up.
+     *
+     * @param action    What discovery was about to do, or was doing,
+     *                  e.g. "GET on http://example.com/".
+     * @param cause     The error of the action, or null.
+     * @throws DiscoveryException with the code DISCOVERY_TIMEOUT_ERROR,
+     *          if the deadline expired.
+     */
+    public void check(String action, Throwable cause) throws DiscoveryException
+    {
+        if (isExpired())
+            throw new DiscoveryException("Discovery timed out after " +
+                _timeoutMillis + " ms before completing " + action,
+                OpenIDException.DISCOVERY_TIMEOUT_ERROR, cause);
+    }
+
+    /**
+     * Gets the options of an HTTP request, with the timeouts limited to
+     * the time left. Failures caused by the shortened timeouts say nothing
+     * about the server, so they are not stored in the negative cache; the
+     * failures already stored there still fail the request fast.
+     *
+     * @param action    The request, for the timeout error message.
+     * @throws DiscoveryException with the code DISCOVERY_TIMEOUT_ERROR,
+     *          if the deadline expired.
+     */
+    public HttpRequestOptions limit(HttpRequestOptions options, String action)
+        throws DiscoveryException
+    {
+        check(action, null);
+
+        // zero would disable the timeouts, if the time ran out since the check
+        long remaining = Math.max(1, getRemainingMillis());
+        if (! isLimited() || fits(options.getConnTimeout(), remaining) &&
+            fits(options.getSocketTimeout(), remaining))
+            return options;
+
+        int limit = (int) Math.min(remaining, Integer.MAX_VALUE);
+        return new HttpRequestOptions.Builder(options)
+            .connTimeout(fits(options.getConnTimeout(), remaining) ?
+                options.getConnTimeout() : limit)
+            .socketTimeout(fits(options.getSocketTimeout(), remaining) ?
+                options.getSocketTimeout() : limit)
+            .cacheFailures(false)
+            .build();
+    }
+
+    /**
+     * Checks if a timeout is within the time left; zero means no timeout.
+     */
+    private static boolean fits(int timeout, long remaining)
+    {
+        return timeout > 0 && timeout <= remaining;
+    }
+
+    public String toString()
+    {
+        return isLimited() ?
+            "DiscoveryDeadline[" + getRemainingMillis() + " of " + _timeoutMillis + " ms left]" :
+            "DiscoveryDeadline[none]";
+    }
+}
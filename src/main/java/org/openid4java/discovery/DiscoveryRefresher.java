@@ -0,0 +1,192 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes ahead the frequently used results of the {@link DiscoveryCache}
+ * of a {@link Discovery} object: shortly before a result expires, discovery
+ * on its identifier (user or OP identifier) is performed again in the
+ * background, and the new result replaces the cached one. Requests for
+ * popular identifiers then keep being served from the cache.
+ * <p>
+ * A result is refreshed if it was used at least minHits times since it
+ * was stored, and expires within refreshAheadSeconds. Results that fail
+ * to be discovered again, or that stop being used, expire as usual.
+ * <p>
+ * Cached results are checked every intervalMillis by a single, shared
+ * daemon thread; the discoveries run on the executor of the Discovery
+ * object. The Discovery object is only weakly referenced, and stops being
+ * refreshed once it is garbage collected.
+ */
+public class DiscoveryRefresher implements Runnable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveryRefresher.class);
+
+    private static final ScheduledExecutorService SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "openid4java-discovery-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final WeakReference _discovery;
+
+    private long _refreshAheadSeconds = 10;
+
+    private int _minHits = 2;
+
+    private long _intervalMillis = 1000;
+
+    private ScheduledFuture _future;
+
+    public DiscoveryRefresher(Discovery discovery)
+    {
+        _discovery = new WeakReference(discovery);
+    }
+
+    public long getRefreshAheadSeconds()
+    {
+        return _refreshAheadSeconds;
+    }
+
+    /**
+     * Sets the time before expiry, in seconds, from which cached results
+     * are refreshed. Default 10 seconds.
+     */
+    public void setRefreshAheadSeconds(long refreshAheadSeconds)
+    {
+        _refreshAheadSeconds = refreshAheadSeconds;
+    }
+
+    public int getMinHits()
+    {
+        return _minHits;
+    }
+
+    /**
+     * Sets the number of times a cached result must have been used since
+     * it was stored to be refreshed. Default 2.
+     */
+    public void setMinHits(int minHits)
+    {
+        _minHits = minHits;
+    }
+
+    public long getIntervalMillis()
+    {
+        return _intervalMillis;
+    }
+
+    /**
+     * Sets the time, in milliseconds, between checks of the cached results.
+     * Default 1000; changes apply the next time the refresher is started.
+     */
+    public void setIntervalMillis(long intervalMillis)
+    {
+        _intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts refreshing the results cached by the Discovery object.
+     */
+    public synchronized void start()
+    {
+        if (_future == null)
+            _future = SCHEDULER.scheduleWithFixedDelay(this,
+                _intervalMillis, _intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops refreshing the cached results; refreshes in progress complete.
+     */
+    public synchronized void stop()
+    {
+        if (_future != null)
+        {
+            _future.cancel(false);
+            _future = null;
+        }
+    }
+
+    public void run()
+    {
+        final Discovery discovery = (Discovery) _discovery.get();
+        if (discovery == null)
+        {
+            stop();
+            return;
+        }
+
+        final DiscoveryCache discoveryCache = discovery.getDiscoveryCache();
+        if (discoveryCache == null)
+            return;
+
+        try
+        {
+            List candidates = discoveryCache.getRefreshCandidates(
+                _refreshAheadSeconds * 1000, _minHits);
+
+            Iterator iter = candidates.iterator();
+            while (iter.hasNext())
+            {
+                final DiscoveryCache.Entry entry = (DiscoveryCache.Entry) iter.next();
+
+                discovery.getExecutor().execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        refresh(discovery, discoveryCache, entry);
+                    }
+                });
+            }
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOGGER.warn("Cannot refresh discovery results: executor rejected the task.");
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Error refreshing discovery results.", e);
+        }
+    }
+
+    private void refresh(Discovery discovery, DiscoveryCache discoveryCache,
+                         DiscoveryCache.Entry entry)
+    {
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Refreshing discovery results for: " + entry.identifier);
+
+        try
+        {
+            discoveryCache.replace(entry, discovery.discoverUncached(entry.identifier));
+        }
+        catch (DiscoveryException e)
+        {
+            LOGGER.warn("Cannot refresh discovery results for: " + entry.identifier +
+                "; cached results will expire.", e);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Error refreshing discovery results for: " + entry.identifier, e);
+        }
+    }
+}
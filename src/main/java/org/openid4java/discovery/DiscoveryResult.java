@@ -0,0 +1,73 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import java.util.List;
+
+/**
+ * Outcome of the discovery on one of the identifiers of a
+ * {@link Discovery#discoverAll(java.util.Collection, int, long)} call:
+ * either the discovered endpoints, or the error.
+ */
+public class DiscoveryResult
+{
+    private final String _identifier;
+
+    private final List _endpoints;
+
+    private final DiscoveryException _exception;
+
+    public DiscoveryResult(String identifier, List endpoints)
+    {
+        _identifier = identifier;
+        _endpoints = endpoints;
+        _exception = null;
+    }
+
+    public DiscoveryResult(String identifier, DiscoveryException exception)
+    {
+        _identifier = identifier;
+        _endpoints = null;
+        _exception = exception;
+    }
+
+    /**
+     * Gets the identifier, as provided to the batch discovery.
+     */
+    public String getIdentifier()
+    {
+        return _identifier;
+    }
+
+    public boolean isSuccess()
+    {
+        return _exception == null;
+    }
+
+    /**
+     * Gets the discovered endpoints.
+     *
+     * @return  A List of {@link DiscoveryInformation} objects, possibly
+     *          empty, or null if the discovery failed.
+     */
+    public List getEndpoints()
+    {
+        return _endpoints;
+    }
+
+    /**
+     * Gets the error of the discovery, or null if it succeeded.
+     */
+    public DiscoveryException getException()
+    {
+        return _exception;
+    }
+
+    public String toString()
+    {
+        return _identifier + (isSuccess() ?
+            ": " + _endpoints.size() + " endpoints" : ": " + _exception.getMessage());
+    }
+}
@@ -13,9 +13,10 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.html.HTMLHeadElement;
 import org.w3c.dom.html.HTMLLinkElement;
+import org.xml.sax.InputSource;
 
-import java.util.Arrays;
-import java.util.List;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A {@link HtmlParser} implementation using the DOMParser of CyberNeko HTML.
@@ -41,8 +42,30 @@ public class CyberNekoDOMHtmlParser implements HtmlParser
         if (DEBUG)
             LOGGER.debug("Parsing HTML data:\n" + htmlData);
 
-        HTMLDocumentImpl doc = this.parseDocument(htmlData);
+        parseHtml(this.parseDocument(
+            OpenID4JavaDOMParser.createInputSource(htmlData)), result);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.openid4java.discovery.html.HtmlParser#parseHtml(byte[],
+     *      java.lang.String, org.openid4java.discovery.html.HtmlResult)
+     */
+    public void parseHtml(byte[] htmlData, String charset, HtmlResult result)
+            throws DiscoveryException
+    {
+        if (DEBUG)
+            LOGGER.debug("Parsing HTML data:\n" + new String(htmlData,
+                charset != null ? Charset.forName(charset) : StandardCharsets.UTF_8));
+
+        parseHtml(this.parseDocument(
+            OpenID4JavaDOMParser.createInputSource(htmlData, charset)), result);
+    }
 
+    private void parseHtml(HTMLDocumentImpl doc, HtmlResult result)
+            throws DiscoveryException
+    {
         NodeList heads = doc.getElementsByTagName("head");
         if (heads.getLength() != 1)
             throw new DiscoveryException(
@@ -56,19 +79,19 @@ public class CyberNekoDOMHtmlParser implements HtmlParser
         for (int i = 0, len = linkElements.getLength(); i < len; i++)
         {
             HTMLLinkElement linkElement = (HTMLLinkElement) linkElements.item(i);
-            setResult(linkElement.getRel(), linkElement.getHref(), result);
+            result.addLink(linkElement.getRel(), linkElement.getHref());
         }
 
         if (DEBUG)
             LOGGER.debug("HTML discovery result:\n" + result);
     }
 
-    private HTMLDocumentImpl parseDocument(String htmlData) throws DiscoveryException
+    private HTMLDocumentImpl parseDocument(InputSource htmlData) throws DiscoveryException
     {
         OpenID4JavaDOMParser parser = new OpenID4JavaDOMParser();
         try
         {
-            parser.parse(OpenID4JavaDOMParser.createInputSource(htmlData));
+            parser.parse(htmlData);
         }
         catch (Exception e)
         {
@@ -85,81 +108,4 @@ public class CyberNekoDOMHtmlParser implements HtmlParser
 
         return (HTMLDocumentImpl) parser.getDocument();
     }
-
-    /**
-     * Set the result from <code>rel</code> and <code>href</code> that
-     * parsed from node <code>link</code>.
-     * 
-     * @param rel
-     *            the <code>rel</code>
-     * @param href
-     *            the <code>href</code>
-     * @param result
-     *            the result to set
-     * @throws DiscoveryException
-     *             if the value has been setted yet, that is to say, find more
-     *             than one entries with the same name(attribute value of
-     *             <code>rel</code>).
-     */
-    private void setResult(String rel, String href, HtmlResult result)
-            throws DiscoveryException
-    {
-        List relations = Arrays.asList(rel.split(" "));
-
-        // openid.server
-        if (relations.contains("openid.server"))
-        {
-            if (result.getOP1Endpoint() != null)
-                throw new DiscoveryException(
-                        "More than one openid.server entries found",
-                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
-
-            if (DEBUG)
-                LOGGER.debug("Found OpenID1 endpoint: " + href);
-
-            result.setEndpoint1(href);
-        }
-
-        // openid.delegate
-        if (relations.contains("openid.delegate"))
-        {
-            if (result.getDelegate1() != null)
-                throw new DiscoveryException(
-                        "More than one openid.delegate entries found",
-                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
-
-            if (DEBUG)
-                LOGGER.debug("Found OpenID1 delegate: " + href);
-
-            result.setDelegate1(href);
-        }
-
-        // openid2.provider
-        if (relations.contains("openid2.provider"))
-        {
-            if (result.getOP2Endpoint() != null)
-                throw new DiscoveryException(
-                        "More than one openid.server entries found",
-                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
-
-            if (DEBUG)
-                LOGGER.debug("Found OpenID2 endpoint: " + href);
-
-            result.setEndpoint2(href);
-        }
-
-        // openid2.local_id
-        if (relations.contains("openid2.local_id"))
-        {
-            if (result.getDelegate2() != null)
-                throw new DiscoveryException(
-                        "More than one openid2.local_id entries found",
-                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
-
-            if (DEBUG)
-                LOGGER.debug("Found OpenID2 localID: " + href);
-
-            result.setDelegate2(href);
-        }
-    }
 }
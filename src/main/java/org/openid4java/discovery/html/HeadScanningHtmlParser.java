@@ -0,0 +1,829 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.html;
+
+import org.cyberneko.html.HTMLElements;
+import org.cyberneko.html.HTMLEntities;
+import org.openid4java.OpenIDException;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.yadis.YadisException;
+import org.openid4java.discovery.yadis.YadisHtmlParser;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A {@link HtmlParser} and {@link YadisHtmlParser} implementation that reads
+ * the markup only up to the end of the HTML HEAD and builds no DOM.
+ * <p>
+ * The markup is split into tags, comments and text, and the LINK and META
+ * elements are kept while the HEAD is open. The HEAD ends with its end tag,
+ * or implicitly with the first text or element that cannot be in a HEAD;
+ * the scanning stops at the start of the BODY, since nothing after it can
+ * end up in the HEAD, unless there is no HEAD yet: a HEAD tag in the BODY
+ * still creates an empty one. For well-formed documents, and the usual
+ * kinds of malformed ones, the results and errors are those of
+ * {@link CyberNekoDOMHtmlParser} and
+ * {@link org.openid4java.discovery.yadis.CyberNekoDOMYadisHtmlParser}
+ * with the CyberNeko HTML version of the build (1.9.10), including the
+ * errors for a document without a HEAD, or with HEAD elements after the
+ * end tag of the HEAD; the tag balancing of CyberNeko HTML is not
+ * reproduced for the rest.
+ * </p>
+ */
+public class HeadScanningHtmlParser implements HtmlParser, YadisHtmlParser
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeadScanningHtmlParser.class);
+    private static final boolean DEBUG = LOGGER.isDebugEnabled();
+
+    /**
+     * The charset of byte data with neither a known charset nor a byte order
+     * mark, as with CyberNeko HTML.
+     */
+    private static final Charset DEFAULT_CHARSET = Charset.forName("windows-1252");
+
+    public void parseHtml(String htmlData, HtmlResult result)
+            throws DiscoveryException
+    {
+        if (DEBUG)
+            LOGGER.debug("Parsing HTML data:\n" + htmlData);
+
+        HeadScanner head;
+        try
+        {
+            head = HeadScanner.scan(htmlData);
+        }
+        catch (IOException e)
+        {
+            throw new DiscoveryException("Error parsing HTML message",
+                OpenIDException.DISCOVERY_HTML_PARSE_ERROR, e);
+        }
+
+        parseHtml(head, result);
+    }
+
+    public void parseHtml(byte[] htmlData, String charset, HtmlResult result)
+            throws DiscoveryException
+    {
+        if (DEBUG)
+            LOGGER.debug("Parsing HTML data:\n" + new String(htmlData,
+                charset != null ? Charset.forName(charset) : StandardCharsets.UTF_8));
+
+        HeadScanner head;
+        try
+        {
+            head = HeadScanner.scan(htmlData, charset);
+        }
+        catch (IOException e)
+        {
+            throw new DiscoveryException("Error parsing HTML message",
+                OpenIDException.DISCOVERY_HTML_PARSE_ERROR, e);
+        }
+
+        parseHtml(head, result);
+    }
+
+    private void parseHtml(HeadScanner head, HtmlResult result)
+            throws DiscoveryException
+    {
+        if (head.getHeadError() != null)
+            throw new DiscoveryException(head.getHeadError(),
+                OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
+
+        for (Iterator iter = head.getLinks().iterator(); iter.hasNext(); )
+        {
+            String[] link = (String[]) iter.next();
+            result.addLink(link[0], link[1]);
+        }
+
+        if (DEBUG)
+            LOGGER.debug("HTML discovery result:\n" + result);
+    }
+
+    public String getHtmlMeta(String input) throws YadisException
+    {
+        try
+        {
+            return getHtmlMeta(HeadScanner.scan(input));
+        }
+        catch (IOException e)
+        {
+            throw new YadisException("Error parsing HTML message",
+                    OpenIDException.YADIS_HTMLMETA_INVALID_RESPONSE, e);
+        }
+    }
+
+    public String getHtmlMeta(byte[] input, String charset) throws YadisException
+    {
+        try
+        {
+            return getHtmlMeta(HeadScanner.scan(input, charset));
+        }
+        catch (IOException e)
+        {
+            throw new YadisException("Error parsing HTML message",
+                    OpenIDException.YADIS_HTMLMETA_INVALID_RESPONSE, e);
+        }
+    }
+
+    public String getHtmlMeta(byte[] input, String charset, HtmlResult result)
+        throws YadisException
+    {
+        HeadScanner head;
+        try
+        {
+            head = HeadScanner.scan(input, charset);
+        }
+        catch (IOException e)
+        {
+            throw new YadisException("Error parsing HTML message",
+                    OpenIDException.YADIS_HTMLMETA_INVALID_RESPONSE, e);
+        }
+
+        String xrdsLocation = getHtmlMeta(head);
+
+        try
+        {
+            parseHtml(head, result);
+        }
+        catch (DiscoveryException e)
+        {
+            result.setFailureCause(e);
+        }
+        result.setParsed(true);
+
+        return xrdsLocation;
+    }
+
+    private String getHtmlMeta(HeadScanner head) throws YadisException
+    {
+        if (head.getHeadError() != null)
+            throw new YadisException(head.getHeadError(),
+                OpenIDException.YADIS_HTMLMETA_INVALID_RESPONSE);
+
+        String xrdsLocation = null;
+        for (Iterator iter = head.getMetas().iterator(); iter.hasNext(); )
+        {
+            String[] meta = (String[]) iter.next();
+            if (YadisResolver.YADIS_XRDS_LOCATION.equalsIgnoreCase(meta[0]))
+            {
+                if (xrdsLocation != null)
+                    throw new YadisException(
+                        "More than one "
+                            + YadisResolver.YADIS_XRDS_LOCATION
+                            + "META tags found in HEAD: "
+                            + xrdsLocation + ", " + meta[1],
+                        OpenIDException.YADIS_HTMLMETA_INVALID_RESPONSE);
+
+                xrdsLocation = meta[1];
+                if (DEBUG)
+                    LOGGER.debug("Found " + YadisResolver.YADIS_XRDS_LOCATION
+                        + " META tags.");
+            }
+        }
+        return xrdsLocation;
+    }
+
+    /**
+     * Scans a document up to the end of its HEAD, keeping the values of the
+     * LINK and META elements found in it.
+     */
+    private static final class HeadScanner
+    {
+        /**
+         * The elements that CyberNeko HTML puts in the HEAD; any other
+         * known element starts the BODY.
+         */
+        private static final Set HEAD_ELEMENTS = new HashSet(Arrays.asList(new String[] {
+            "BASE", "BASEFONT", "BGSOUND", "ISINDEX", "LINK", "META",
+            "SCRIPT", "SOUND", "STYLE", "TITLE"}));
+
+        /**
+         * The HEAD elements whose content is text up to their end tag.
+         */
+        private static final Set RAW_TEXT_ELEMENTS = new HashSet(Arrays.asList(new String[] {
+            "SCRIPT", "STYLE", "TITLE"}));
+
+        /**
+         * The BODY elements whose content is text up to their end tag, or
+         * up to the end of the input for PLAINTEXT.
+         */
+        private static final Set BODY_RAW_TEXT_ELEMENTS = new HashSet(Arrays.asList(new String[] {
+            "PLAINTEXT", "TEXTAREA", "XMP"}));
+
+        private static final int BEFORE_HEAD = 0;
+        private static final int IN_HEAD = 1;
+        private static final int AFTER_HEAD = 2;
+        private static final int IN_BODY = 3;
+
+        private final Reader _reader;
+
+        private char[] _chars = new char[2048];
+
+        private int _length;
+
+        private int _offset;
+
+        private boolean _endReached;
+
+        private int _state = BEFORE_HEAD;
+
+        /**
+         * Set by the start of the HEAD, implied or not; CyberNeko HTML still
+         * starts an empty HEAD for a HEAD tag in the BODY if there is none.
+         */
+        private boolean _headFound;
+
+        /**
+         * Set by a HEAD element after the end tag of the HEAD, for which
+         * CyberNeko HTML starts a second HEAD that it ignores.
+         */
+        private boolean _ignoredHead;
+
+        private final List _links = new ArrayList();
+
+        private final List _metas = new ArrayList();
+
+        /**
+         * The charset the bytes are read in.
+         */
+        private final Charset _charset;
+
+        /**
+         * The number of charset declarations already applied, to skip when
+         * the document is scanned again.
+         */
+        private final int _appliedDeclarations;
+
+        private int _declarations;
+
+        /**
+         * The charset declared by the document, to scan it again with.
+         */
+        private Charset _declaredCharset;
+
+        private HeadScanner(Reader reader, Charset charset, int appliedDeclarations)
+        {
+            _reader = reader;
+            _charset = charset;
+            _appliedDeclarations = appliedDeclarations;
+        }
+
+        /**
+         * Scans a string as its UTF-8 bytes with no known charset, the way
+         * {@link org.openid4java.util.OpenID4JavaDOMParser#createInputSource(String)}
+         * hands it to CyberNeko HTML.
+         */
+        static HeadScanner scan(String text) throws IOException
+        {
+            return scan(text.getBytes(StandardCharsets.UTF_8), null);
+        }
+
+        /**
+         * Scans bytes in the given charset or, if it is null, in the charset
+         * of their byte order mark or the default one. The document is
+         * scanned again from the start when it declares another charset.
+         */
+        static HeadScanner scan(byte[] bytes, String charset) throws IOException
+        {
+            int offset = 0;
+            Charset current = charset != null ? forName(charset) : null;
+            if (current == null && startsWith(bytes, new int[] {0xEF, 0xBB, 0xBF}))
+            {
+                current = StandardCharsets.UTF_8;
+                offset = 3;
+            }
+            else if (current == null && startsWith(bytes, new int[] {0xFE, 0xFF}))
+            {
+                current = StandardCharsets.UTF_16BE;
+                offset = 2;
+            }
+            else if (current == null && startsWith(bytes, new int[] {0xFF, 0xFE}))
+            {
+                current = StandardCharsets.UTF_16LE;
+                offset = 2;
+            }
+            else if (current == null)
+            {
+                current = DEFAULT_CHARSET;
+            }
+
+            HeadScanner scanner = null;
+            int applied = 0;
+            while (scanner == null || scanner._declaredCharset != null)
+            {
+                if (scanner != null)
+                {
+                    current = scanner._declaredCharset;
+                    applied = scanner._declarations;
+                }
+
+                scanner = new HeadScanner(new InputStreamReader(new ByteArrayInputStream(
+                    bytes, offset, bytes.length - offset), current), current, applied);
+                scanner.scan();
+            }
+            return scanner;
+        }
+
+        private static boolean startsWith(byte[] bytes, int[] prefix)
+        {
+            if (bytes.length < prefix.length)
+                return false;
+
+            for (int i = 0; i < prefix.length; i++)
+            {
+                if ((bytes[i] & 0xFF) != prefix[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private static Charset forName(String charset)
+        {
+            try
+            {
+                return Charset.forName(charset.trim());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+
+        List getLinks()
+        {
+            return _links;
+        }
+
+        List getMetas()
+        {
+            return _metas;
+        }
+
+        /**
+         * Gets the error the DOM-based parsers report about the HEAD of the
+         * document, without the DOM nodes they give: when CyberNeko HTML
+         * ignores a second HEAD, or puts no HEAD in the document.
+         *
+         * @return The error message, or null if the HEAD is valid.
+         */
+        String getHeadError()
+        {
+            if (_ignoredHead)
+                return "HTML response must have exactly one HEAD element.";
+            if (! _headFound)
+                return "HTML response must have exactly one HEAD element, found 0";
+            return null;
+        }
+
+        private void scan() throws IOException
+        {
+            while ((_state != IN_BODY || ! _headFound) && ! _ignoredHead
+                && _declaredCharset == null)
+            {
+                int c = read();
+                if (c == -1)
+                    break;
+
+                if (c == '<')
+                    scanMarkup();
+                else if (! isSpace(c))
+                    text();
+            }
+        }
+
+        private void scanMarkup() throws IOException
+        {
+            if (skip("!--", false))
+            {
+                skipPast("-->");
+            }
+            else if (skip("![CDATA[", false))
+            {
+                skipPast("]]>");
+            }
+            else if (skip("!", false))
+            {
+                // the internal subset of a DOCTYPE can contain '>'
+                int end = indexOf(">");
+                for (int i = 0; i < end; i++)
+                {
+                    if (peek(i) == '[')
+                    {
+                        skipPast("]");
+                        break;
+                    }
+                }
+                skipPast(">");
+            }
+            else if (skip("?", false))
+            {
+                if (skip("xml", true) && isSpace(peek(0)))
+                {
+                    List attributes = scanAttributes();
+                    if (attributes != null && _state != IN_BODY)
+                        declareCharset(getValue(attributes, "encoding"));
+                }
+                else
+                {
+                    skipPast(">");
+                }
+            }
+            else if (peek(0) == '/' && Character.isLetter((char) peek(1)))
+            {
+                // only the end tag of the HEAD matters, the others are ignored
+                read();
+                if (scanName().equals("HEAD") && _state == IN_HEAD)
+                    _state = AFTER_HEAD;
+                skipPast(">");
+            }
+            else if (peek(0) != -1 && Character.isLetter((char) peek(0)))
+            {
+                String name = scanName();
+                List attributes = scanAttributes();
+                if (attributes != null)
+                    startElement(name, attributes);
+            }
+            else
+            {
+                // a '<' that starts no markup is text
+                text();
+            }
+        }
+
+        private void text()
+        {
+            _state = IN_BODY;
+        }
+
+        private void startElement(String name, List attributes) throws IOException
+        {
+            if (_state == IN_BODY)
+            {
+                // only looking for a HEAD tag, in a document without a HEAD
+                if (name.equals("HEAD"))
+                    _headFound = true;
+                else if (RAW_TEXT_ELEMENTS.contains(name) || BODY_RAW_TEXT_ELEMENTS.contains(name))
+                    skipRawText(name);
+                return;
+            }
+
+            if (name.equals("HTML"))
+                return;
+
+            if (! name.equals("HEAD") && ! isHeadElement(name))
+            {
+                _state = IN_BODY;
+                if (BODY_RAW_TEXT_ELEMENTS.contains(name))
+                    skipRawText(name);
+                return;
+            }
+
+            if (_state == AFTER_HEAD)
+            {
+                _ignoredHead = true;
+                return;
+            }
+
+            _state = IN_HEAD;
+            _headFound = true;
+            if (name.equals("HEAD"))
+                return;
+
+            if (name.equals("LINK"))
+            {
+                _links.add(new String[] {getValue(attributes, "rel", ""),
+                    getValue(attributes, "href", "")});
+            }
+            else if (name.equals("META"))
+            {
+                String httpEquiv = getValue(attributes, "http-equiv", "");
+                String content = getValue(attributes, "content", "");
+                _metas.add(new String[] {httpEquiv, content});
+
+                int index = content.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+                if (httpEquiv.equalsIgnoreCase("Content-Type") && index != -1)
+                {
+                    int end = content.indexOf(';', index);
+                    declareCharset(content.substring(index + 8,
+                        end != -1 ? end : content.length()));
+                }
+            }
+            else if (RAW_TEXT_ELEMENTS.contains(name))
+            {
+                skipRawText(name);
+            }
+        }
+
+        /**
+         * Has the document scanned again in the charset it declares, unless
+         * the declaration was applied already, the charset is unknown or
+         * the markup could read differently in it.
+         */
+        private void declareCharset(String name)
+        {
+            if (name == null || ++_declarations <= _appliedDeclarations)
+                return;
+
+            Charset charset = forName(name);
+            if (charset != null && ! charset.equals(_charset) && isCompatible(charset))
+                _declaredCharset = charset;
+        }
+
+        /**
+         * Tells whether the ASCII markup is the same with the given charset
+         * and with the current one.
+         */
+        private boolean isCompatible(Charset charset)
+        {
+            String reference = "<meta http-equiv=\"Content-Type\" content=\"charset=\">";
+            try
+            {
+                return reference.equals(new String(reference.getBytes(charset), _charset))
+                    && reference.equals(new String(reference.getBytes(_charset), charset));
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // the charset can only decode
+                return false;
+            }
+        }
+
+        private String scanName() throws IOException
+        {
+            StringBuffer name = new StringBuffer();
+            while (isNameChar(peek(0)))
+                name.append((char) read());
+            return name.toString().toUpperCase(Locale.ENGLISH);
+        }
+
+        /**
+         * Scans the attributes up to the end of the tag.
+         *
+         * @return The name and value pairs of the attributes, with the names
+         *          in lower case; null if the document ends in the tag.
+         */
+        private List scanAttributes() throws IOException
+        {
+            List attributes = new ArrayList();
+            while (true)
+            {
+                while (isSpace(peek(0)) || peek(0) == '/' || peek(0) == '?')
+                    read();
+
+                int c = read();
+                if (c == -1)
+                    return null;
+                if (c == '>')
+                    return attributes;
+
+                StringBuffer name = new StringBuffer();
+                name.append((char) c);
+                while (peek(0) != -1 && ! isSpace(peek(0)) && "=>/".indexOf(peek(0)) == -1)
+                    name.append((char) read());
+
+                while (isSpace(peek(0)))
+                    read();
+
+                String value = "";
+                if (skip("=", false))
+                {
+                    while (isSpace(peek(0)))
+                        read();
+
+                    value = scanValue();
+                    if (value == null)
+                        return null;
+                }
+                attributes.add(new String[] {
+                    name.toString().toLowerCase(Locale.ENGLISH), value});
+            }
+        }
+
+        private String scanValue() throws IOException
+        {
+            int quote = peek(0) == '"' || peek(0) == '\'' ? read() : -1;
+            StringBuffer value = new StringBuffer();
+            while (true)
+            {
+                int c = peek(0);
+                if (c == -1)
+                    return quote == -1 ? value.toString() : null;
+                if (quote == -1 ? isSpace(c) || c == '>' : c == quote)
+                    break;
+
+                read();
+                if (c == '&')
+                    scanEntity(value);
+                else
+                    value.append((char) c);
+            }
+            if (quote != -1)
+                read();
+            return value.toString();
+        }
+
+        /**
+         * Appends the character of a numeric or named character reference,
+         * or the reference as it is if it is not one.
+         */
+        private void scanEntity(StringBuffer value) throws IOException
+        {
+            StringBuffer name = new StringBuffer();
+            while (isNameChar(peek(0)) || peek(0) == '#')
+                name.append((char) read());
+
+            int c = -1;
+            if (skip(";", false))
+            {
+                String reference = name.toString();
+                try
+                {
+                    if (reference.startsWith("#x") || reference.startsWith("#X"))
+                        c = Integer.parseInt(reference.substring(2), 16);
+                    else if (reference.startsWith("#"))
+                        c = Integer.parseInt(reference.substring(1));
+                    else
+                        c = HTMLEntities.get(reference);
+                }
+                catch (NumberFormatException e)
+                {
+                    c = -1;
+                }
+
+                if (c <= 0 || ! Character.isValidCodePoint(c))
+                    name.append(';');
+            }
+
+            if (c > 0 && Character.isValidCodePoint(c))
+                value.appendCodePoint(c);
+            else
+                value.append('&').append(name);
+        }
+
+        /**
+         * Skips the content of an element up to its end tag, or to the end
+         * of the input.
+         */
+        private void skipRawText(String name) throws IOException
+        {
+            while (skipPast("<"))
+            {
+                // like CyberNeko HTML, a script comment hides end tags if
+                // it is closed, and the character after a '<' is skipped
+                if (name.equals("SCRIPT") && indexOf("!--") == 0 && indexOf("-->") != -1)
+                    skipPast("-->");
+                else if (! skip("/", false))
+                    read();
+                else if (skip(name, true) && ! isNameChar(peek(0)))
+                    break;
+            }
+            skipPast(">");
+        }
+
+        private static String getValue(List attributes, String name)
+        {
+            return getValue(attributes, name, null);
+        }
+
+        /**
+         * Gets the value of the last attribute with the given name, like
+         * the DOM does.
+         */
+        private static String getValue(List attributes, String name, String defaultValue)
+        {
+            for (int i = attributes.size() - 1; i >= 0; i--)
+            {
+                String[] attribute = (String[]) attributes.get(i);
+                if (attribute[0].equals(name))
+                    return attribute[1];
+            }
+            return defaultValue;
+        }
+
+        /**
+         * Tells whether CyberNeko HTML puts an element in the HEAD, as it does
+         * for the elements it does not know.
+         */
+        private static boolean isHeadElement(String name)
+        {
+            return HEAD_ELEMENTS.contains(name)
+                || HTMLElements.getElement(name).code == HTMLElements.UNKNOWN;
+        }
+
+        private static boolean isSpace(int c)
+        {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+        }
+
+        private static boolean isNameChar(int c)
+        {
+            return c != -1 && (Character.isLetterOrDigit((char) c)
+                || c == '-' || c == '.' || c == ':' || c == '_');
+        }
+
+        // --- reading
+
+        private int peek(int ahead) throws IOException
+        {
+            while (_offset + ahead >= _length && ! _endReached)
+                fill();
+            return _offset + ahead < _length ? _chars[_offset + ahead] : -1;
+        }
+
+        private int read() throws IOException
+        {
+            int c = peek(0);
+            if (c != -1)
+                _offset++;
+            return c;
+        }
+
+        /**
+         * Skips a string if the input continues with it.
+         */
+        private boolean skip(String s, boolean ignoreCase) throws IOException
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                int c = peek(i);
+                if (c != s.charAt(i) && ! (ignoreCase && c != -1
+                    && Character.toUpperCase((char) c) == Character.toUpperCase(s.charAt(i))))
+                    return false;
+            }
+            _offset += s.length();
+            return true;
+        }
+
+        /**
+         * Skips the input up to the end of the given string, or to the end
+         * of the input.
+         *
+         * @return True if the string was found.
+         */
+        private boolean skipPast(String s) throws IOException
+        {
+            int index = indexOf(s);
+            _offset = index != -1 ? _offset + index + s.length() : _length;
+            return index != -1;
+        }
+
+        /**
+         * Finds a string in the input left.
+         *
+         * @return The number of characters before the string, or -1 if the
+         *          input does not contain it.
+         */
+        private int indexOf(String s) throws IOException
+        {
+            for (int i = 0; peek(i) != -1; i++)
+            {
+                int j = 0;
+                while (j < s.length() && peek(i + j) == s.charAt(j))
+                    j++;
+                if (j == s.length())
+                    return i;
+            }
+            return -1;
+        }
+
+        private void fill() throws IOException
+        {
+            // the characters before the offset are not read again
+            if (_offset > 0)
+            {
+                System.arraycopy(_chars, _offset, _chars, 0, _length - _offset);
+                _length -= _offset;
+                _offset = 0;
+            }
+            if (_length == _chars.length)
+            {
+                char[] chars = new char[_chars.length * 2];
+                System.arraycopy(_chars, 0, chars, 0, _length);
+                _chars = chars;
+            }
+
+            int count = _reader.read(_chars, _length, _chars.length - _length);
+            if (count == -1)
+                _endReached = true;
+            else
+                _length += count;
+        }
+    }
+}
@@ -6,6 +6,9 @@ package org.openid4java.discovery.html;
 
 import org.openid4java.discovery.DiscoveryException;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Html parser.
  * 
@@ -26,4 +29,24 @@ public interface HtmlParser
      * @throws DiscoveryException
      */
     void parseHtml(String htmlData, HtmlResult result) throws DiscoveryException;
+
+    /**
+     * Parses the HTML data and stores in the result the discovered openid
+     * information.
+     *
+     * @param htmlData
+     *            HTML data bytes obtained from the URL identifier.
+     * @param charset
+     *            The charset of the HTML data, or null if not known.
+     * @param result
+     *            The HTML result.
+     * @throws DiscoveryException
+     * @see #parseHtml(String, HtmlResult)
+     */
+    default void parseHtml(byte[] htmlData, String charset, HtmlResult result)
+            throws DiscoveryException
+    {
+        parseHtml(new String(htmlData, charset != null ?
+            Charset.forName(charset) : StandardCharsets.UTF_8), result);
+    }
 }
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 
+import org.openid4java.discovery.DiscoveryDeadline;
 import org.openid4java.discovery.UrlIdentifier;
 import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.DiscoveryInformation;
@@ -18,6 +19,7 @@ import org.openid4java.util.HttpFetcher;
 import org.openid4java.util.HttpFetcherFactory;
 import org.openid4java.util.HttpResponse;
 import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpRequestRejectedException;
 import org.openid4java.util.OpenID4JavaUtils;
 import org.openid4java.OpenIDException;
 import org.slf4j.Logger;
@@ -99,12 +101,107 @@ public class HtmlResolver
      */
     public List discoverHtml(UrlIdentifier identifier, HttpFetcher httpFetcher)
         throws DiscoveryException
+    {
+        return discoverHtml(identifier, httpFetcher, httpFetcher.getDefaultRequestOptions(),
+            DiscoveryDeadline.NONE);
+    }
+
+    /**
+     * Performs HTML discovery on the supplied URL identifier, placing the
+     * GET request with the provided options instead of the default ones,
+     * e.g. to share the response of the Yadis GET request.
+     *
+     * @param identifier        The URL identifier.
+     * @param requestOptions    The options of the GET request.
+     * @return                  List of DiscoveryInformation entries discovered
+     *                          obtained from the URL Identifier.
+     * @see org.openid4java.discovery.yadis.YadisResolver#getGetRequestOptions(int)
+     */
+    public List discoverHtml(UrlIdentifier identifier, HttpRequestOptions requestOptions)
+        throws DiscoveryException
+    {
+        return discoverHtml(identifier, requestOptions, DiscoveryDeadline.NONE);
+    }
+
+    /**
+     * Performs HTML discovery on the supplied URL identifier, placing the
+     * GET request with the provided options, with the timeouts limited to
+     * the time left to the deadline.
+     *
+     * @param identifier        The URL identifier.
+     * @param requestOptions    The options of the GET request.
+     * @param deadline          The deadline of the discovery.
+     * @return                  List of DiscoveryInformation entries discovered
+     *                          obtained from the URL Identifier.
+     * @throws DiscoveryException with the code DISCOVERY_TIMEOUT_ERROR
+     *          if the deadline expires.
+     */
+    public List discoverHtml(UrlIdentifier identifier, HttpRequestOptions requestOptions,
+                             DiscoveryDeadline deadline)
+        throws DiscoveryException
+    {
+        return discoverHtml(identifier, _httpFetcher, requestOptions, deadline);
+    }
+
+    /**
+     * Performs HTML discovery on the supplied URL identifier, from the links
+     * parsed during Yadis discovery if the identifier's page was retrieved
+     * and parsed then, without retrieving and parsing it again.
+     *
+     * @param identifier        The URL identifier.
+     * @param htmlResult        The OpenID information parsed from the page.
+     * @return                  List of DiscoveryInformation entries discovered
+     *                          obtained from the URL Identifier.
+     * @see org.openid4java.discovery.yadis.YadisResolver#discover(String, HtmlResult)
+     */
+    public List discoverHtml(UrlIdentifier identifier, HtmlResult htmlResult)
+        throws DiscoveryException
+    {
+        return discoverHtml(identifier, htmlResult, DiscoveryDeadline.NONE);
+    }
+
+    /**
+     * Performs HTML discovery on the supplied URL identifier, from the links
+     * parsed during Yadis discovery if available; otherwise the page is
+     * retrieved within the time left to the deadline.
+     *
+     * @param identifier        The URL identifier.
+     * @param htmlResult        The OpenID information parsed from the page.
+     * @param deadline          The deadline of the discovery.
+     * @return                  List of DiscoveryInformation entries discovered
+     *                          obtained from the URL Identifier.
+     * @throws DiscoveryException with the code DISCOVERY_TIMEOUT_ERROR
+     *          if the deadline expires.
+     */
+    public List discoverHtml(UrlIdentifier identifier, HtmlResult htmlResult,
+                             DiscoveryDeadline deadline)
+        throws DiscoveryException
+    {
+        if (! htmlResult.isParsed())
+            return discoverHtml(identifier, _httpFetcher,
+                _httpFetcher.getDefaultRequestOptions(), deadline);
+
+        if (htmlResult.getFailureCause() != null)
+            throw htmlResult.getFailureCause();
+
+        LOGGER.info("HTML discovery completed from the Yadis response on: " + identifier);
+
+        return extractDiscoveryInformation(htmlResult);
+    }
+
+    private List discoverHtml(UrlIdentifier identifier, HttpFetcher httpFetcher,
+                              HttpRequestOptions defaultOptions, DiscoveryDeadline deadline)
+        throws DiscoveryException
     {
         // initialize the results of the HTML discovery
         HtmlResult result = new HtmlResult();
 
-        HttpRequestOptions requestOptions = httpFetcher.getRequestOptions();
-        requestOptions.setContentType("text/html");
+        HttpRequestOptions requestOptions = deadline.limit(
+            new HttpRequestOptions.Builder(defaultOptions)
+                .contentType("text/html")
+                .htmlHeadOnly(true)
+                .build(),
+            "GET on " + identifier);
 
         try
         {
@@ -118,17 +215,19 @@ public class HtmlResolver
 
             result.setClaimed( new UrlIdentifier(resp.getFinalUri()) );
 
-            if (resp.getBody() == null)
+            if (resp.getBodyBytes() == null)
                 throw new DiscoveryException(
                         "No HTML data read from " + identifier.toString(),
                 OpenIDException.DISCOVERY_HTML_NODATA_ERROR);
 
-            HTML_PARSER.parseHtml(resp.getBody(), result);
+            HTML_PARSER.parseHtml(resp.getBodyBytes(), resp.getBodyCharset(), result);
         }
         catch (IOException e)
         {
+            deadline.check("GET on " + identifier, e);
             throw new DiscoveryException("Fatal transport error: ",
-                    OpenIDException.DISCOVERY_HTML_GET_ERROR, e);
+                    HttpRequestRejectedException.getErrorCode(e,
+                        OpenIDException.DISCOVERY_HTML_GET_ERROR), e);
         }
 
         LOGGER.info("HTML discovery completed on: " + identifier);
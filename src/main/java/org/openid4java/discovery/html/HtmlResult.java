@@ -4,23 +4,41 @@
 
 package org.openid4java.discovery.html;
 
+import org.openid4java.OpenIDException;
 import org.openid4java.discovery.UrlIdentifier;
 import org.openid4java.discovery.DiscoveryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Holds information obtained by performing HTML discovery on an URL.
  */
 public class HtmlResult
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HtmlResult.class);
+
     private UrlIdentifier _claimedId;
     private URL _op1Endpoint;
     private String _delegate1;
     private URL _op2Endpoint;
     private String _delegate2;
 
+    /**
+     * Set if the links were parsed from the page retrieved during Yadis
+     * discovery, rather than by HTML discovery.
+     */
+    private boolean _parsed;
+
+    /**
+     * The error HTML discovery reports for the parsed links, if any.
+     */
+    private DiscoveryException _failureCause;
+
     /**
      * Constructs an empty HtmlResult object.
      */
@@ -109,6 +127,114 @@ public class HtmlResult
         return _delegate2;
     }
 
+    /**
+     * Returns true if the links of the page were parsed while looking for
+     * the Yadis XRDS location in its META tags.
+     *
+     * @see org.openid4java.discovery.yadis.YadisResolver#discover(String, HtmlResult)
+     */
+    public boolean isParsed()
+    {
+        return _parsed;
+    }
+
+    /**
+     * Sets whether the links of the page were parsed while looking for
+     * the Yadis XRDS location in its META tags.
+     */
+    public void setParsed(boolean parsed)
+    {
+        _parsed = parsed;
+    }
+
+    /**
+     * Gets the error found in the parsed links, which HTML discovery
+     * reports instead of its results.
+     */
+    public DiscoveryException getFailureCause()
+    {
+        return _failureCause;
+    }
+
+    /**
+     * Sets the error found in the parsed links, which HTML discovery
+     * reports instead of its results.
+     */
+    public void setFailureCause(DiscoveryException e)
+    {
+        _failureCause = e;
+    }
+
+    /**
+     * Stores the OpenID information of a LINK element of the HTML HEAD.
+     *
+     * @param rel       The rel attribute of the LINK element: a space
+     *                  separated list of relations.
+     * @param href      The href attribute of the LINK element.
+     * @throws DiscoveryException if an OpenID relation is found more
+     *          than once in the HEAD.
+     */
+    public void addLink(String rel, String href) throws DiscoveryException
+    {
+        List relations = Arrays.asList(rel.split(" "));
+
+        // openid.server
+        if (relations.contains("openid.server"))
+        {
+            if (_op1Endpoint != null)
+                throw new DiscoveryException(
+                        "More than one openid.server entries found",
+                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Found OpenID1 endpoint: " + href);
+
+            setEndpoint1(href);
+        }
+
+        // openid.delegate
+        if (relations.contains("openid.delegate"))
+        {
+            if (_delegate1 != null)
+                throw new DiscoveryException(
+                        "More than one openid.delegate entries found",
+                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Found OpenID1 delegate: " + href);
+
+            setDelegate1(href);
+        }
+
+        // openid2.provider
+        if (relations.contains("openid2.provider"))
+        {
+            if (_op2Endpoint != null)
+                throw new DiscoveryException(
+                        "More than one openid.server entries found",
+                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Found OpenID2 endpoint: " + href);
+
+            setEndpoint2(href);
+        }
+
+        // openid2.local_id
+        if (relations.contains("openid2.local_id"))
+        {
+            if (_delegate2 != null)
+                throw new DiscoveryException(
+                        "More than one openid2.local_id entries found",
+                        OpenIDException.DISCOVERY_HTML_PARSE_ERROR);
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Found OpenID2 localID: " + href);
+
+            setDelegate2(href);
+        }
+    }
+
     public String toString()
     {
         return "ClaimedID:" + _claimedId +
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.xrds;
+
+import org.openid4java.OpenIDException;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.RuntimeDiscoveryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.EntityDeclaration;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.ValidatorHandler;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streaming XRDS parser: extracts the services of the last XRD element
+ * in a single forward pass over the document, with StAX, keeping in memory
+ * only the services of the XRD element read last.
+ * <p>
+ * The document is validated against the XRD and XRDS schemas as it is
+ * read, and the results are the same as those of {@link XrdsParserImpl}:
+ * the same sorted {@link XrdsServiceEndpoint}s, or the same errors. The
+ * only exception are documents with internal DTD entities whose values
+ * contain markup or other entity references, which are rejected.
+ * Selected with the discovery.xrds.parser property.
+ */
+public class StaxXrdsParser implements XrdsParser
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaxXrdsParser.class);
+
+    private static final String XRD_NS = "xri://$xrd*($v*2.0)";
+    private static final String XRD_ELEM_XRD = "XRD";
+    private static final String XRD_ELEM_TYPE = "Type";
+    private static final String XRD_ELEM_URI = "URI";
+    private static final String XRD_ELEM_LOCALID = "LocalID";
+    private static final String XRD_ELEM_CANONICALID = "CanonicalID";
+    private static final String XRD_ATTR_PRIORITY = "priority";
+    private static final String OPENID_NS = "http://openid.net/xmlns/1.0";
+    private static final String OPENID_ELEM_DELEGATE = "Delegate";
+
+    private static final String REPORT_CDATA_EVENT =
+        "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static final XMLResolver XML_RESOLVER = new XMLResolver()
+    {
+        public Object resolveEntity(String publicId, String systemId, String baseUri, String namespace)
+        {
+            throw new RuntimeDiscoveryException("External entity found in XRDS data");
+        }
+    };
+
+    /**
+     * StAX input factories, reused by the parsers of each thread.
+     */
+    private static final ThreadLocal INPUT_FACTORY = new ThreadLocal();
+
+    public List parseXrds(String input, Set targetTypes) throws DiscoveryException
+    {
+        if (input == null)
+            throw new DiscoveryException("Cannot read XML message",
+                OpenIDException.XRDS_DOWNLOAD_ERROR);
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Parsing XRDS input: " + input);
+
+        return parseXrds(new StreamSource(new StringReader(input)), targetTypes);
+    }
+
+    /**
+     * Parses the XRDS document bytes directly, without decoding them
+     * to a String first.
+     */
+    public List parseXrds(byte[] input, Set targetTypes) throws DiscoveryException
+    {
+        if (input == null)
+            throw new DiscoveryException("Cannot read XML message",
+                OpenIDException.XRDS_DOWNLOAD_ERROR);
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Parsing XRDS input: " + new String(input, StandardCharsets.UTF_8));
+
+        return parseXrds(new StreamSource(new ByteArrayInputStream(input)), targetTypes);
+    }
+
+    private List parseXrds(StreamSource input, Set targetTypes) throws DiscoveryException
+    {
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Parsing XRDS input for service types: " + targetTypes.toString());
+
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = getInputFactory().createXMLStreamReader(input);
+
+            return extractEndpoints(readLastXrd(reader), targetTypes);
+        }
+        catch (XMLStreamException e)
+        {
+            if (e.getNestedException() instanceof RuntimeDiscoveryException)
+                throw new DiscoveryException(e.getNestedException().getMessage());
+
+            throw new DiscoveryException("Error parsing XML document",
+                    OpenIDException.XRDS_PARSING_ERROR, e);
+        }
+        catch (SAXException e)
+        {
+            throw new DiscoveryException("Error parsing XML document",
+                    OpenIDException.XRDS_PARSING_ERROR, e);
+        }
+        catch (RuntimeDiscoveryException rde)
+        {
+            throw new DiscoveryException(rde.getMessage());
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (XMLStreamException e)
+                {
+                    LOGGER.warn("Error closing XRDS reader.", e);
+                }
+            }
+        }
+    }
+
+    private static XMLInputFactory getInputFactory()
+    {
+        XMLInputFactory factory = (XMLInputFactory) INPUT_FACTORY.get();
+        if (factory == null)
+        {
+            // the JDK implementation, whose handling of DTDs, entities
+            // and CDATA sections matches the DOM parser's
+            factory = XMLInputFactory.newDefaultFactory();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.TRUE);
+            factory.setProperty(REPORT_CDATA_EVENT, Boolean.TRUE);
+            factory.setXMLResolver(XML_RESOLVER);
+
+            INPUT_FACTORY.set(factory);
+        }
+
+        return factory;
+    }
+
+    /**
+     * Reads the document, validating it, and collects the children
+     * of the last XRD element.
+     *
+     * @return  The last XRD element, or null if none were found.
+     */
+    private Xrd readLastXrd(XMLStreamReader reader) throws XMLStreamException, SAXException
+    {
+        ValidatorHandler validator = XrdsParserImpl.getSchema().newValidatorHandler();
+        validator.setErrorHandler(XrdsParserImpl.ERROR_HANDLER);
+        ValidatedAttributes attributes = new ValidatedAttributes();
+        validator.setContentHandler(attributes);
+
+        Xrd xrd = null;
+        Service service = null;
+
+        // element whose first text child is being read
+        Element textElement = null;
+        int depth = 0;
+
+        // names of the external entities declared in the DTD
+        Set externalEntities = new HashSet();
+
+        validator.startDocument();
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+
+            if (textElement != null)
+            {
+                if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE)
+                    textElement.appendText(reader.getText());
+                else
+                    textElement = null;
+            }
+
+            switch (event)
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    startElement(reader, validator);
+
+                    String ns = reader.getNamespaceURI();
+                    String name = reader.getLocalName();
+                    boolean hasAttributes = reader.getNamespaceCount() > 0 || attributes.count > 0;
+
+                    // validated values of the XRD elements, as in the DOM
+                    String priority = XRD_NS.equals(ns) && attributes.priority != null ?
+                        collapseWhitespace(attributes.priority) : attributes.priority;
+                    boolean collapse = XRD_NS.equals(ns) && (XRD_ELEM_TYPE.equals(name) ||
+                        XRD_ELEM_URI.equals(name) || XRD_ELEM_CANONICALID.equals(name));
+
+                    if (XRD_NS.equals(ns) && XRD_ELEM_XRD.equals(name))
+                    {
+                        xrd = new Xrd(depth);
+                        service = null;
+                    }
+                    else if (xrd != null && xrd.open && depth == xrd.depth + 1)
+                    {
+                        service = new Service(hasAttributes, priority, collapse);
+                        xrd.services.add(service);
+
+                        if (XRD_NS.equals(ns) && XRD_ELEM_CANONICALID.equals(name))
+                        {
+                            xrd.canonicalIds.add(service);
+                            textElement = service;
+                        }
+                    }
+                    else if (service != null && depth == xrd.depth + 2)
+                    {
+                        Element element = new Element(hasAttributes, priority, collapse);
+
+                        if (XRD_NS.equals(ns) && XRD_ELEM_TYPE.equals(name))
+                            service.types.add(element);
+                        else if (XRD_NS.equals(ns) && XRD_ELEM_URI.equals(name))
+                            service.uris.add(element);
+                        else if (XRD_NS.equals(ns) && XRD_ELEM_LOCALID.equals(name))
+                            service.localId = element;
+                        else if (OPENID_NS.equals(ns) && OPENID_ELEM_DELEGATE.equals(name))
+                            service.delegate = element;
+                        else
+                            break;
+
+                        textElement = element;
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    endElement(reader, validator);
+
+                    if (xrd != null && depth == xrd.depth)
+                        xrd.open = false;
+                    else if (xrd != null && depth == xrd.depth + 1)
+                        service = null;
+
+                    depth--;
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    validator.characters(reader.getTextCharacters(),
+                        reader.getTextStart(), reader.getTextLength());
+                    break;
+
+                case XMLStreamConstants.DTD:
+                    List entities = (List) reader.getProperty("javax.xml.stream.entities");
+                    for (int i = 0; entities != null && i < entities.size(); i++)
+                    {
+                        EntityDeclaration entity = (EntityDeclaration) entities.get(i);
+                        if (entity.getSystemId() != null)
+                            externalEntities.add(entity.getName());
+                    }
+                    break;
+
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    // internal entities are validated with their replacement
+                    // text; external ones are not read
+                    if (externalEntities.contains(reader.getLocalName()))
+                        break;
+
+                    String text = reader.getText();
+                    if (text != null && (text.indexOf('<') != -1 || text.indexOf('&') != -1))
+                        throw new XMLStreamException("Markup in entity not supported: "
+                            + reader.getLocalName(), reader.getLocation());
+
+                    if (text != null && text.length() > 0)
+                        validator.characters(text.toCharArray(), 0, text.length());
+                    break;
+
+                case XMLStreamConstants.END_DOCUMENT:
+                    validator.endDocument();
+                    break;
+            }
+        }
+
+        return xrd;
+    }
+
+    private void startElement(XMLStreamReader reader, ValidatorHandler validator)
+        throws SAXException
+    {
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+            validator.startPrefixMapping(nullToEmpty(reader.getNamespacePrefix(i)),
+                nullToEmpty(reader.getNamespaceURI(i)));
+
+        AttributesImpl attributes = new AttributesImpl();
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            String prefix = reader.getAttributePrefix(i);
+            String localName = reader.getAttributeLocalName(i);
+            attributes.addAttribute(nullToEmpty(reader.getAttributeNamespace(i)), localName,
+                prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName,
+                reader.getAttributeType(i), reader.getAttributeValue(i));
+        }
+
+        validator.startElement(nullToEmpty(reader.getNamespaceURI()),
+            reader.getLocalName(), getQName(reader), attributes);
+    }
+
+    private void endElement(XMLStreamReader reader, ValidatorHandler validator)
+        throws SAXException
+    {
+        validator.endElement(nullToEmpty(reader.getNamespaceURI()),
+            reader.getLocalName(), getQName(reader));
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+            validator.endPrefixMapping(nullToEmpty(reader.getNamespacePrefix(i)));
+    }
+
+    private static String getQName(XMLStreamReader reader)
+    {
+        String prefix = reader.getPrefix();
+        return prefix == null || prefix.length() == 0 ?
+            reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+
+    private static String nullToEmpty(String value)
+    {
+        return value != null ? value : "";
+    }
+
+    /**
+     * Normalizes the value of a schema type with the collapse whitespace
+     * facet (anyURI, integer).
+     */
+    private static String collapseWhitespace(String value)
+    {
+        StringBuffer result = new StringBuffer(value.length());
+        boolean space = false;
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+            {
+                space = result.length() > 0;
+            }
+            else
+            {
+                if (space)
+                    result.append(' ');
+                result.append(c);
+                space = false;
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Builds the endpoints of the services of the last XRD element,
+     * in the same order, and with the same checks, as the DOM parser.
+     */
+    private List extractEndpoints(Xrd xrd, Set targetTypes) throws DiscoveryException
+    {
+        if (xrd == null)
+            throw new DiscoveryException("No XRD elements found.");
+
+        // get the canonical ID, if any (needed for XRIs)
+        String canonicalId = null;
+        Iterator iter = xrd.canonicalIds.iterator();
+        while (iter.hasNext())
+        {
+            if (canonicalId != null)
+                throw new DiscoveryException("More than one Canonical ID found.");
+            canonicalId = ((Element) iter.next()).getText();
+        }
+
+        int typedServices = 0;
+        List result = new ArrayList();
+
+        iter = xrd.services.iterator();
+        while (iter.hasNext())
+        {
+            Service service = (Service) iter.next();
+
+            Set typeSet = new HashSet();
+            boolean selected = false;
+            Iterator types = service.types.iterator();
+            while (types.hasNext())
+            {
+                String type = ((Element) types.next()).getText();
+                if (type == null) continue;
+
+                typeSet.add(type);
+                if (targetTypes.contains(type))
+                    selected = true;
+            }
+
+            if (typeSet.size() > 0)
+                typedServices++;
+
+            if (! selected) continue;
+
+            String localId = service.localId != null ? service.localId.getText() : null;
+            String delegate = service.delegate != null ? service.delegate.getText() : null;
+
+            Iterator uris = service.uris.iterator();
+            while (uris.hasNext())
+            {
+                Element uri = (Element) uris.next();
+
+                XrdsServiceEndpoint endpoint = new XrdsServiceEndpoint(uri.getText(), typeSet,
+                    service.getPriority(), uri.getPriority(), localId, delegate, canonicalId);
+                if (LOGGER.isDebugEnabled())
+                    LOGGER.debug("Discovered endpoint: \n" + endpoint);
+                result.add(endpoint);
+            }
+        }
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Found " + typedServices + " services for the requested types.");
+
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Receives the attributes of the elements once validated, including
+     * the ones with default values in the schemas.
+     */
+    private static class ValidatedAttributes extends DefaultHandler
+    {
+        int count;
+        String priority;
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            count = attributes.getLength();
+            priority = attributes.getValue(XRD_ATTR_PRIORITY);
+        }
+    }
+
+    private static class Element
+    {
+        final boolean hasAttributes;
+        final String priority;
+
+        /**
+         * If set, whitespace in the text is collapsed; text made only
+         * of whitespace is dropped.
+         */
+        final boolean collapse;
+
+        /**
+         * The first child of the element, if it is text; null otherwise.
+         */
+        StringBuffer text;
+
+        Element(boolean hasAttributes, String priority, boolean collapse)
+        {
+            this.hasAttributes = hasAttributes;
+            this.priority = priority;
+            this.collapse = collapse;
+        }
+
+        void appendText(String value)
+        {
+            if (text == null)
+                text = new StringBuffer();
+            text.append(value);
+        }
+
+        String getText()
+        {
+            if (text == null)
+                return null;
+
+            if (! collapse)
+                return text.toString();
+
+            String value = collapseWhitespace(text.toString());
+            return value.length() > 0 ? value : null;
+        }
+
+        int getPriority()
+        {
+            if (hasAttributes)
+            {
+                if (priority != null)
+                    return Integer.parseInt(priority);
+                else
+                    return XrdsServiceEndpoint.LOWEST_PRIORITY;
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * Child element of the XRD element; a service if it has Type elements.
+     */
+    private static class Service extends Element
+    {
+        final List types = new ArrayList();
+        final List uris = new ArrayList();
+        Element localId;
+        Element delegate;
+
+        Service(boolean hasAttributes, String priority, boolean collapse)
+        {
+            super(hasAttributes, priority, collapse);
+        }
+    }
+
+    private static class Xrd
+    {
+        final int depth;
+        boolean open = true;
+        final List canonicalIds = new ArrayList();
+        final List services = new ArrayList();
+
+        Xrd(int depth)
+        {
+            this.depth = depth;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.openid4java.discovery.xrds;
 
 import org.openid4java.discovery.DiscoveryException;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Set;
 
@@ -23,5 +24,24 @@ public interface XrdsParser
      *         in the proper, sorted order
      */
     List parseXrds(String xrdsInput, Set targetTypes) throws DiscoveryException;
+
+    /**
+     * Parses a XRDS document and extracts the relevant information
+     * for the specified service endpoint types.
+     *
+     * @param xrdsInput the XRDS document bytes, in the encoding specified
+     *                  by the document (UTF-8 by default)
+     * @param targetTypes Set of service endpoint types
+     *                    that should be matched
+     * @return a List of {@link XrdsServiceEndpoint}s
+     *         extracted from the XRDS document,
+     *         in the proper, sorted order
+     * @see #parseXrds(String, Set)
+     */
+    default List parseXrds(byte[] xrdsInput, Set targetTypes) throws DiscoveryException
+    {
+        return parseXrds(xrdsInput != null ?
+            new String(xrdsInput, StandardCharsets.UTF_8) : null, targetTypes);
+    }
     
 }
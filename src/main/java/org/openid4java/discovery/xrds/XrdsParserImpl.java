@@ -14,8 +14,14 @@ import org.xml.sax.*;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -25,8 +31,6 @@ public class XrdsParserImpl implements XrdsParser
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(XrdsParserImpl.class);
     private static final String W3C_XML_SCHEMA = "http://www.w3.org/2001/XMLSchema";
-    private static final String JAXP_SCHEMA_LANGUAGE = "http://java.sun.com/xml/jaxp/properties/schemaLanguage";
-    private static final String JAXP_SCHEMA_SOURCE = "http://java.sun.com/xml/jaxp/properties/schemaSource";
 
     private static final String XRDS_SCHEMA = "xrds.xsd";
     private static final String XRD_SCHEMA = "xrd.xsd";
@@ -40,8 +44,66 @@ public class XrdsParserImpl implements XrdsParser
     private static final String OPENID_NS = "http://openid.net/xmlns/1.0";
     private static final String OPENID_ELEM_DELEGATE = "Delegate";
 
+    static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+        public void error(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        public void fatalError(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        public void warning(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+    };
+
+    private static final EntityResolver ENTITY_RESOLVER = new EntityResolver() {
+        public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+            throw new RuntimeDiscoveryException("External entity found in XRDS data");
+        }
+    };
+
+    /**
+     * Compiled XRD and XRDS schemas, shared by all the parsers.
+     */
+    private static Schema _schema;
+
+    /**
+     * Validating DocumentBuilders, reused by the parsers of each thread.
+     */
+    private static final ThreadLocal DOCUMENT_BUILDER = new ThreadLocal();
+
 
     public List parseXrds(String input, Set targetTypes) throws DiscoveryException
+    {
+        if (input == null)
+            throw new DiscoveryException("Cannot read XML message",
+                OpenIDException.XRDS_DOWNLOAD_ERROR);
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Parsing XRDS input: " + input);
+
+        return parseXrds(new InputSource(new StringReader(input)), targetTypes);
+    }
+
+    /**
+     * Parses the XRDS document bytes directly, without decoding them
+     * to a String first.
+     */
+    public List parseXrds(byte[] input, Set targetTypes) throws DiscoveryException
+    {
+        if (input == null)
+            throw new DiscoveryException("Cannot read XML message",
+                OpenIDException.XRDS_DOWNLOAD_ERROR);
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Parsing XRDS input: " + new String(input, StandardCharsets.UTF_8));
+
+        return parseXrds(new InputSource(new ByteArrayInputStream(input)), targetTypes);
+    }
+
+    private List parseXrds(InputSource input, Set targetTypes) throws DiscoveryException
     {
         if (LOGGER.isDebugEnabled())
             LOGGER.debug("Parsing XRDS input for service types: " + targetTypes.toString());
@@ -150,55 +212,70 @@ public class XrdsParserImpl implements XrdsParser
         return 0;
     }
 
-    private Document parseXmlInput(String input) throws DiscoveryException
+    /**
+     * Gets the XRD and XRDS schemas, compiled on first use.
+     * Schema objects are immutable and thread-safe.
+     */
+    static synchronized Schema getSchema() throws SAXException
     {
-        if (input == null)
-            throw new DiscoveryException("Cannot read XML message",
-                OpenIDException.XRDS_DOWNLOAD_ERROR);
+        if (_schema == null)
+        {
+            SchemaFactory schemaFactory = SchemaFactory.newInstance(W3C_XML_SCHEMA);
+            _schema = schemaFactory.newSchema(new Source[] {
+                new StreamSource(Discovery.class.getResourceAsStream(XRD_SCHEMA)),
+                new StreamSource(Discovery.class.getResourceAsStream(XRDS_SCHEMA)),
+            });
+        }
 
-        if (LOGGER.isDebugEnabled())
-            LOGGER.debug("Parsing XRDS input: " + input);
+        return _schema;
+    }
 
-        try
+    /**
+     * Gets the DocumentBuilder of the current thread, reset to its
+     * initial configuration.
+     */
+    private static DocumentBuilder getDocumentBuilder()
+        throws ParserConfigurationException, SAXException
+    {
+        DocumentBuilder builder = (DocumentBuilder) DOCUMENT_BUILDER.get();
+        if (builder == null)
         {
             DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
             dbf.setNamespaceAware(true);
-            dbf.setValidating(true);
             dbf.setExpandEntityReferences(false);
 
-            dbf.setFeature("http://xml.org/sax/features/validation", true);
             dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
             dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
             dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
-            dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
 
-            dbf.setAttribute(JAXP_SCHEMA_LANGUAGE, W3C_XML_SCHEMA);
-            dbf.setAttribute(JAXP_SCHEMA_SOURCE, new Object[] {
-                Discovery.class.getResourceAsStream(XRD_SCHEMA),
-                Discovery.class.getResourceAsStream(XRDS_SCHEMA),
-            });
-            DocumentBuilder builder = dbf.newDocumentBuilder();
-            builder.setErrorHandler(new ErrorHandler() {
-                public void error(SAXParseException exception) throws SAXException {
-                    throw exception;
-                }
-
-                public void fatalError(SAXParseException exception) throws SAXException {
-                    throw exception;
-                }
-
-                public void warning(SAXParseException exception) throws SAXException {
-                    throw exception;
-                }
-            });
+            // validates against the XRD and XRDS schemas only, as the parser
+            // did with the JAXP schema language; external DTDs are still
+            // loaded, so that the entity resolver rejects them
+            dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", true);
+            dbf.setSchema(getSchema());
 
-            builder.setEntityResolver(new EntityResolver() {
-                public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
-                    throw new RuntimeDiscoveryException("External entity found in XRDS data");
-                }
-            });
+            builder = dbf.newDocumentBuilder();
+            DOCUMENT_BUILDER.set(builder);
+        }
+        else
+        {
+            builder.reset();
+        }
+
+        builder.setErrorHandler(ERROR_HANDLER);
+        builder.setEntityResolver(ENTITY_RESOLVER);
 
-            return builder.parse(new ByteArrayInputStream(input.getBytes()));
+        return builder;
+    }
+
+    private Document parseXmlInput(InputSource input) throws DiscoveryException
+    {
+        boolean parsed = false;
+        try
+        {
+            Document document = getDocumentBuilder().parse(input);
+            parsed = true;
+            return document;
         }
         catch (ParserConfigurationException e)
         {
@@ -219,6 +296,13 @@ public class XrdsParserImpl implements XrdsParser
         {
             throw new DiscoveryException(rde.getMessage());
         }
+        finally
+        {
+            // reset() does not restore all the settings of a builder
+            // interrupted by an error, e.g. the handling of entities
+            if (! parsed)
+                DOCUMENT_BUILDER.remove();
+        }
     }
 
     private void addServiceType(Map serviceTypes, Node serviceNode, String type)
@@ -3,6 +3,8 @@ package org.openid4java.discovery.xri;
 import com.google.inject.Inject;
 
 import org.apache.http.HttpStatus;
+import org.openid4java.OpenIDException;
+import org.openid4java.discovery.DiscoveryDeadline;
 import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.DiscoveryInformation;
 import org.openid4java.discovery.XriIdentifier;
@@ -12,6 +14,7 @@ import org.openid4java.util.HttpCache;
 import org.openid4java.util.HttpFetcher;
 import org.openid4java.util.HttpFetcherFactory;
 import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpRequestRejectedException;
 import org.openid4java.util.HttpResponse;
 import org.openid4java.util.OpenID4JavaUtils;
 import org.slf4j.Logger;
@@ -71,19 +74,26 @@ public class XriDotNetProxyResolver implements XriResolver
     }
 
     public List discover(XriIdentifier xri) throws DiscoveryException
+    {
+        return discover(xri, DiscoveryDeadline.NONE);
+    }
+
+    public List discover(XriIdentifier xri, DiscoveryDeadline deadline)
+        throws DiscoveryException
     {
         String hxri = PROXY_URL + xri.getIdentifier() + "?" + XRDS_QUERY;
         LOGGER.info("Performing discovery on HXRI: " + hxri);
 
         try
         {
-            HttpResponse resp = _httpFetcher.get(hxri);
+            HttpResponse resp = _httpFetcher.get(hxri, deadline.limit(
+                _httpFetcher.getDefaultRequestOptions(), "GET on " + hxri));
             if (resp == null || HttpStatus.SC_OK != resp.getStatusCode())
                 throw new DiscoveryException("Error retrieving HXRI: " + hxri);
 
             Set targetTypes = DiscoveryInformation.OPENID_OP_TYPES;
 
-            List endpoints = XRDS_PARSER.parseXrds(resp.getBody(), targetTypes);
+            List endpoints = XRDS_PARSER.parseXrds(resp.getBodyBytes(), targetTypes);
 
             List results = new ArrayList();
 
@@ -111,7 +121,9 @@ public class XriDotNetProxyResolver implements XriResolver
         }
         catch (IOException e)
         {
-            throw new DiscoveryException("Error performing discovery on HXRI: " + hxri);
+            deadline.check("GET on " + hxri, e);
+            throw new DiscoveryException("Error performing discovery on HXRI: " + hxri,
+                HttpRequestRejectedException.getErrorCode(e, OpenIDException.DISCOVERY_ERROR), e);
         }
     }
 
@@ -2,6 +2,7 @@ package org.openid4java.discovery.xri;
 
 import com.google.inject.ImplementedBy;
 
+import org.openid4java.discovery.DiscoveryDeadline;
 import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.XriIdentifier;
 import org.openid4java.discovery.Identifier;
@@ -21,5 +22,23 @@ public interface XriResolver
      */
     List discover(XriIdentifier xri) throws DiscoveryException;
 
+    /**
+     * Performs OpenID discovery on the supplied XRI identifier, within the
+     * time left to the deadline. The default implementation ignores the
+     * deadline.
+     *
+     * @param xri       The XRI identifier
+     * @param deadline  The deadline of the discovery.
+     * @return          A list of DiscoveryInformation, ordered the discovered
+     *                  priority.
+     * @throws DiscoveryException if discovery failed, with the code
+     *          DISCOVERY_TIMEOUT_ERROR if the deadline expired.
+     */
+    default List discover(XriIdentifier xri, DiscoveryDeadline deadline)
+        throws DiscoveryException
+    {
+        return discover(xri);
+    }
+
     XriIdentifier parseIdentifier(String identifier) throws DiscoveryException;
 }
@@ -6,12 +6,16 @@ package org.openid4java.discovery.yadis;
 
 import org.apache.html.dom.HTMLDocumentImpl;
 import org.openid4java.OpenIDException;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.html.HtmlResult;
 import org.openid4java.util.OpenID4JavaDOMParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.html.HTMLHeadElement;
+import org.w3c.dom.html.HTMLLinkElement;
 import org.w3c.dom.html.HTMLMetaElement;
+import org.xml.sax.InputSource;
 
 import javax.xml.transform.TransformerException;
 
@@ -32,10 +36,39 @@ public class CyberNekoDOMYadisHtmlParser implements YadisHtmlParser
      * @see org.openid4java.discovery.yadis.YadisParser#getHtmlMeta(java.lang.String)
      */
     public String getHtmlMeta(String input) throws YadisException
+    {
+        return getHtmlMeta(this.parseDocument(
+            OpenID4JavaDOMParser.createInputSource(input)), null);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.openid4java.discovery.yadis.YadisHtmlParser#getHtmlMeta(byte[], java.lang.String)
+     */
+    public String getHtmlMeta(byte[] input, String charset) throws YadisException
+    {
+        return getHtmlMeta(this.parseDocument(
+            OpenID4JavaDOMParser.createInputSource(input, charset)), null);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.openid4java.discovery.yadis.YadisHtmlParser#getHtmlMeta(byte[], java.lang.String,
+     *      org.openid4java.discovery.html.HtmlResult)
+     */
+    public String getHtmlMeta(byte[] input, String charset, HtmlResult result)
+        throws YadisException
+    {
+        return getHtmlMeta(this.parseDocument(
+            OpenID4JavaDOMParser.createInputSource(input, charset)), result);
+    }
+
+    private String getHtmlMeta(HTMLDocumentImpl doc, HtmlResult result) throws YadisException
     {
         String xrdsLocation = null;
 
-        HTMLDocumentImpl doc = this.parseDocument(input);
         if (LOGGER.isDebugEnabled())
         {
             try
@@ -87,15 +120,42 @@ public class CyberNekoDOMYadisHtmlParser implements YadisHtmlParser
                 }
             }
         }
+
+        if (result != null)
+            parseLinks(head, result);
+
         return xrdsLocation;
     }
 
-    private HTMLDocumentImpl parseDocument(String htmlData) throws YadisException
+    /**
+     * Stores in the result the OpenID information of the LINK elements
+     * in the HEAD, as {@link org.openid4java.discovery.html.CyberNekoDOMHtmlParser}
+     * does.
+     */
+    private void parseLinks(HTMLHeadElement head, HtmlResult result)
+    {
+        NodeList linkElements = head.getElementsByTagName("LINK");
+        try
+        {
+            for (int i = 0, len = linkElements.getLength(); i < len; i++)
+            {
+                HTMLLinkElement linkElement = (HTMLLinkElement) linkElements.item(i);
+                result.addLink(linkElement.getRel(), linkElement.getHref());
+            }
+        }
+        catch (DiscoveryException e)
+        {
+            result.setFailureCause(e);
+        }
+        result.setParsed(true);
+    }
+
+    private HTMLDocumentImpl parseDocument(InputSource htmlData) throws YadisException
     {
         OpenID4JavaDOMParser parser = new OpenID4JavaDOMParser();
         try
         {
-            parser.parse(OpenID4JavaDOMParser.createInputSource(htmlData));
+            parser.parse(htmlData);
         }
         catch (Exception e)
         {
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.yadis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-host knowledge of how Yadis discovery succeeds, learned by the
+ * {@link YadisResolver} from previous discoveries, and used to skip
+ * the HEAD request when it is not the cheapest way to the XRDS document:
+ * <ul>
+ * <li>if a GET request on an identifier of the host returned the XRDS
+ * document directly, a single GET request is enough;</li>
+ * <li>if HEAD requests to the host did not return the X-XRDS-Location
+ * header while the following GET request found the XRDS document, and
+ * no HEAD request to the host ever returned the header, the HEAD request
+ * is a wasted round trip.</li>
+ * </ul>
+ * Skipping the HEAD request does not change the discovery results, since
+ * the GET request is the fallback for all the HEAD outcomes. Learned
+ * capabilities expire after ttlMillis, so that changes on the hosts are
+ * eventually noticed; hosts explicitly configured as GET-only never expire.
+ */
+public class YadisHostCapabilities
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(YadisHostCapabilities.class);
+
+    private long _ttlMillis = 60 * 60 * 1000;
+
+    private int _maxHosts = 1000;
+
+    /**
+     * Host capabilities, least recently used first. Host key -> Capabilities.
+     */
+    private final LinkedHashMap _hosts = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > _maxHosts;
+        }
+    };
+
+    public long getTtlMillis()
+    {
+        return _ttlMillis;
+    }
+
+    /**
+     * Sets the time, in milliseconds, after which learned capabilities
+     * are forgotten.
+     */
+    public void setTtlMillis(long ttlMillis)
+    {
+        _ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Sets the maximum number of hosts tracked; the least recently
+     * discovered ones are forgotten first.
+     */
+    public synchronized void setMaxHosts(int maxHosts)
+    {
+        _maxHosts = maxHosts;
+    }
+
+    /**
+     * Marks the host of the URL as ignoring HEAD requests: discovery on its
+     * identifiers always starts with a GET request.
+     */
+    public synchronized void setGetOnly(String url)
+    {
+        Capabilities capabilities = getCapabilities(url, true);
+        if (capabilities != null)
+            capabilities.getOnly = true;
+    }
+
+    /**
+     * Checks if discovery on the URL should start with a HEAD request.
+     */
+    public synchronized boolean isHeadUseful(String url)
+    {
+        Capabilities capabilities = getCapabilities(url, false);
+        if (capabilities == null)
+            return true;
+
+        if (capabilities.getOnly)
+            return false;
+
+        if (capabilities.getServesXrds)
+            return false;
+
+        return ! capabilities.headMissed || capabilities.headFound;
+    }
+
+    /**
+     * Records the outcome of the HEAD request of a discovery.
+     *
+     * @param foundLocation True if the response had the X-XRDS-Location header.
+     * @param getFoundXrds  True if the following GET request found the XRDS
+     *                      document (location or document itself); ignored
+     *                      if foundLocation is true.
+     */
+    public synchronized void recordHead(String url, boolean foundLocation, boolean getFoundXrds)
+    {
+        // nothing learned from identifiers without a XRDS document
+        if (! foundLocation && ! getFoundXrds)
+            return;
+
+        Capabilities capabilities = getCapabilities(url, true);
+        if (capabilities == null)
+            return;
+
+        if (foundLocation)
+            capabilities.headFound = true;
+        else
+            capabilities.headMissed = true;
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("HEAD " + (foundLocation ? "returned" : "did not return") +
+                " the XRDS location for " + url);
+    }
+
+    /**
+     * Records that a GET request on the URL, with the Yadis Accept header,
+     * returned the XRDS document itself.
+     */
+    public synchronized void recordGetServesXrds(String url)
+    {
+        Capabilities capabilities = getCapabilities(url, true);
+        if (capabilities == null)
+            return;
+
+        capabilities.getServesXrds = true;
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("GET returned the XRDS document for " + url);
+    }
+
+    /**
+     * Forgets the capabilities of all hosts, including the GET-only ones.
+     */
+    public synchronized void reset()
+    {
+        _hosts.clear();
+    }
+
+    /**
+     * Gets the capabilities of the host of the URL.
+     *
+     * @param create    If true, the capabilities are created if needed.
+     * @return          The capabilities, or null if the URL is not valid,
+     *                  or if none exist, or have expired, and create is false.
+     */
+    private Capabilities getCapabilities(String url, boolean create)
+    {
+        String host = getHostKey(url);
+        if (host == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+
+        Capabilities capabilities = (Capabilities) _hosts.get(host);
+        if (capabilities != null && ! capabilities.getOnly &&
+            now - capabilities.learnedAt >= _ttlMillis)
+        {
+            _hosts.remove(host);
+            capabilities = null;
+        }
+
+        if (capabilities == null && create)
+        {
+            capabilities = new Capabilities(now);
+            _hosts.put(host, capabilities);
+        }
+
+        return capabilities;
+    }
+
+    private static String getHostKey(String url)
+    {
+        try
+        {
+            URI uri = new URI(url);
+            if (uri.getHost() == null)
+                return null;
+
+            return uri.getScheme() + "://" + uri.getHost().toLowerCase() + ":" + uri.getPort();
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+    }
+
+    private static class Capabilities
+    {
+        final long learnedAt;
+        boolean getOnly;
+        boolean headFound;
+        boolean headMissed;
+        boolean getServesXrds;
+
+        Capabilities(long learnedAt)
+        {
+            this.learnedAt = learnedAt;
+        }
+    }
+}
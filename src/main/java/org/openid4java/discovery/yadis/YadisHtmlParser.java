@@ -4,6 +4,11 @@
 
 package org.openid4java.discovery.yadis;
 
+import org.openid4java.discovery.html.HtmlResult;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Yadis parser.
  * 
@@ -24,4 +29,50 @@ public interface YadisHtmlParser
      *             on parsing errors or Yadis protocal violations
      */
     String getHtmlMeta(String input) throws YadisException;
+
+    /**
+     * Parses the HTML data and scans for the Yadis XRDS location in the
+     * HTML HEAD Meta tags.
+     *
+     * @param input
+     *            input data bytes
+     * @param charset
+     *            the charset of the input data, or null if not known
+     * @return String the XRDS location URL, or null if not found
+     * @throws YadisException
+     *             on parsing errors or Yadis protocal violations
+     * @see #getHtmlMeta(String)
+     */
+    default String getHtmlMeta(byte[] input, String charset) throws YadisException
+    {
+        return getHtmlMeta(new String(input, charset != null ?
+            Charset.forName(charset) : StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses the HTML data and scans for the Yadis XRDS location in the
+     * HTML HEAD Meta tags, and, if the implementation can do so from the same
+     * parse, for the OpenID information in the HTML HEAD Link tags, so that
+     * HTML discovery does not have to parse the data again.
+     * <p>
+     * The links are stored in the result, which is then marked as parsed;
+     * an error in the links is not thrown but set as the failure cause of
+     * the result. This default implementation does not parse the links.
+     *
+     * @param input
+     *            input data bytes
+     * @param charset
+     *            the charset of the input data, or null if not known
+     * @param result
+     *            the HTML result receiving the OpenID links
+     * @return String the XRDS location URL, or null if not found
+     * @throws YadisException
+     *             on parsing errors or Yadis protocal violations
+     * @see #getHtmlMeta(byte[], String)
+     */
+    default String getHtmlMeta(byte[] input, String charset, HtmlResult result)
+        throws YadisException
+    {
+        return getHtmlMeta(input, charset);
+    }
 }
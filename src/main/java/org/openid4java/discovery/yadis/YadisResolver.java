@@ -11,17 +11,22 @@ import org.apache.http.Header;
 import org.apache.http.client.ClientProtocolException;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Set;
 import java.util.Collections;
 import java.util.List;
 
 import org.openid4java.OpenIDException;
+import org.openid4java.discovery.DiscoveryDeadline;
 import org.openid4java.discovery.DiscoveryInformation;
 import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.UrlIdentifier;
+import org.openid4java.discovery.html.HtmlResult;
 import org.openid4java.discovery.xrds.XrdsParser;
 import org.openid4java.util.HttpFetcher;
 import org.openid4java.util.HttpFetcherFactory;
 import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpRequestRejectedException;
 import org.openid4java.util.HttpResponse;
 import org.openid4java.util.OpenID4JavaUtils;
 import org.slf4j.Logger;
@@ -97,6 +102,16 @@ public class YadisResolver
     private int _maxRedirects = 10;
     private final HttpFetcher _httpFetcher;
 
+    /**
+     * If set, the HEAD request is never tried.
+     */
+    private boolean _getOnly = false;
+
+    /**
+     * Capabilities of the hosts, learned from previous discoveries.
+     */
+    private YadisHostCapabilities _hostCapabilities = new YadisHostCapabilities();
+
     /**
      * Gets the internal limit configured for the maximum number of redirects
      * to be followed for the HTTP calls.
@@ -114,6 +129,41 @@ public class YadisResolver
         this._maxRedirects = maxRedirects;
     }
 
+    /**
+     * Returns true if discovery skips the HEAD request on all hosts.
+     */
+    public boolean isGetOnly()
+    {
+        return _getOnly;
+    }
+
+    /**
+     * If set, discovery starts with a GET request on all hosts, instead of
+     * trying to get the XRDS location with a HEAD request first. Use
+     * {@link YadisHostCapabilities#setGetOnly(String)} to skip the HEAD
+     * request on specific hosts only.
+     */
+    public void setGetOnly(boolean getOnly)
+    {
+        this._getOnly = getOnly;
+    }
+
+    /**
+     * Gets the capabilities of the hosts learned by this resolver.
+     */
+    public YadisHostCapabilities getHostCapabilities()
+    {
+        return _hostCapabilities;
+    }
+
+    /**
+     * Sets the capabilities of the hosts, e.g. to share them between resolvers.
+     */
+    public void setHostCapabilities(YadisHostCapabilities hostCapabilities)
+    {
+        this._hostCapabilities = hostCapabilities;
+    }
+
     @Inject
     public YadisResolver(HttpFetcherFactory httpFetcherFactory)
     {
@@ -149,6 +199,9 @@ public class YadisResolver
      *      or through a GET on the YadisURL otherwise
      * </ul>
      * <p>
+     * The HEAD call is skipped in GET-only mode, and on the hosts where the
+     * {@link YadisHostCapabilities} learned it is not useful.
+     * <p>
      * The maximum number of redirects that are followed is determined by the
      * #_maxRedirects member field.
      *
@@ -162,6 +215,53 @@ public class YadisResolver
         return discover(url, _maxRedirects, _httpFetcher);
     }
 
+    /**
+     * Performs Yadis discovery on the YadisURL, keeping the OpenID
+     * information of the HTML page served by the YadisURL for the HTML
+     * discovery fall-back.
+     * <p>
+     * If the GET request on the YadisURL returns an HTML page, the links of
+     * its HEAD are parsed along with the META tags holding the XRDS location,
+     * when the configured {@link YadisHtmlParser} supports it, and stored in
+     * the provided result; see
+     * {@link org.openid4java.discovery.html.HtmlResolver#discoverHtml(
+     * org.openid4java.discovery.UrlIdentifier, HtmlResult)}.
+     *
+     * @param url           YadisURL on which discovery will be performed
+     * @param htmlResult    Receives the OpenID information of the HTML page.
+     * @return              List of DiscoveryInformation entries discovered
+     *                      obtained from the URL Identifier.
+     */
+    public List discover(String url, HtmlResult htmlResult) throws DiscoveryException
+    {
+        return discover(url, htmlResult, DiscoveryDeadline.NONE);
+    }
+
+    /**
+     * Performs Yadis discovery on the YadisURL within the time left to the
+     * provided deadline, keeping the OpenID information of the HTML page
+     * served by the YadisURL for the HTML discovery fall-back.
+     * <p>
+     * The timeouts of each HTTP request are limited to the time left.
+     *
+     * @param url           YadisURL on which discovery will be performed
+     * @param htmlResult    Receives the OpenID information of the HTML page,
+     *                      if not null.
+     * @param deadline      The deadline of the discovery.
+     * @return              List of DiscoveryInformation entries discovered
+     *                      obtained from the URL Identifier.
+     * @throws DiscoveryException with the code DISCOVERY_TIMEOUT_ERROR
+     *          if the deadline expires.
+     * @see #discover(String, HtmlResult)
+     */
+    public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+        throws DiscoveryException
+    {
+        return discover(url, _maxRedirects, DiscoveryInformation.OPENID_OP_TYPES,
+                htmlResult, deadline)
+            .getDiscoveredInformation(DiscoveryInformation.OPENID_OP_TYPES);
+    }
+
     /**
      * Performs Yadis discovery on the YadisURL.
      * <p>
@@ -237,19 +337,51 @@ public class YadisResolver
 
     public YadisResult discover(String url, int maxRedirects, HttpFetcher httpFetcher, Set serviceTypes)
         throws DiscoveryException
+    {
+        return discover(url, maxRedirects, serviceTypes, null, DiscoveryDeadline.NONE);
+    }
+
+    private YadisResult discover(String url, int maxRedirects, Set serviceTypes,
+                                 HtmlResult htmlResult, DiscoveryDeadline deadline)
+        throws DiscoveryException
     {
         YadisUrl yadisUrl = new YadisUrl(url);
+        String yadisUrlString = yadisUrl.getUrl().toString();
+
+        boolean useHead = ! _getOnly && _hostCapabilities.isHeadUseful(yadisUrlString);
+        YadisResult result = null;
 
         // try to retrieve the Yadis Descriptor URL with a HEAD call first
-        YadisResult result = retrieveXrdsLocation(yadisUrl, false, maxRedirects, serviceTypes);
+        if (useHead)
+        {
+            result = retrieveXrdsLocation(yadisUrl, false, maxRedirects, serviceTypes,
+                null, deadline);
+
+            if (result.getXrdsLocation() != null)
+                _hostCapabilities.recordHead(yadisUrlString, true, false);
+        }
+        else if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Skipping HEAD request on: " + yadisUrlString);
 
         // try GET 
-        if (result.getXrdsLocation() == null)
-            result = retrieveXrdsLocation(yadisUrl, true, maxRedirects, serviceTypes);
+        if (result == null || result.getXrdsLocation() == null)
+        {
+            result = retrieveXrdsLocation(yadisUrl, true, maxRedirects, serviceTypes,
+                htmlResult, deadline);
+
+            // the content type is only set if the XRDS document itself was returned
+            boolean servesXrds = result.getXrdsLocation() == null &&
+                result.getContentType() != null;
+            if (useHead)
+                _hostCapabilities.recordHead(yadisUrlString, false,
+                    servesXrds || result.getXrdsLocation() != null);
+            if (servesXrds)
+                _hostCapabilities.recordGetServesXrds(yadisUrlString);
+        }
 
         if (result.getXrdsLocation() != null)
         {
-            retrieveXrdsDocument(result, maxRedirects, serviceTypes);
+            retrieveXrdsDocument(result, maxRedirects, serviceTypes, deadline);
         }
         else if (result.hasEndpoints())
         {
@@ -268,14 +400,20 @@ public class YadisResolver
      * @param result        The YadisResult object containing a valid XRDS location.
      *                      It will be further populated with the Yadis discovery results.
      * @param maxRedirects
+     * @param deadline      The deadline of the discovery.
      */
-    private void retrieveXrdsDocument(YadisResult result, int maxRedirects, Set serviceTypes)
+    private void retrieveXrdsDocument(YadisResult result, int maxRedirects, Set serviceTypes,
+                                      DiscoveryDeadline deadline)
         throws DiscoveryException {
 
-        _httpFetcher.getRequestOptions().setMaxRedirects(maxRedirects);
+        HttpRequestOptions requestOptions = deadline.limit(new HttpRequestOptions.Builder(
+                _httpFetcher.getDefaultRequestOptions())
+            .maxRedirects(maxRedirects)
+            .build(), "GET on " + result.getXrdsLocation());
 
         try {
-            HttpResponse resp = _httpFetcher.get(result.getXrdsLocation().toString());
+            HttpResponse resp = _httpFetcher.get(
+                result.getXrdsLocation().toString(), requestOptions);
 
             if (resp == null || HttpStatus.SC_OK != resp.getStatusCode())
                 throw new YadisException("GET failed on " + result.getXrdsLocation(),
@@ -290,14 +428,16 @@ public class YadisResolver
 
             if (resp.isBodySizeExceeded())
                 throw new YadisException(
-                    "More than " + _httpFetcher.getRequestOptions().getMaxBodySize() +
+                    "More than " + requestOptions.getMaxBodySize() +
                     " bytes in HTTP response body from " + result.getXrdsLocation(),
                     OpenIDException.YADIS_XRDS_SIZE_EXCEEDED);
-            result.setEndpoints(XRDS_PARSER.parseXrds(resp.getBody(), serviceTypes));
+            result.setEndpoints(XRDS_PARSER.parseXrds(resp.getBodyBytes(), serviceTypes));
 
         } catch (IOException e) {
+            deadline.check("GET on " + result.getXrdsLocation(), e);
             throw new YadisException("Fatal transport error: " + e.getMessage(),
-                    OpenIDException.YADIS_GET_TRANSPORT_ERROR, e);
+                    HttpRequestRejectedException.getErrorCode(e,
+                        OpenIDException.YADIS_GET_TRANSPORT_ERROR), e);
         }
     }
 
@@ -306,10 +446,13 @@ public class YadisResolver
      * in the HTML HEAD Meta tags.
      *
      * @param input             input data stream
+     * @param htmlResult        Receives the OpenID links of the HTML HEAD,
+     *                          if not null.
      * @return String           the XRDS location URL, or null if not found
      * @throws YadisException   on parsing errors or Yadis protocal violations
      */
-    private String getHtmlMeta(String input) throws YadisException
+    private String getHtmlMeta(byte[] input, String charset, HtmlResult htmlResult)
+        throws YadisException
     {
         String xrdsLocation;
 
@@ -317,10 +460,12 @@ public class YadisResolver
             throw new YadisException("Cannot download HTML message",
                     OpenIDException.YADIS_HTMLMETA_DOWNLOAD_ERROR);
 
-        xrdsLocation = YADIS_HTML_PARSER.getHtmlMeta(input);
+        xrdsLocation = htmlResult != null ?
+            YADIS_HTML_PARSER.getHtmlMeta(input, charset, htmlResult) :
+            YADIS_HTML_PARSER.getHtmlMeta(input, charset);
         if (LOGGER.isDebugEnabled())
         {
-            LOGGER.debug("input:\n" + input);
+            LOGGER.debug("input:\n" + new String(input, Charset.forName(charset)));
             LOGGER.debug("xrdsLocation: " + xrdsLocation);
         }
         return xrdsLocation;
@@ -338,6 +483,8 @@ public class YadisResolver
      * @param url           The YadisURL
      * @param result        The location of the XRDS document and the normalized
      *                      Url will be returned in the YadisResult object.
+     * @param deadline      The deadline of the discovery; the timeouts of
+     *                      the call are limited to the time left.
      * <p>
      * The location of the XRDS document will be null if:
      *              <ul>
@@ -353,7 +500,9 @@ public class YadisResolver
      *          </ul>
      */
 
-    private YadisResult retrieveXrdsLocation(YadisUrl url, boolean useGet, int maxRedirects, Set serviceTypes)
+    private YadisResult retrieveXrdsLocation(YadisUrl url, boolean useGet, int maxRedirects,
+                                             Set serviceTypes, HtmlResult htmlResult,
+                                             DiscoveryDeadline deadline)
         throws DiscoveryException
     {
 
@@ -380,16 +529,21 @@ public class YadisResolver
                     " on: " + url + " ...");
 
 
-                HttpRequestOptions requestOptions = _httpFetcher.getRequestOptions();
-                requestOptions.setMaxRedirects(maxRedirects);
-               
-                if (useGet) 
-                { 
-                    if (attempt == 1)
-                        requestOptions.addRequestHeader("Accept", YADIS_ACCEPT_HEADER);
-                    else 
-                        requestOptions.addRequestHeader("Accept", YADIS_CONTENT_TYPE);
-                }
+                HttpRequestOptions requestOptions;
+                if (useGet && attempt == 1)
+                    requestOptions = getGetRequestOptions(maxRedirects);
+                else if (useGet)
+                    requestOptions = new HttpRequestOptions.Builder(
+                            getGetRequestOptions(maxRedirects))
+                        .requestHeader("Accept", YADIS_CONTENT_TYPE)
+                        .build();
+                else
+                    requestOptions = new HttpRequestOptions.Builder(
+                            _httpFetcher.getDefaultRequestOptions())
+                        .maxRedirects(maxRedirects)
+                        .build();
+                requestOptions = deadline.limit(requestOptions,
+                    (useGet ? "GET" : "HEAD") + " on " + url);
 
                 HttpResponse resp = useGet ?
                     _httpFetcher.get(url.getUrl().toString(), requestOptions) :
@@ -429,7 +583,7 @@ public class YadisResolver
                 }
                 else if (contentType != null && contentType.getValue() != null &&
                          contentType.getValue().split(";")[0].equalsIgnoreCase(YADIS_CONTENT_TYPE) &&
-                         resp.getBody() != null)
+                         resp.getBodyBytes() != null)
                 {
                     // no location, but got xrds document
                     result.setNormalizedUrl(resp.getFinalUri());
@@ -439,12 +593,15 @@ public class YadisResolver
                             "More than " + requestOptions.getMaxBodySize() +
                             " bytes in HTTP response body from " + url,
                             OpenIDException.YADIS_XRDS_SIZE_EXCEEDED);
-                    result.setEndpoints(XRDS_PARSER.parseXrds(resp.getBody(), serviceTypes));
+                    result.setEndpoints(XRDS_PARSER.parseXrds(resp.getBodyBytes(), serviceTypes));
                 }
-                else if (resp.getBody() != null)
+                else if (resp.getBodyBytes() != null)
                 {
                     // fall-back to html-meta, if present
-                    String xrdsLocation = getHtmlMeta(resp.getBody());
+                    String xrdsLocation = getHtmlMeta(
+                        resp.getBodyBytes(), resp.getBodyCharset(), htmlResult);
+                    if (htmlResult != null && htmlResult.isParsed())
+                        setClaimed(htmlResult, resp.getFinalUri());
                     if (xrdsLocation != null)
                     {
                         result.setNormalizedUrl(resp.getFinalUri());
@@ -468,9 +625,11 @@ public class YadisResolver
             }
             catch (IOException e)
             {
+                deadline.check((useGet ? "GET" : "HEAD") + " on " + url, e);
 
                 throw new YadisException("I/O transport error: " + e.getMessage(),
-                        OpenIDException.YADIS_HEAD_TRANSPORT_ERROR, e);
+                        HttpRequestRejectedException.getErrorCode(e,
+                            OpenIDException.YADIS_HEAD_TRANSPORT_ERROR), e);
             }
 
        } 
@@ -478,6 +637,39 @@ public class YadisResolver
        return result;
     }
 
+    /**
+     * Sets the claimed identifier of the HTML discovery result parsed from
+     * the page at the provided URL, as HTML discovery would.
+     */
+    private void setClaimed(HtmlResult htmlResult, String finalUri)
+    {
+        try
+        {
+            htmlResult.setClaimed(new UrlIdentifier(finalUri));
+        }
+        catch (DiscoveryException e)
+        {
+            htmlResult.setFailureCause(e);
+        }
+    }
+
+    /**
+     * Gets the options of the GET request placed on YadisURLs, with the
+     * Yadis Accept header. HTML discovery placing its GET request with the
+     * same options shares the response of the Yadis one.
+     *
+     * @param maxRedirects  The maximum number of redirects to be followed.
+     */
+    public HttpRequestOptions getGetRequestOptions(int maxRedirects)
+    {
+        return new HttpRequestOptions.Builder(_httpFetcher.getDefaultRequestOptions())
+            .maxRedirects(maxRedirects)
+            .requestHeader("Accept", YADIS_ACCEPT_HEADER)
+            // the meta http-equiv fallback only needs the HTML head
+            .htmlHeadOnly(true)
+            .build();
+    }
+
     /* visible for testing */
     public HttpFetcher getHttpFetcher()
     {
@@ -0,0 +1,987 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.CircularRedirectException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.RedirectException;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Non-blocking {@link AsyncHttpFetcher} built on the JDK HttpClient,
+ * caching GET and HEAD responses with the same rules as {@link HttpCache}.
+ * <p>
+ * Requests do not hold a thread while waiting for the network, so a large
+ * number of discoveries can be in progress with a small number of threads.
+ * Redirects are followed, and the maximum body size, redirect and
+ * content type limits of the {@link HttpRequestOptions} are enforced,
+ * as with {@link HttpCache}; concurrent identical GET and HEAD requests
+ * share a single network request.
+ *
+ * @see HttpCache
+ */
+public class AsyncHttpCache implements AsyncHttpFetcher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpCache.class);
+
+    /**
+     * Fails the requests, and the waits for in-flight requests, that take
+     * too long: the timeout of the JDK HttpClient requests only covers
+     * the wait for the response headers, not the reading of the body.
+     */
+    private static final ScheduledExecutorService TIMER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "openid4java-http-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * HttpClient used to place the HTTP requests.
+     */
+    private final HttpClient _client;
+
+    /**
+     * Cached GET and HEAD responses.
+     */
+    private final HttpCacheStore _store = new HttpCacheStore();
+
+    /**
+     * Requests in progress. Request key -> CompletableFuture.
+     */
+    private final ConcurrentMap _inFlight = new ConcurrentHashMap();
+
+    /**
+     * If true, compressed responses are requested and decompressed.
+     *
+     * @see HttpClientFactory#setContentCompression(boolean)
+     */
+    private final boolean _contentCompression;
+
+    /**
+     * Default set of HTTP request options to be used when placing HTTP
+     * requests, if a custom one was not specified.
+     */
+    private HttpRequestOptions _defaultOptions = new HttpRequestOptions();
+
+    public AsyncHttpCache()
+    {
+        this((SSLContext) null);
+    }
+
+    /**
+     * Constructs a new AsyncHttpCache object, that will be initialized with
+     * the default set of HttpRequestOptions.
+     *
+     * @param sslContext    The SSL context to use for HTTPS requests,
+     *                      or null for the default one.
+     * @see HttpRequestOptions
+     */
+    public AsyncHttpCache(SSLContext sslContext)
+    {
+        this(HttpClientFactory.getJdkInstance(
+            new HttpRequestOptions().getConnTimeout(), sslContext));
+    }
+
+    /**
+     * Constructs a new AsyncHttpCache object placing the HTTP requests
+     * through the provided client, which must not follow redirects.
+     *
+     * @see HttpClientFactory#getJdkInstance(int, SSLContext)
+     */
+    AsyncHttpCache(HttpClient client)
+    {
+        _client = client;
+        _contentCompression = HttpClientFactory.isContentCompression();
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#getDefaultRequestOptions()
+     */
+    public HttpRequestOptions getDefaultRequestOptions()
+    {
+        return _defaultOptions;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#getRequestOptions()
+     */
+    public HttpRequestOptions getRequestOptions()
+    {
+        return new HttpRequestOptions(_defaultOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#setDefaultRequestOptions(org.openid4java.util.HttpRequestOptions)
+     */
+    public void setDefaultRequestOptions(HttpRequestOptions defaultOptions)
+    {
+        this._defaultOptions = defaultOptions;
+    }
+
+    /**
+     * Sets the maximum number of entries kept in each of the GET and HEAD
+     * caches; least recently used entries are evicted first.
+     */
+    public void setMaxCacheEntries(int maxCacheEntries)
+    {
+        _store.setMaxEntries(maxCacheEntries);
+    }
+
+    /**
+     * Sets the maximum (approximate) size in bytes of the responses kept
+     * in each of the GET and HEAD caches; least recently used entries
+     * are evicted first.
+     */
+    public void setMaxCacheSize(long maxCacheSize)
+    {
+        _store.setMaxSize(maxCacheSize);
+    }
+
+    /**
+     * Keeps a copy of the successful GET responses in the provided directory,
+     * so that the cache survives restarts: the responses persisted there
+     * by a previous run are used until they expire.
+     * <p>
+     * Fetchers configured with the same directory share its contents;
+     * a directory can be used by a single process at a time.
+     *
+     * @param directory     The cache directory, created if needed,
+     *                      or null to cache responses in memory only.
+     * @throws IOException  If the directory cannot be used.
+     */
+    public void setPersistentCacheDirectory(File directory) throws IOException
+    {
+        _store.setDiskCache(directory != null ? HttpResponseDiskCache.open(directory) : null);
+    }
+
+    /**
+     * Removes all cached GET and HEAD responses.
+     */
+    public void clearCache()
+    {
+        _store.clear();
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#get(java.lang.String)
+     */
+    public CompletableFuture<HttpResponse> get(String url)
+    {
+        return get(url, _defaultOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#get(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public CompletableFuture<HttpResponse> get(final String url,
+                                               HttpRequestOptions options)
+    {
+        // the options may be modified by other threads while the request is placed
+        final HttpRequestOptions requestOptions = options.snapshot();
+
+        final DefaultHttpResponse cached = _store.lookupGet(url, requestOptions);
+
+        if (cached != null && _store.isFresh(cached, requestOptions))
+        {
+            LOGGER.info("Returning cached GET response for " + url);
+            return CompletableFuture.completedFuture((HttpResponse) cached);
+        }
+
+        IOException failure = _store.lookupFailure("GET", url, requestOptions);
+        if (failure != null)
+            return CompletableFuture.failedFuture(failure);
+
+        return coalesce(RequestCoalescer.key("GET", url, requestOptions),
+            getTimeout(requestOptions), new Supplier<CompletableFuture<HttpResponse>>()
+            {
+                public CompletableFuture<HttpResponse> get()
+                {
+                    return send("GET", URI.create(url), cached, requestOptions, 0, new HashSet())
+                        .thenApply(new Function<DefaultHttpResponse, HttpResponse>()
+                        {
+                            public HttpResponse apply(DefaultHttpResponse resp)
+                            {
+                                // save result in cache
+                                _store.storeGet(url, resp, requestOptions);
+                                return resp;
+                            }
+                        })
+                        .whenComplete(new FailureRecorder("GET", url, requestOptions));
+                }
+            });
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#head(java.lang.String)
+     */
+    public CompletableFuture<HttpResponse> head(String url)
+    {
+        return head(url, _defaultOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#head(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public CompletableFuture<HttpResponse> head(final String url,
+                                                HttpRequestOptions options)
+    {
+        final HttpRequestOptions requestOptions = options.snapshot();
+
+        DefaultHttpResponse cached = _store.lookupHead(url, requestOptions);
+
+        if (cached != null)
+        {
+            LOGGER.info("Returning cached HEAD response for " + url);
+            return CompletableFuture.completedFuture((HttpResponse) cached);
+        }
+
+        IOException failure = _store.lookupFailure("HEAD", url, requestOptions);
+        if (failure != null)
+            return CompletableFuture.failedFuture(failure);
+
+        return coalesce(RequestCoalescer.key("HEAD", url, requestOptions),
+            getTimeout(requestOptions), new Supplier<CompletableFuture<HttpResponse>>()
+            {
+                public CompletableFuture<HttpResponse> get()
+                {
+                    return send("HEAD", URI.create(url), null, requestOptions, 0, new HashSet())
+                        .thenApply(new Function<DefaultHttpResponse, HttpResponse>()
+                        {
+                            public HttpResponse apply(DefaultHttpResponse resp)
+                            {
+                                // save result in cache
+                                _store.storeHead(url, resp, requestOptions);
+                                return resp;
+                            }
+                        })
+                        .whenComplete(new FailureRecorder("HEAD", url, requestOptions));
+                }
+            });
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#post(java.lang.String, java.util.Map)
+     */
+    public CompletableFuture<HttpResponse> post(String url, Map<String, String> parameters)
+    {
+        return post(url, parameters, _defaultOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.AsyncHttpFetcher#post(java.lang.String, java.util.Map, org.openid4java.util.HttpRequestOptions)
+     */
+    public CompletableFuture<HttpResponse> post(String url, Map<String, String> parameters,
+                                                HttpRequestOptions options)
+    {
+        final HttpRequestOptions requestOptions = options.snapshot();
+
+        // we don't actually cache posts, since they are used for
+        // association requests and signature verification
+        try
+        {
+            HttpRequest.Builder post = newRequest("POST", URI.create(url),
+                HttpRequest.BodyPublishers.ofString(encode(parameters)), requestOptions);
+            post.setHeader("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("Performing HTTP POST on {}", url);
+
+            // can't follow redirects on a POST (w/o user intervention)
+            return _client.sendAsync(post.build(),
+                    new LimitedBodyHandler(requestOptions.getMaxBodySize(), false,
+                        _contentCompression, false, getTimeout(requestOptions)))
+                .handle(new ResponseHandler(null, requestOptions, _contentCompression));
+        }
+        catch (RuntimeException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Places the request, or shares the outcome of an identical request
+     * already in progress.
+     *
+     * @param timeoutMillis Maximum time to wait for an in-progress request;
+     *                      waits taking longer fail with a
+     *                      SocketTimeoutException, as with RequestCoalescer.
+     */
+    private CompletableFuture<HttpResponse> coalesce(final String key, long timeoutMillis,
+            Supplier<CompletableFuture<HttpResponse>> request)
+    {
+        final CompletableFuture<HttpResponse> result = new CompletableFuture<HttpResponse>();
+        CompletableFuture<HttpResponse> inFlight =
+            (CompletableFuture<HttpResponse>) _inFlight.putIfAbsent(key, result);
+
+        if (inFlight != null)
+        {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Waiting for in-flight request: " + key);
+            return limit(share(inFlight), timeoutMillis,
+                "waiting for in-flight request: " + key);
+        }
+
+        CompletableFuture<HttpResponse> response;
+        try
+        {
+            response = request.get();
+        }
+        catch (RuntimeException e)
+        {
+            response = CompletableFuture.failedFuture(e);
+        }
+
+        response.whenComplete(new BiConsumer<HttpResponse, Throwable>()
+        {
+            public void accept(HttpResponse resp, Throwable error)
+            {
+                _inFlight.remove(key, result);
+
+                if (error != null)
+                    result.completeExceptionally(unwrap(error));
+                else
+                    result.complete(resp);
+            }
+        });
+
+        return share(result);
+    }
+
+    /**
+     * Returns a new future completed with the outcome of the shared one,
+     * so that callers cannot complete or cancel the shared future.
+     */
+    private static CompletableFuture<HttpResponse> share(CompletableFuture<HttpResponse> shared)
+    {
+        final CompletableFuture<HttpResponse> copy = new CompletableFuture<HttpResponse>();
+
+        shared.whenComplete(new BiConsumer<HttpResponse, Throwable>()
+        {
+            public void accept(HttpResponse resp, Throwable error)
+            {
+                if (error != null)
+                    copy.completeExceptionally(unwrap(error));
+                else
+                    copy.complete(resp);
+            }
+        });
+
+        return copy;
+    }
+
+    /**
+     * Fails the provided future with a SocketTimeoutException if it is
+     * not completed within the timeout.
+     *
+     * @param timeoutMillis The timeout, or 0 for no timeout.
+     * @param action        What timed out, for the exception message.
+     */
+    private static <T> CompletableFuture<T> limit(final CompletableFuture<T> future,
+            final long timeoutMillis, final String action)
+    {
+        if (timeoutMillis <= 0)
+            return future;
+
+        final ScheduledFuture timer = TIMER.schedule(new Runnable()
+        {
+            public void run()
+            {
+                future.completeExceptionally(new SocketTimeoutException(
+                    "Timed out after " + timeoutMillis + " ms " + action));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        future.whenComplete(new BiConsumer<T, Throwable>()
+        {
+            public void accept(T result, Throwable error)
+            {
+                timer.cancel(false);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Gets the time allowed for a request, from placing it to reading the
+     * whole response body, in milliseconds; 0 for no limit.
+     */
+    static long getTimeout(HttpRequestOptions requestOptions)
+    {
+        return (long) requestOptions.getConnTimeout() + requestOptions.getSocketTimeout();
+    }
+
+    /**
+     * Places a GET or HEAD request, following redirects.
+     *
+     * @param cached            Stale cached response to revalidate, or null.
+     * @param redirectCount     Number of redirects followed so far.
+     * @param visited           Redirect locations visited so far.
+     */
+    private CompletableFuture<DefaultHttpResponse> send(
+            final String method, URI uri, final DefaultHttpResponse cached,
+            final HttpRequestOptions requestOptions, final int redirectCount, final Set visited)
+    {
+        HttpRequest.Builder request = newRequest(method, uri,
+            HttpRequest.BodyPublishers.noBody(), requestOptions);
+
+        if (cached != null)
+        {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Revalidating stale cached GET response for " + uri);
+            if (cached.getETag() != null)
+                request.setHeader("If-None-Match", cached.getETag());
+            if (cached.getLastModified() != null)
+                request.setHeader("If-Modified-Since", cached.getLastModified());
+        }
+
+        // HEAD responses have no body, regardless of their Content-Length
+        BodyHandler<ResponseBody> bodyHandler = "HEAD".equals(method) ?
+            BodyHandlers.replacing((ResponseBody) null) :
+            new LimitedBodyHandler(requestOptions.getMaxBodySize(), true,
+                _contentCompression, requestOptions.isHtmlHeadOnly(),
+                getTimeout(requestOptions));
+
+        return _client.sendAsync(request.build(), bodyHandler)
+            .handle(new ResponseHandler(cached, requestOptions, _contentCompression))
+            .thenCompose(new Function<DefaultHttpResponse, CompletionStage<DefaultHttpResponse>>()
+            {
+                public CompletionStage<DefaultHttpResponse> apply(DefaultHttpResponse resp)
+                {
+                    return followRedirect(method, resp, cached,
+                        requestOptions, redirectCount, visited);
+                }
+            });
+    }
+
+    /**
+     * Follows the redirect in the provided response, if any.
+     *
+     * @return  The response at the end of the redirect chain, or a future
+     *          completed exceptionally with a ClientProtocolException if
+     *          the redirect limits of the request options were exceeded.
+     */
+    private CompletableFuture<DefaultHttpResponse> followRedirect(
+            String method, DefaultHttpResponse resp, DefaultHttpResponse cached,
+            HttpRequestOptions requestOptions, int redirectCount, Set visited)
+    {
+        Header location = resp.getResponseHeader("location");
+
+        if (! isRedirect(resp.getStatusCode()) || location == null)
+            return CompletableFuture.completedFuture(resp);
+
+        URI target;
+        try
+        {
+            target = URI.create(resp.getFinalUri()).resolve(location.getValue());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return CompletableFuture.failedFuture(new ClientProtocolException(
+                new ProtocolException("Invalid redirect URI: " + location.getValue(), e)));
+        }
+
+        if (redirectCount >= requestOptions.getMaxRedirects())
+            return CompletableFuture.failedFuture(new ClientProtocolException(
+                new RedirectException("Maximum redirects ("
+                    + requestOptions.getMaxRedirects() + ") exceeded")));
+
+        if (! requestOptions.getAllowCircularRedirects() && ! visited.add(target))
+            return CompletableFuture.failedFuture(new ClientProtocolException(
+                new CircularRedirectException("Circular redirect to '" + target + "'")));
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Redirecting " + method + " " + resp.getFinalUri() + " to " + target);
+
+        return send(method, target, cached, requestOptions, redirectCount + 1, visited);
+    }
+
+    private static boolean isRedirect(int statusCode)
+    {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303
+            || statusCode == 307 || statusCode == 308;
+    }
+
+    /**
+     * Creates a request builder with the timeouts and headers
+     * from the request options.
+     */
+    private HttpRequest.Builder newRequest(String method, URI uri,
+            HttpRequest.BodyPublisher body, HttpRequestOptions requestOptions)
+    {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).method(method, body);
+
+        // only covers the wait for the response headers, see LimitedBodyHandler
+        long timeout = getTimeout(requestOptions);
+        if (timeout > 0)
+            request.timeout(Duration.ofMillis(timeout));
+
+        boolean acceptEncoding = false;
+
+        Map requestHeaders = requestOptions.getRequestHeaders();
+        if (requestHeaders != null)
+        {
+            Iterator iter = requestHeaders.keySet().iterator();
+            String headerName;
+            while (iter.hasNext())
+            {
+                headerName = (String) iter.next();
+                acceptEncoding = acceptEncoding || "Accept-Encoding".equalsIgnoreCase(headerName);
+                try
+                {
+                    request.header(headerName, (String) requestHeaders.get(headerName));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    LOGGER.warn("Ignoring request header not allowed by the HTTP client: "
+                        + headerName);
+                }
+            }
+        }
+
+        // compressed bodies are only decompressed once fully received, which
+        // would defeat stopping the download at the end of the HTML head
+        if (_contentCompression && ! acceptEncoding && ! requestOptions.isHtmlHeadOnly())
+            request.header("Accept-Encoding", "gzip,deflate");
+
+        return request;
+    }
+
+    private static String encode(Map<String, String> parameters)
+    {
+        StringBuffer encoded = new StringBuffer();
+        try
+        {
+            for (Map.Entry<String, String> entry : parameters.entrySet())
+            {
+                if (encoded.length() > 0)
+                    encoded.append('&');
+                encoded.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+                encoded.append('=');
+                if (entry.getValue() != null)
+                    encoded.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Converts the headers of a JDK HttpClient response.
+     *
+     * @param decompressed  If true, the headers describing the compressed
+     *                      body are left out.
+     */
+    private static Header[] toHeaders(HttpHeaders httpHeaders, boolean decompressed)
+    {
+        List headers = new ArrayList();
+
+        Iterator iter = httpHeaders.map().entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry header = (Map.Entry) iter.next();
+            String headerName = (String) header.getKey();
+            if (decompressed && ("content-encoding".equalsIgnoreCase(headerName) ||
+                                 "content-length".equalsIgnoreCase(headerName) ||
+                                 "content-md5".equalsIgnoreCase(headerName)))
+                continue;
+
+            Iterator values = ((List) header.getValue()).iterator();
+            while (values.hasNext())
+                headers.add(new BasicHeader((String) header.getKey(), (String) values.next()));
+        }
+
+        return (Header[]) headers.toArray(new Header[headers.size()]);
+    }
+
+    /**
+     * Gets the content coding of a response, if it can be decompressed.
+     *
+     * @return  The content coding, or null if the response is not
+     *          compressed, or uses an unsupported content coding.
+     */
+    private static String getContentCoding(HttpHeaders httpHeaders)
+    {
+        String contentCoding = httpHeaders.firstValue("Content-Encoding").orElse(null);
+
+        if (contentCoding != null &&
+            ResponseBodyBuffer.isSupportedContentCoding(contentCoding.trim()))
+            return contentCoding.trim();
+        else
+            return null;
+    }
+
+    private static Throwable unwrap(Throwable error)
+    {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null)
+            error = error.getCause();
+
+        return error;
+    }
+
+    /**
+     * Remembers the failed requests in the negative cache.
+     */
+    private class FailureRecorder implements BiConsumer<HttpResponse, Throwable>
+    {
+        private final String _method;
+        private final String _url;
+        private final HttpRequestOptions _requestOptions;
+
+        FailureRecorder(String method, String url, HttpRequestOptions requestOptions)
+        {
+            _method = method;
+            _url = url;
+            _requestOptions = requestOptions;
+        }
+
+        public void accept(HttpResponse resp, Throwable error)
+        {
+            Throwable cause = error != null ? unwrap(error) : null;
+            if (cause instanceof IOException)
+                _store.storeFailure(_method, _url, (IOException) cause, _requestOptions);
+        }
+    }
+
+    /**
+     * Converts the responses of the JDK HttpClient into DefaultHttpResponse
+     * objects, and unwraps the exceptions of failed requests.
+     */
+    private static class ResponseHandler implements
+            BiFunction<java.net.http.HttpResponse<ResponseBody>, Throwable, DefaultHttpResponse>
+    {
+        private final DefaultHttpResponse _cached;
+        private final HttpRequestOptions _requestOptions;
+        private final boolean _decompress;
+
+        /**
+         * @param cached        Stale cached response being revalidated, or null.
+         * @param decompress    If true, compressed bodies were decompressed.
+         */
+        ResponseHandler(DefaultHttpResponse cached, HttpRequestOptions requestOptions,
+                        boolean decompress)
+        {
+            _cached = cached;
+            _requestOptions = requestOptions;
+            _decompress = decompress;
+        }
+
+        public DefaultHttpResponse apply(java.net.http.HttpResponse<ResponseBody> response,
+                                         Throwable error)
+        {
+            if (error != null)
+            {
+                error = unwrap(error);
+                if (error instanceof RuntimeException)
+                    throw (RuntimeException) error;
+                throw new CompletionException(error);
+            }
+
+            int statusCode = response.statusCode();
+            ResponseBody body = response.body();
+            Header[] headers = toHeaders(response.headers(), _decompress && body != null &&
+                getContentCoding(response.headers()) != null);
+
+            if (_cached != null && statusCode == 304)
+            {
+                LOGGER.info("Cached GET response for " + response.uri() + " not modified.");
+                return _cached.revalidate(headers);
+            }
+
+            boolean head = "HEAD".equals(response.request().method());
+
+            DefaultHttpResponse resp = new DefaultHttpResponse(statusCode,
+                EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ENGLISH),
+                _requestOptions.getMaxRedirects(), response.uri().toString(),
+                headers, head || body == null ? null : body.getBytes(),
+                body != null ? body.getCharset() : ResponseBodyBuffer.DEFAULT_CHARSET);
+            resp.setBodySizeExceeded(body != null && body.isBodyTruncated());
+            resp.setBodyPartial(body != null && body.isBodyPartial());
+
+            return resp;
+        }
+    }
+
+    /**
+     * Reads response bodies up to the maximum body size; the remainder of
+     * larger bodies is not read, and the response is marked as truncated.
+     * Likewise, the remainder of HTML bodies can be left unread once their
+     * head section is complete.
+     * <p>
+     * The whole exchange, from placing the request to reading the body,
+     * is limited to the timeout: bodies still being read by then are
+     * abandoned, and the request fails with a SocketTimeoutException.
+     */
+    private static class LimitedBodyHandler implements BodyHandler<ResponseBody>
+    {
+        /**
+         * Extra room for the compressed body, which can be slightly larger
+         * than the decompressed one for incompressible data.
+         */
+        private static final int COMPRESSION_OVERHEAD = 1024;
+
+        private final int _maxBodySize;
+        private final boolean _discardRedirects;
+        private final boolean _decompress;
+        private final boolean _htmlHeadOnly;
+        private final long _timeoutMillis;
+
+        /**
+         * Time by which the body must be read, in System.nanoTime() units.
+         */
+        private final long _deadline;
+
+        /**
+         * @param discardRedirects  If true, the bodies of redirect
+         *                          responses are discarded.
+         * @param decompress        If true, gzip and deflate compressed
+         *                          bodies are decompressed; the maximum
+         *                          size applies to the decompressed body.
+         * @param htmlHeadOnly      If true, the reading of HTML bodies stops
+         *                          at the end of their head section.
+         * @param timeoutMillis     The time allowed for the exchange, counted
+         *                          from now, or 0 for no limit.
+         */
+        LimitedBodyHandler(int maxBodySize, boolean discardRedirects, boolean decompress,
+                           boolean htmlHeadOnly, long timeoutMillis)
+        {
+            _maxBodySize = maxBodySize;
+            _discardRedirects = discardRedirects;
+            _decompress = decompress;
+            _htmlHeadOnly = htmlHeadOnly;
+            _timeoutMillis = timeoutMillis;
+            _deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        }
+
+        public BodySubscriber<ResponseBody> apply(ResponseInfo responseInfo)
+        {
+            if (_discardRedirects && isRedirect(responseInfo.statusCode()))
+                return BodySubscribers.replacing(null);
+
+            String contentCoding = _decompress ? getContentCoding(responseInfo.headers()) : null;
+            int maxSize = contentCoding != null ?
+                (int) Math.min((long) _maxBodySize + COMPRESSION_OVERHEAD, Integer.MAX_VALUE) :
+                _maxBodySize;
+
+            String contentType = responseInfo.headers().firstValue("Content-Type").orElse(null);
+            boolean htmlHeadOnly = _htmlHeadOnly && ResponseBodyBuffer.isHtml(contentType);
+
+            ResponseBodyBuffer buffer = new ResponseBodyBuffer(maxSize,
+                responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1));
+            buffer.setHtmlHeadOnly(htmlHeadOnly && contentCoding == null);
+
+            LimitedBodySubscriber subscriber = new LimitedBodySubscriber(buffer,
+                ResponseBodyBuffer.getCharset(contentType), contentCoding, _maxBodySize,
+                htmlHeadOnly);
+
+            if (_timeoutMillis > 0)
+                subscriber.setTimeout(_timeoutMillis,
+                    Math.max(0, (_deadline - System.nanoTime()) / 1000000L));
+
+            return subscriber;
+        }
+    }
+
+    private static class LimitedBodySubscriber implements BodySubscriber<ResponseBody>
+    {
+        private final ResponseBodyBuffer _buffer;
+
+        private final Charset _charset;
+
+        private final String _contentCoding;
+
+        private final int _maxBodySize;
+
+        private final boolean _htmlHeadOnly;
+
+        private final CompletableFuture<ResponseBody> _result = new CompletableFuture<ResponseBody>();
+
+        private Flow.Subscription _subscription;
+
+        private long _timeoutMillis;
+
+        /**
+         * Time left to read the body when the subscription starts,
+         * in milliseconds; negative for no limit.
+         */
+        private long _remainingMillis = -1;
+
+        /**
+         * @param contentCoding The content coding of the body, if it is to be
+         *                      decompressed, or null.
+         * @param maxBodySize   The maximum size of the decompressed body.
+         * @param htmlHeadOnly  If true, the decompressed body is cut at the
+         *                      end of the HTML head.
+         */
+        LimitedBodySubscriber(ResponseBodyBuffer buffer, Charset charset,
+                              String contentCoding, int maxBodySize, boolean htmlHeadOnly)
+        {
+            _buffer = buffer;
+            _charset = charset;
+            _contentCoding = contentCoding;
+            _maxBodySize = maxBodySize;
+            _htmlHeadOnly = htmlHeadOnly;
+        }
+
+        /**
+         * Limits the time to read the body.
+         *
+         * @param timeoutMillis     The timeout of the exchange, for the
+         *                          exception message.
+         * @param remainingMillis   The time left to read the body.
+         */
+        void setTimeout(long timeoutMillis, long remainingMillis)
+        {
+            _timeoutMillis = timeoutMillis;
+            _remainingMillis = remainingMillis;
+        }
+
+        public CompletionStage<ResponseBody> getBody()
+        {
+            return _result;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            _subscription = subscription;
+
+            if (_remainingMillis >= 0)
+            {
+                final ScheduledFuture timer = TIMER.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (_result.completeExceptionally(new SocketTimeoutException(
+                                "Timed out after " + _timeoutMillis + " ms reading the response body")))
+                            _subscription.cancel();
+                    }
+                }, _remainingMillis, TimeUnit.MILLISECONDS);
+
+                _result.whenComplete(new BiConsumer<ResponseBody, Throwable>()
+                {
+                    public void accept(ResponseBody body, Throwable error)
+                    {
+                        timer.cancel(false);
+                    }
+                });
+            }
+
+            subscription.request(1);
+        }
+
+        public void onNext(List<ByteBuffer> buffers)
+        {
+            if (_result.isDone())
+                return;
+
+            Iterator iter = buffers.iterator();
+            while (iter.hasNext())
+            {
+                if (! _buffer.write((ByteBuffer) iter.next()))
+                {
+                    _subscription.cancel();
+                    complete();
+                    return;
+                }
+            }
+
+            _subscription.request(1);
+        }
+
+        public void onError(Throwable error)
+        {
+            _result.completeExceptionally(error);
+        }
+
+        public void onComplete()
+        {
+            complete();
+        }
+
+        private void complete()
+        {
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("Read " + _buffer.size() + " bytes.");
+
+            if (_contentCoding == null)
+            {
+                _result.complete(_buffer.toBody(_charset));
+                return;
+            }
+
+            try
+            {
+                ResponseBodyBuffer decompressed = _buffer.decompress(_contentCoding,
+                    _maxBodySize, _htmlHeadOnly);
+
+                if (LOGGER.isDebugEnabled())
+                    LOGGER.debug("Decompressed " + _contentCoding + " body to "
+                        + decompressed.size() + " bytes.");
+
+                _result.complete(decompressed.toBody(_charset));
+            }
+            catch (IOException e)
+            {
+                _result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of the {@link HttpFetcher} interface: the
+ * requests are placed without holding the calling thread, and their
+ * outcome is delivered through a CompletableFuture.
+ * <p>
+ * Failed requests complete the returned future exceptionally with the
+ * IOException (or RuntimeException) a blocking {@link HttpFetcher}
+ * would have thrown.
+ *
+ * @see AsyncHttpCache
+ */
+public interface AsyncHttpFetcher
+{
+    /**
+     * Returns the default {@link HttpRequestOptions}. Note that this does
+     * not return a clone, so manipulating the object returned here will
+     * manipulate the {@link HttpRequestOptions} used by the
+     * {@link AsyncHttpFetcher}.
+     */
+    HttpRequestOptions getDefaultRequestOptions();
+
+    /**
+     * Gets a clone of the default HttpRequestOptions.
+     */
+    HttpRequestOptions getRequestOptions();
+
+    void setDefaultRequestOptions(HttpRequestOptions defaultOptions);
+
+    /**
+     * GETs a HTTP URL. A cached copy will be returned if one exists.
+     *
+     * @param url       The HTTP URL to GET.
+     * @return          A future completed with the HttpResponse object
+     *                  containing the fetched data.
+     *
+     * @see HttpResponse
+     */
+    CompletableFuture<HttpResponse> get(String url);
+
+    /**
+     * GETs a HTTP URL. A cached copy will be returned if one exists and the
+     * supplied options match it.
+     *
+     * @param url       The HTTP URL to GET.
+     * @return          A future completed with the HttpResponse object
+     *                  containing the fetched data.
+     *
+     * @see HttpRequestOptions
+     */
+    CompletableFuture<HttpResponse> get(String url, HttpRequestOptions requestOptions);
+
+    CompletableFuture<HttpResponse> head(String url);
+
+    CompletableFuture<HttpResponse> head(String url, HttpRequestOptions requestOptions);
+
+    CompletableFuture<HttpResponse> post(String url, Map<String, String> parameters);
+
+    CompletableFuture<HttpResponse> post(String url, Map<String, String> parameters,
+                                         HttpRequestOptions requestOptions);
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link HttpFetcher} decorator limiting the concurrent requests to each
+ * host, and rejecting requests to hosts that keep failing or responding
+ * slowly, so that one misbehaving server cannot hold all the threads
+ * of the application.
+ * <p>
+ * Rejected requests fail immediately with a
+ * {@link HttpRequestRejectedException}, reported by the discovery
+ * resolvers with the HTTP_CIRCUIT_OPEN or HTTP_BULKHEAD_FULL
+ * {@link org.openid4java.OpenIDException} error codes.
+ *
+ * @see CircuitBreakerRegistry
+ * @see CircuitBreakerHttpFetcherProvider
+ */
+public class CircuitBreakerHttpFetcher implements HttpFetcher
+{
+    private final HttpFetcher _fetcher;
+
+    private final CircuitBreakerRegistry _registry;
+
+    /**
+     * Decorates the fetcher, using the default (shared) registry.
+     */
+    public CircuitBreakerHttpFetcher(HttpFetcher fetcher)
+    {
+        this(fetcher, CircuitBreakerRegistry.getDefault());
+    }
+
+    /**
+     * Decorates the fetcher, using the provided registry.
+     */
+    public CircuitBreakerHttpFetcher(HttpFetcher fetcher, CircuitBreakerRegistry registry)
+    {
+        _fetcher = fetcher;
+        _registry = registry;
+    }
+
+    /**
+     * Gets the registry holding the state of the hosts.
+     */
+    public CircuitBreakerRegistry getRegistry()
+    {
+        return _registry;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#getDefaultRequestOptions()
+     */
+    public HttpRequestOptions getDefaultRequestOptions()
+    {
+        return _fetcher.getDefaultRequestOptions();
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#getRequestOptions()
+     */
+    public HttpRequestOptions getRequestOptions()
+    {
+        return _fetcher.getRequestOptions();
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#setDefaultRequestOptions(org.openid4java.util.HttpRequestOptions)
+     */
+    public void setDefaultRequestOptions(HttpRequestOptions defaultOptions)
+    {
+        _fetcher.setDefaultRequestOptions(defaultOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#get(java.lang.String)
+     */
+    public HttpResponse get(String url) throws IOException
+    {
+        return get(url, getDefaultRequestOptions());
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#get(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse get(final String url, final HttpRequestOptions requestOptions)
+        throws IOException
+    {
+        return execute(url, new Request()
+        {
+            public HttpResponse execute() throws IOException
+            {
+                return _fetcher.get(url, requestOptions);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#head(java.lang.String)
+     */
+    public HttpResponse head(String url) throws IOException
+    {
+        return head(url, getDefaultRequestOptions());
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#head(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse head(final String url, final HttpRequestOptions requestOptions)
+        throws IOException
+    {
+        return execute(url, new Request()
+        {
+            public HttpResponse execute() throws IOException
+            {
+                return _fetcher.head(url, requestOptions);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#post(java.lang.String, java.util.Map)
+     */
+    public HttpResponse post(String url, Map<String, String> parameters) throws IOException
+    {
+        return post(url, parameters, getDefaultRequestOptions());
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#post(java.lang.String, java.util.Map, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse post(final String url, final Map<String, String> parameters,
+                             final HttpRequestOptions requestOptions) throws IOException
+    {
+        return execute(url, new Request()
+        {
+            public HttpResponse execute() throws IOException
+            {
+                return _fetcher.post(url, parameters, requestOptions);
+            }
+        });
+    }
+
+    /**
+     * Places the request if the circuit breaker and the bulkhead
+     * of the host allow it, recording its outcome.
+     */
+    private HttpResponse execute(String url, Request request) throws IOException
+    {
+        CircuitBreakerRegistry.CircuitBreaker breaker = _registry.getBreaker(url, true);
+        if (breaker == null)
+            return request.execute();
+
+        CircuitBreakerRegistry.Permit permit = breaker.acquire();
+
+        long start = System.nanoTime();
+        boolean released = false;
+        try
+        {
+            HttpResponse resp = request.execute();
+
+            released = true;
+            breaker.release(permit, resp.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR,
+                (System.nanoTime() - start) / 1000000);
+
+            return resp;
+        }
+        catch (HttpRequestRejectedException e)
+        {
+            // rejected by another decorator; says nothing about the host
+            released = true;
+            breaker.release(permit);
+            throw e;
+        }
+        catch (IOException e)
+        {
+            released = true;
+            if (HttpFailureCache.isInterrupt(e))
+                // cancelled, e.g. by parallel discovery; says nothing about the host
+                breaker.release(permit);
+            else
+                breaker.release(permit, true, (System.nanoTime() - start) / 1000000);
+            throw e;
+        }
+        finally
+        {
+            if (! released)
+                breaker.release(permit);
+        }
+    }
+
+    private interface Request
+    {
+        HttpResponse execute() throws IOException;
+    }
+}
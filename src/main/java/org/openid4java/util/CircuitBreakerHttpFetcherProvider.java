@@ -0,0 +1,53 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import com.google.inject.Provider;
+
+/**
+ * Provides {@link CircuitBreakerHttpFetcher}s decorating the fetchers
+ * of another provider, all sharing the same per-host state.
+ * <p>
+ * Can be passed to {@link HttpFetcherFactory#HttpFetcherFactory(Provider)},
+ * or bound in a Guice module:
+ * <pre>
+ * bind(HttpFetcher.class).toProvider(CircuitBreakerHttpFetcherProvider.class);
+ * </pre>
+ */
+public class CircuitBreakerHttpFetcherProvider implements Provider<HttpFetcher>
+{
+    private final Provider<HttpFetcher> _provider;
+
+    private final CircuitBreakerRegistry _registry;
+
+    /**
+     * Decorates the shared {@link HttpCache}s of the {@link HttpCacheProvider},
+     * using the default (shared) registry.
+     */
+    public CircuitBreakerHttpFetcherProvider()
+    {
+        this(new HttpCacheProvider());
+    }
+
+    /**
+     * Decorates the fetchers of the provider, using the default (shared) registry.
+     */
+    public CircuitBreakerHttpFetcherProvider(Provider<HttpFetcher> provider)
+    {
+        this(provider, CircuitBreakerRegistry.getDefault());
+    }
+
+    public CircuitBreakerHttpFetcherProvider(Provider<HttpFetcher> provider,
+                                             CircuitBreakerRegistry registry)
+    {
+        _provider = provider;
+        _registry = registry;
+    }
+
+    public HttpFetcher get()
+    {
+        return new CircuitBreakerHttpFetcher(_provider.get(), _registry);
+    }
+}
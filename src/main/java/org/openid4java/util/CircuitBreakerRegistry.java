@@ -0,0 +1,450 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.openid4java.OpenIDException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Per-host circuit breakers and bulkheads for outbound HTTP requests,
+ * shared by the {@link CircuitBreakerHttpFetcher}s using it.
+ * <p>
+ * Each host gets:
+ * <ul>
+ * <li>a bulkhead: at most maxConcurrentRequests requests to the host
+ * are in progress at any time; further requests are rejected;</li>
+ * <li>a circuit breaker, tracking the outcome of the last windowSize
+ * requests: once at least minimumRequests were placed, the circuit opens
+ * if the percentage of failed requests (I/O errors and 5xx responses)
+ * reaches failureRateThreshold, or the percentage of requests slower
+ * than slowRequestMillis reaches slowRequestRateThreshold. All requests
+ * are then rejected for openMillis; after that, a single trial request
+ * is let through (half-open state), which closes the circuit if it
+ * succeeds or opens it again if it fails. The outcome of the requests
+ * placed before the circuit turned half-open is ignored.</li>
+ * </ul>
+ * Configuration changes apply to the hosts contacted afterwards.
+ */
+public class CircuitBreakerRegistry
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakerRegistry.class);
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    private static final CircuitBreakerRegistry DEFAULT = new CircuitBreakerRegistry();
+
+    private int _maxConcurrentRequests = 20;
+
+    private int _windowSize = 20;
+
+    private int _minimumRequests = 10;
+
+    private int _failureRateThreshold = 50;
+
+    private long _slowRequestMillis = 5000;
+
+    private int _slowRequestRateThreshold = 80;
+
+    private long _openMillis = 30000;
+
+    private int _maxHosts = 1000;
+
+    /**
+     * Circuit breakers, least recently used first. Host key -> CircuitBreaker.
+     */
+    private final LinkedHashMap _breakers = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > _maxHosts;
+        }
+    };
+
+    /**
+     * Gets the registry shared by the fetchers not configured with their own.
+     */
+    public static CircuitBreakerRegistry getDefault()
+    {
+        return DEFAULT;
+    }
+
+    public int getMaxConcurrentRequests()
+    {
+        return _maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests in progress to a single host.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests)
+    {
+        _maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public int getWindowSize()
+    {
+        return _windowSize;
+    }
+
+    /**
+     * Sets the number of most recent requests to a host whose outcome
+     * is tracked.
+     *
+     * @throws IllegalArgumentException if the window is smaller than the
+     *          minimum number of requests, as the circuit could never open.
+     */
+    public void setWindowSize(int windowSize)
+    {
+        checkWindow(windowSize, _minimumRequests);
+        _windowSize = windowSize;
+    }
+
+    public int getMinimumRequests()
+    {
+        return _minimumRequests;
+    }
+
+    /**
+     * Sets the number of requests to a host to track before the circuit
+     * can open.
+     *
+     * @throws IllegalArgumentException if more requests than the window
+     *          size are required, as the circuit could never open.
+     */
+    public void setMinimumRequests(int minimumRequests)
+    {
+        checkWindow(_windowSize, minimumRequests);
+        _minimumRequests = minimumRequests;
+    }
+
+    private static void checkWindow(int windowSize, int minimumRequests)
+    {
+        if (minimumRequests > windowSize)
+            throw new IllegalArgumentException("Minimum requests (" + minimumRequests
+                + ") larger than the window size (" + windowSize + ")");
+    }
+
+    public int getFailureRateThreshold()
+    {
+        return _failureRateThreshold;
+    }
+
+    /**
+     * Sets the percentage of failed requests at which the circuit opens.
+     */
+    public void setFailureRateThreshold(int failureRateThreshold)
+    {
+        _failureRateThreshold = failureRateThreshold;
+    }
+
+    public long getSlowRequestMillis()
+    {
+        return _slowRequestMillis;
+    }
+
+    /**
+     * Sets the duration, in milliseconds, above which a request is slow.
+     */
+    public void setSlowRequestMillis(long slowRequestMillis)
+    {
+        _slowRequestMillis = slowRequestMillis;
+    }
+
+    public int getSlowRequestRateThreshold()
+    {
+        return _slowRequestRateThreshold;
+    }
+
+    /**
+     * Sets the percentage of slow requests at which the circuit opens.
+     */
+    public void setSlowRequestRateThreshold(int slowRequestRateThreshold)
+    {
+        _slowRequestRateThreshold = slowRequestRateThreshold;
+    }
+
+    public long getOpenMillis()
+    {
+        return _openMillis;
+    }
+
+    /**
+     * Sets the time, in milliseconds, during which requests to a host
+     * are rejected once its circuit opened.
+     */
+    public void setOpenMillis(long openMillis)
+    {
+        _openMillis = openMillis;
+    }
+
+    /**
+     * Sets the maximum number of hosts tracked; the least recently
+     * contacted ones are forgotten first.
+     */
+    public synchronized void setMaxHosts(int maxHosts)
+    {
+        _maxHosts = maxHosts;
+    }
+
+    /**
+     * Gets the state of the circuit of the host of the URL:
+     * CLOSED, OPEN or HALF_OPEN.
+     */
+    public int getState(String url)
+    {
+        CircuitBreaker breaker = getBreaker(url, false);
+        return breaker != null ? breaker.getState(System.currentTimeMillis()) : CLOSED;
+    }
+
+    /**
+     * Forgets the state of all hosts.
+     */
+    public synchronized void reset()
+    {
+        _breakers.clear();
+    }
+
+    /**
+     * Gets the circuit breaker of the host of the URL.
+     *
+     * @param create    If true, the breaker is created if needed.
+     * @return          The breaker, or null if the URL is not valid,
+     *                  or if no breaker exists and create is false.
+     */
+    synchronized CircuitBreaker getBreaker(String url, boolean create)
+    {
+        String host = getHostKey(url);
+        if (host == null)
+            return null;
+
+        CircuitBreaker breaker = (CircuitBreaker) _breakers.get(host);
+        if (breaker == null && create)
+        {
+            breaker = new CircuitBreaker(host);
+            _breakers.put(host, breaker);
+        }
+
+        return breaker;
+    }
+
+    private static String getHostKey(String url)
+    {
+        try
+        {
+            URI uri = new URI(url);
+            if (uri.getHost() == null)
+                return null;
+
+            return uri.getScheme() + "://" + uri.getHost().toLowerCase() + ":" + uri.getPort();
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Circuit breaker and bulkhead of a single host.
+     */
+    final class CircuitBreaker
+    {
+        private final String _host;
+
+        private final Semaphore _bulkhead = new Semaphore(_maxConcurrentRequests);
+
+        private final boolean[] _failures = new boolean[Math.max(_windowSize, 1)];
+
+        private final boolean[] _slow = new boolean[_failures.length];
+
+        private int _next;
+
+        private int _count;
+
+        private int _state = CLOSED;
+
+        private long _openedAt;
+
+        /**
+         * The permit of the trial request of the half-open circuit,
+         * or null if no trial is in progress.
+         */
+        private Permit _trial;
+
+        CircuitBreaker(String host)
+        {
+            _host = host;
+        }
+
+        /**
+         * Acquires the permission to place a request to the host.
+         *
+         * @return  The permit to release once the request completed.
+         * @throws HttpRequestRejectedException If the circuit is open,
+         *                                      or the bulkhead is full.
+         */
+        Permit acquire() throws HttpRequestRejectedException
+        {
+            if (! _bulkhead.tryAcquire())
+                throw new HttpRequestRejectedException("Too many concurrent requests to "
+                    + _host, OpenIDException.HTTP_BULKHEAD_FULL);
+
+            Permit permit = acquireCircuit(System.currentTimeMillis());
+            if (permit == null)
+            {
+                _bulkhead.release();
+                throw new HttpRequestRejectedException("Circuit open for "
+                    + _host, OpenIDException.HTTP_CIRCUIT_OPEN);
+            }
+
+            return permit;
+        }
+
+        private synchronized Permit acquireCircuit(long now)
+        {
+            if (getState(now) == OPEN)
+                return null;
+
+            if (_state == HALF_OPEN)
+            {
+                if (_trial != null)
+                    return null;
+
+                _trial = new Permit(true);
+                return _trial;
+            }
+
+            return new Permit(false);
+        }
+
+        /**
+         * Releases the permission acquired for a request,
+         * recording its outcome.
+         *
+         * @param failed    True if the request failed.
+         * @param millis    The duration of the request, in milliseconds.
+         */
+        void release(Permit permit, boolean failed, long millis)
+        {
+            try
+            {
+                record(permit, failed, millis >= _slowRequestMillis,
+                    System.currentTimeMillis());
+            }
+            finally
+            {
+                _bulkhead.release();
+            }
+        }
+
+        /**
+         * Releases the permission acquired for a request whose outcome
+         * says nothing about the host; a new trial request can be placed
+         * if it was the trial request.
+         */
+        void release(Permit permit)
+        {
+            synchronized (this)
+            {
+                if (permit.trial && permit == _trial)
+                    _trial = null;
+            }
+
+            _bulkhead.release();
+        }
+
+        synchronized int getState(long now)
+        {
+            if (_state == OPEN && now - _openedAt >= _openMillis)
+            {
+                LOGGER.info("Circuit half-open for " + _host);
+                _state = HALF_OPEN;
+                _trial = null;
+            }
+
+            return _state;
+        }
+
+        private synchronized void record(Permit permit, boolean failed, boolean slow, long now)
+        {
+            if (_state == HALF_OPEN)
+            {
+                // only the trial decides, not the requests placed before
+                if (! permit.trial || permit != _trial)
+                    return;
+
+                _trial = null;
+                if (failed || slow)
+                    open(now);
+                else
+                    close();
+                return;
+            }
+
+            if (_state == OPEN)
+                return;
+
+            _failures[_next] = failed;
+            _slow[_next] = slow;
+            _next = (_next + 1) % _failures.length;
+            _count = Math.min(_count + 1, _failures.length);
+
+            if (_count < _minimumRequests)
+                return;
+
+            int failures = 0;
+            int slowRequests = 0;
+            for (int i = 0; i < _count; i++)
+            {
+                if (_failures[i]) failures++;
+                if (_slow[i]) slowRequests++;
+            }
+
+            if (failures * 100 >= _failureRateThreshold * _count ||
+                slowRequests * 100 >= _slowRequestRateThreshold * _count)
+                open(now);
+        }
+
+        private void open(long now)
+        {
+            LOGGER.warn("Opening circuit for " + _host + " for " + _openMillis + " ms");
+            _state = OPEN;
+            _openedAt = now;
+        }
+
+        private void close()
+        {
+            LOGGER.info("Closing circuit for " + _host);
+            _state = CLOSED;
+            _next = 0;
+            _count = 0;
+        }
+    }
+
+    /**
+     * Permission to place a request to a host.
+     */
+    static final class Permit
+    {
+        /**
+         * True for the trial request of a half-open circuit, whose
+         * outcome closes the circuit or opens it again.
+         */
+        final boolean trial;
+
+        Permit(boolean trial)
+        {
+            this.trial = trial;
+        }
+    }
+}
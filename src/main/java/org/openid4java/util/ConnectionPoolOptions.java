@@ -0,0 +1,179 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+/**
+ * Container class for the options of the HTTP connection pool shared by
+ * the HttpClients constructed by the {@link HttpClientFactory}.
+ *
+ * @see HttpClientFactory#setConnectionPoolOptions(ConnectionPoolOptions)
+ */
+public class ConnectionPoolOptions
+{
+    /**
+     * Maximum number of pooled connections to a single route (host).
+     * Default 20.
+     */
+    private int _maxConnectionsPerRoute = 20;
+
+    /**
+     * Maximum number of pooled connections, for all routes. Default 100.
+     */
+    private int _maxTotalConnections = 100;
+
+    /**
+     * Maximum time, in milliseconds, a connection is kept alive for reuse
+     * when the server does not specify a shorter keep-alive timeout.
+     * Default 30000 milliseconds.
+     */
+    private long _keepAliveDuration = 30000;
+
+    /**
+     * Time, in milliseconds, after which idle pooled connections are closed.
+     * Default 30000 milliseconds.
+     */
+    private long _idleConnectionTimeout = 30000;
+
+    /**
+     * Interval, in milliseconds, at which expired and idle connections are
+     * closed by a background thread. Zero or a negative value disables the
+     * background thread. Default 5000 milliseconds.
+     */
+    private long _reaperInterval = 5000;
+
+    /**
+     * If true, pooled connections are checked for staleness
+     * before being reused. Default true.
+     */
+    private boolean _staleConnectionCheck = true;
+
+    /**
+     * Constructs a set of connection pool options with the default values.
+     */
+    public ConnectionPoolOptions()
+    {
+    }
+
+    /**
+     * Creates a new ConnectionPoolOptions object as a clone of the provided
+     * parameter.
+     *
+     * @param other     ConnectionPoolOptions instance to be cloned.
+     */
+    public ConnectionPoolOptions(ConnectionPoolOptions other)
+    {
+        this._maxConnectionsPerRoute = other._maxConnectionsPerRoute;
+        this._maxTotalConnections = other._maxTotalConnections;
+        this._keepAliveDuration = other._keepAliveDuration;
+        this._idleConnectionTimeout = other._idleConnectionTimeout;
+        this._reaperInterval = other._reaperInterval;
+        this._staleConnectionCheck = other._staleConnectionCheck;
+    }
+
+    /**
+     * Gets the maximum number of pooled connections to a single route.
+     */
+    public int getMaxConnectionsPerRoute()
+    {
+        return _maxConnectionsPerRoute;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections to a single route.
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+    {
+        this._maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Gets the maximum number of pooled connections, for all routes.
+     */
+    public int getMaxTotalConnections()
+    {
+        return _maxTotalConnections;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections, for all routes.
+     */
+    public void setMaxTotalConnections(int maxTotalConnections)
+    {
+        this._maxTotalConnections = maxTotalConnections;
+    }
+
+    /**
+     * Gets the maximum time, in milliseconds, a connection is kept alive
+     * for reuse.
+     */
+    public long getKeepAliveDuration()
+    {
+        return _keepAliveDuration;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a connection is kept alive
+     * for reuse. The server's Keep-Alive timeout is used if shorter.
+     */
+    public void setKeepAliveDuration(long keepAliveDuration)
+    {
+        this._keepAliveDuration = keepAliveDuration;
+    }
+
+    /**
+     * Gets the time, in milliseconds, after which idle pooled connections
+     * are closed.
+     */
+    public long getIdleConnectionTimeout()
+    {
+        return _idleConnectionTimeout;
+    }
+
+    /**
+     * Sets the time, in milliseconds, after which idle pooled connections
+     * are closed.
+     */
+    public void setIdleConnectionTimeout(long idleConnectionTimeout)
+    {
+        this._idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    /**
+     * Gets the interval, in milliseconds, at which expired and idle
+     * connections are closed by a background thread.
+     */
+    public long getReaperInterval()
+    {
+        return _reaperInterval;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, at which expired and idle
+     * connections are closed by a background thread. Zero or a negative
+     * value disables the background thread.
+     */
+    public void setReaperInterval(long reaperInterval)
+    {
+        this._reaperInterval = reaperInterval;
+    }
+
+    /**
+     * Returns true if pooled connections are checked for staleness
+     * before being reused.
+     */
+    public boolean isStaleConnectionCheck()
+    {
+        return _staleConnectionCheck;
+    }
+
+    /**
+     * Sets the flag for checking pooled connections for staleness
+     * before they are reused.
+     */
+    public void setStaleConnectionCheck(boolean staleConnectionCheck)
+    {
+        this._staleConnectionCheck = staleConnectionCheck;
+    }
+}
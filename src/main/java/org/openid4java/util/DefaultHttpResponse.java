@@ -0,0 +1,561 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.Header;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Default {@link HttpResponse} implementation used by the built-in
+ * {@link HttpFetcher}s, carrying the information needed to cache
+ * and revalidate the response.
+ *
+ * @author Marius Scurtescu, Johnny Bufu
+ */
+final class DefaultHttpResponse implements HttpResponse
+{
+    /**
+     * The status code of the HTTP response.
+     */
+    private int _statusCode;
+
+    /**
+     * The status line of the HTTP response.
+     */
+    private String _statusLine;
+
+    /**
+     * The maximum HTTP redirects limit that was configured
+     * when this HTTP response was obtained.
+     */
+    private int _maxRedirectsFollowed;
+
+    /**
+     * The final URI from where the document was obtained,
+     * after following redirects.
+     */
+    private String _finalUri;
+
+    /**
+     * Map of header names  List of Header objects of the HTTP response.
+     */
+    private Map _responseHeaders;
+
+    /**
+     * The HTTP response body, if provided as a String.
+     */
+    private String _body;
+
+    /**
+     * The HTTP response body bytes, if provided as bytes.
+     */
+    private byte[] _bodyBytes;
+
+    /**
+     * The charset of the HTTP response body bytes.
+     */
+    private Charset _charset;
+
+    /**
+     * Flag to indicate if the HTTP response size exceeded the maximum
+     * allowed by the (default) HttpRequestOptions.
+     */
+    private boolean _bodySizeExceeded = false;
+
+    /**
+     * Flag to indicate if only the head section of the HTML response
+     * body was read.
+     *
+     * @see HttpRequestOptions#setHtmlHeadOnly(boolean)
+     */
+    private boolean _bodyPartial = false;
+
+    /**
+     * timestamp of creation 
+     * 
+     *(number of milliseconds since January 1, 1970, 00:00:00 GMT)
+     */
+    private long _timestamp;
+
+    /**
+     * Freshness lifetime in milliseconds advertised by the server through
+     * the Cache-Control max-age directive or the Expires header;
+     * -1 if the server did not specify one.
+     */
+    private long _freshnessLifetime = -1;
+
+    /**
+     * Flag set if the server asked for the response not to be stored
+     * (Cache-Control: no-store).
+     */
+    private boolean _noStore = false;
+
+    /**
+     * Flag set if the server asked for the response to be revalidated
+     * before each use (Cache-Control: no-cache).
+     */
+    private boolean _noCache = false;
+
+
+    /**
+     * Constructs a new HttpResponse with the provided parameters.
+     */
+    public DefaultHttpResponse(int statusCode, String statusLine,
+                        int redirectsFollowed, String finalUri,
+                        Header[] responseHeaders, String body)
+    {
+        this(statusCode, statusLine, redirectsFollowed, finalUri,
+            responseHeaders, body, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructs a new HttpResponse with the provided parameters
+     * and creation timestamp.
+     */
+    DefaultHttpResponse(int statusCode, String statusLine,
+                        int redirectsFollowed, String finalUri,
+                        Header[] responseHeaders, String body, long timestamp)
+    {
+        this(statusCode, statusLine, redirectsFollowed, finalUri,
+            responseHeaders, body, null, StandardCharsets.UTF_8, timestamp);
+    }
+
+    /**
+     * Constructs a new HttpResponse with the provided parameters,
+     * keeping the body as bytes in the provided charset.
+     */
+    DefaultHttpResponse(int statusCode, String statusLine,
+                        int redirectsFollowed, String finalUri,
+                        Header[] responseHeaders, byte[] body, Charset charset)
+    {
+        this(statusCode, statusLine, redirectsFollowed, finalUri,
+            responseHeaders, null, body, charset, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructs a new HttpResponse with the provided parameters,
+     * keeping the body as bytes in the provided charset,
+     * and creation timestamp.
+     */
+    DefaultHttpResponse(int statusCode, String statusLine,
+                        int redirectsFollowed, String finalUri,
+                        Header[] responseHeaders, byte[] body, Charset charset,
+                        long timestamp)
+    {
+        this(statusCode, statusLine, redirectsFollowed, finalUri,
+            responseHeaders, null, body, charset, timestamp);
+    }
+
+    private DefaultHttpResponse(int statusCode, String statusLine,
+                                int redirectsFollowed, String finalUri,
+                                Header[] responseHeaders, String body,
+                                byte[] bodyBytes, Charset charset, long timestamp)
+    {
+        _statusCode = statusCode;
+        _statusLine = statusLine;
+
+        _maxRedirectsFollowed = redirectsFollowed;
+        _finalUri = finalUri;
+
+        _responseHeaders = new HashMap();
+        if (responseHeaders != null)
+        {
+            String headerName;
+            Header header;
+            for (int i=0; i < responseHeaders.length; i++)
+            {
+                // HTTP header names are case-insensitive
+                headerName = responseHeaders[i].getName().toLowerCase();
+                header = responseHeaders[i];
+
+                List headerList = (List) _responseHeaders.get(headerName);
+                if (headerList != null)
+                    headerList.add(responseHeaders[i]);
+                else
+                    _responseHeaders.put(headerName,
+                        new ArrayList(Arrays.asList(new Header[] {header})));
+            }
+        }
+
+        _body = body;
+        _bodyBytes = bodyBytes;
+        _charset = charset;
+        _timestamp = timestamp;
+
+        parseCacheHeaders();
+    }
+
+    /**
+     * Extracts the caching directives from the
+     * Cache-Control, Pragma, Expires and Date headers.
+     */
+    private void parseCacheHeaders()
+    {
+        long maxAge = -1;
+
+        Header[] cacheControl = getResponseHeaders("cache-control");
+        for (int i = 0; i < cacheControl.length; i++)
+        {
+            if (cacheControl[i].getValue() == null) continue;
+
+            String[] directives = cacheControl[i].getValue().split(",");
+            for (int j = 0; j < directives.length; j++)
+            {
+                String directive = directives[j].trim().toLowerCase();
+
+                if (directive.equals("no-store"))
+                    _noStore = true;
+                else if (directive.startsWith("no-cache"))
+                    _noCache = true;
+                else if (directive.startsWith("max-age="))
+                {
+                    try
+                    {
+                        maxAge = Long.parseLong(
+                            directive.substring(8).replace("\"", "").trim());
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        // invalid max-age, treat the response as stale
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+
+        if (cacheControl.length == 0)
+        {
+            Header pragma = getResponseHeader("pragma");
+            if (pragma != null && pragma.getValue() != null &&
+                pragma.getValue().toLowerCase().contains("no-cache"))
+                _noCache = true;
+        }
+
+        if (maxAge >= 0)
+        {
+            _freshnessLifetime = maxAge * 1000;
+        }
+        else if (getResponseHeader("expires") != null)
+        {
+            long expires = parseDate(getResponseHeader("expires"));
+            long date = parseDate(getResponseHeader("date"));
+            if (date < 0)
+                date = _timestamp;
+
+            // invalid dates (e.g. "0") mean already expired
+            _freshnessLifetime = expires < 0 ? 0 : Math.max(0, expires - date);
+        }
+    }
+
+    /**
+     * Parses a HTTP date header.
+     *
+     * @return  The date in milliseconds since the epoch,
+     *          or -1 if the header is missing or invalid.
+     */
+    private static long parseDate(Header header)
+    {
+        if (header == null || header.getValue() == null)
+            return -1;
+
+        try
+        {
+            return ZonedDateTime.parse(header.getValue().trim(),
+                DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Creates a fresh copy of this response after the server confirmed
+     * (with a 304 Not Modified status) that it is still valid, updating
+     * the stored headers with the ones from the 304 response.
+     */
+    public DefaultHttpResponse revalidate(Header[] notModifiedHeaders)
+    {
+        Set updatedNames = new HashSet();
+        List headers = new ArrayList();
+        for (int i = 0; i < notModifiedHeaders.length; i++)
+        {
+            String headerName = notModifiedHeaders[i].getName().toLowerCase();
+            if ("content-length".equals(headerName)) continue;
+
+            updatedNames.add(headerName);
+            headers.add(notModifiedHeaders[i]);
+        }
+
+        Iterator iter = _responseHeaders.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if (! updatedNames.contains(entry.getKey()))
+                headers.addAll((List) entry.getValue());
+        }
+
+        DefaultHttpResponse resp = new DefaultHttpResponse(_statusCode,
+            _statusLine, _maxRedirectsFollowed, _finalUri,
+            (Header[]) headers.toArray(new Header[headers.size()]),
+            _body, _bodyBytes, _charset, System.currentTimeMillis());
+        resp.setBodySizeExceeded(_bodySizeExceeded);
+        resp.setBodyPartial(_bodyPartial);
+        return resp;
+    }
+
+    /**
+     * Gets the freshness lifetime in milliseconds advertised by the server,
+     * or -1 if the server did not specify one.
+     */
+    public long getFreshnessLifetime()
+    {
+        return _freshnessLifetime;
+    }
+
+    /**
+     * Returns true if the server asked for the response not to be stored.
+     */
+    public boolean isNoStore()
+    {
+        return _noStore;
+    }
+
+    /**
+     * Returns true if the server asked for the response
+     * to be revalidated before each use.
+     */
+    public boolean isNoCache()
+    {
+        return _noCache;
+    }
+
+    /**
+     * Gets the value of the ETag header, or null if not present.
+     */
+    public String getETag()
+    {
+        Header etag = getResponseHeader("etag");
+        return etag != null ? etag.getValue() : null;
+    }
+
+    /**
+     * Gets the value of the Last-Modified header, or null if not present.
+     */
+    public String getLastModified()
+    {
+        Header lastModified = getResponseHeader("last-modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Returns true if the response can be revalidated with
+     * a conditional request.
+     */
+    public boolean hasValidators()
+    {
+        return getETag() != null || getLastModified() != null;
+    }
+
+    /**
+     * Gets the status code of the HttpResponse.
+     */
+    public int getStatusCode()
+    {
+        return _statusCode;
+    }
+
+    /**
+     * Gets the status line of the HttpResponse.
+     */
+    public String getStatusLine()
+    {
+        return _statusLine;
+    }
+
+    /**
+     * Gets the maximum HTTP redirects limit that was configured
+     * when this HTTP response was obtained.
+     */
+    public int getMaxRedirectsFollowed()
+    {
+        return _maxRedirectsFollowed;
+    }
+
+    /**
+     * Gets the final URI from where the document was obtained,
+     * after following redirects.
+     */
+    public String getFinalUri()
+    {
+        return _finalUri;
+    }
+
+    /**
+     * Gets the first header matching the provided headerName parameter,
+     * or null if no header with that name exists.
+     */
+    public Header getResponseHeader(String headerName)
+    {
+        List headerList = (List) _responseHeaders.get(headerName.toLowerCase());
+
+        if (headerList != null && headerList.size() > 0)
+            return (Header) headerList.get(0);
+        else
+            return null;
+    }
+
+    /**
+     * Gets an array of Header objects for the provided headerName parameter.
+     */
+    public Header[] getResponseHeaders(String headerName)
+    {
+        List headerList = (List) _responseHeaders.get(headerName.toLowerCase());
+
+        if (headerList != null)
+            return (Header[]) headerList.toArray(new Header[headerList.size()]);
+        else
+            return new Header[]{}; // empty array, same as HttpClient's method
+    }
+
+    /**
+     * Gets all the headers of the HttpResponse.
+     */
+    Header[] getAllHeaders()
+    {
+        List headers = new ArrayList();
+
+        Iterator iter = _responseHeaders.values().iterator();
+        while (iter.hasNext())
+            headers.addAll((List) iter.next());
+
+        return (Header[]) headers.toArray(new Header[headers.size()]);
+    }
+
+    /**
+     * Gets the HttpResponse body.
+     */
+    public String getBody()
+    {
+        if (_body == null && _bodyBytes != null)
+            return new String(_bodyBytes, _charset);
+
+        return _body;
+    }
+
+    /**
+     * Gets the HttpResponse body bytes. The returned array is shared
+     * by the users of a cached response and must not be modified.
+     */
+    public byte[] getBodyBytes()
+    {
+        if (_bodyBytes == null && _body != null)
+            return _body.getBytes(_charset);
+
+        return _bodyBytes;
+    }
+
+    /**
+     * Gets the name of the charset of the body bytes.
+     */
+    public String getBodyCharset()
+    {
+        return _charset.name();
+    }
+
+    /**
+     * Returns true if the HTTP response size exceeded the maximum
+     * allowed by the (default) HttpRequestOptions.
+     * @return
+     */
+    public boolean isBodySizeExceeded()
+    {
+        return _bodySizeExceeded;
+    }
+
+
+    /**
+     * Sets the flag to indicate whether the HTTP response size exceeded
+     * the maximum allowed by the (default) HttpRequestOptions.
+     */
+    public void setBodySizeExceeded(boolean bodySizeExceeded)
+    {
+        this._bodySizeExceeded = bodySizeExceeded;
+    }
+
+    /**
+     * Returns true if only the head section of the HTML response body
+     * was read, as requested by {@link HttpRequestOptions#isHtmlHeadOnly()}.
+     */
+    public boolean isBodyPartial()
+    {
+        return _bodyPartial;
+    }
+
+    public void setBodyPartial(boolean bodyPartial)
+    {
+        _bodyPartial = bodyPartial;
+    }
+
+    /**
+     * Gets the size of the (possibly truncated) body: in bytes if the body
+     * was read as bytes, in characters otherwise.
+     */
+    int getBodySize()
+    {
+        if (_bodyBytes != null)
+            return _bodyBytes.length;
+
+        return _body != null ? _body.length() : 0;
+    }
+
+    public long getTimestamp()
+    {
+
+        return _timestamp;
+    }
+
+    /**
+     * Gets the approximate size in bytes of this response,
+     * used to bound the cache size.
+     */
+    public long getWeight()
+    {
+        long weight = 64 + (_finalUri != null ? _finalUri.length() : 0);
+
+        Iterator headerLists = _responseHeaders.values().iterator();
+        while (headerLists.hasNext())
+        {
+            Iterator headers = ((List) headerLists.next()).iterator();
+            while (headers.hasNext())
+            {
+                Header header = (Header) headers.next();
+                weight += header.getName().length() +
+                        (header.getValue() != null ? header.getValue().length() : 0);
+            }
+        }
+
+        if (_bodyBytes != null)
+            weight += _bodyBytes.length;
+        else if (_body != null)
+            weight += _body.length();
+
+        return weight;
+    }
+
+}
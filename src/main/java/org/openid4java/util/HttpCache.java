@@ -4,29 +4,30 @@
 
 package org.openid4java.util;
 
-import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.AllClientPNames;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Date;
+import java.util.concurrent.Callable;
 
 import javax.net.ssl.SSLContext;
 
@@ -47,16 +48,25 @@ public class HttpCache extends AbstractHttpFetcher
     private HttpClient _client;
 
     /**
-     * Cache for GET requests. Map of URL -> HttpResponse.
+     * Default maximum number of entries kept in each of the GET and HEAD caches.
      */
-    private Map _getCache = new HashMap();
+    public static final int DEFAULT_MAX_CACHE_ENTRIES = 1000;
 
-    // todo: cache management
+    /**
+     * Default maximum size, in bytes, of the responses kept in each of the
+     * GET and HEAD caches.
+     */
+    public static final long DEFAULT_MAX_CACHE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Cached GET and HEAD responses.
+     */
+    private final HttpCacheStore _store;
 
     /**
-     * Cache for HEAD requests. Map of URL -> HttpResponse.
+     * Coalesces concurrent identical GET and HEAD requests.
      */
-    private Map _headCache = new HashMap();
+    private final RequestCoalescer _coalescer;
 
     public HttpCache()
     {
@@ -83,47 +93,162 @@ public class HttpCache extends AbstractHttpFetcher
                 getDefaultRequestOptions().getSocketTimeout(),
                 getDefaultRequestOptions().getConnTimeout(),
                 null, sslContext, hostnameVerifier);
+        _store = new HttpCacheStore();
+        _coalescer = new RequestCoalescer();
+    }
+
+    private HttpCache(HttpClient client, HttpCacheStore store, RequestCoalescer coalescer)
+    {
+        super();
+        _client = client;
+        _store = store;
+        _coalescer = coalescer;
+    }
+
+    /**
+     * Creates a new HttpCache sharing the HttpClient (and its connection
+     * pool) and the cached responses of this one, but with its own
+     * default request options.
+     * <p>
+     * The cache settings, such as {@link #setMaxCacheEntries(int)}, apply
+     * to all the sharing instances.
+     */
+    public HttpCache share()
+    {
+        return new HttpCache(_client, _store, _coalescer);
+    }
+
+    /**
+     * Sets the maximum number of entries kept in each of the GET and HEAD
+     * caches; least recently used entries are evicted first.
+     */
+    public void setMaxCacheEntries(int maxCacheEntries)
+    {
+        _store.setMaxEntries(maxCacheEntries);
+    }
+
+    /**
+     * Sets the maximum (approximate) size in bytes of the responses kept
+     * in each of the GET and HEAD caches; least recently used entries
+     * are evicted first.
+     */
+    public void setMaxCacheSize(long maxCacheSize)
+    {
+        _store.setMaxSize(maxCacheSize);
     }
 
     /**
-     * Removes a cached GET response.
+     * Gets the statistics (leased, pending and available connections)
+     * of the connection pool, for all routes.
      *
-     * @param url   The URL for which to remove the cached response.
+     * @return  The pool statistics, or null if connections are not pooled.
+     * @see HttpClientFactory#setConnectionPoolOptions(ConnectionPoolOptions)
      */
-    private void removeGet(String url)
+    public PoolStats getConnectionPoolStats()
     {
-        if (_getCache.keySet().contains(url))
-        {
-            LOGGER.info("Removing cached GET response for " + url);
-            _getCache.remove(url);
-        }
-        else
-            LOGGER.info("NOT removing cached GET for " + url + " NOT FOUND.");
+        return HttpClientFactory.getConnectionPoolStats(_client);
+    }
+
+    /**
+     * Gets the statistics (leased, pending and available connections)
+     * of the connection pool, for the route used to reach the provided URL.
+     *
+     * @return  The pool statistics, or null if connections are not pooled.
+     */
+    public PoolStats getConnectionPoolStats(String url)
+    {
+        return HttpClientFactory.getConnectionPoolStats(_client, url);
+    }
+
+    /**
+     * Keeps a copy of the successful GET responses in the provided directory,
+     * so that the cache survives restarts: the responses persisted there
+     * by a previous run are used until they expire.
+     * <p>
+     * Fetchers configured with the same directory share its contents;
+     * a directory can be used by a single process at a time.
+     *
+     * @param directory     The cache directory, created if needed,
+     *                      or null to cache responses in memory only.
+     * @throws IOException  If the directory cannot be used.
+     */
+    public void setPersistentCacheDirectory(File directory) throws IOException
+    {
+        _store.setDiskCache(directory != null ? HttpResponseDiskCache.open(directory) : null);
+    }
+
+    /**
+     * Removes all cached GET and HEAD responses.
+     */
+    public void clearCache()
+    {
+        _store.clear();
+    }
+
+    /**
+     * Gets the maximum time a thread waits for an identical request placed
+     * by another thread: the time a single request is allowed to take.
+     */
+    private long getCoalescingTimeout(HttpRequestOptions requestOptions)
+    {
+        return (long) requestOptions.getConnTimeout() + requestOptions.getSocketTimeout();
     }
 
     /* (non-Javadoc)
      * @see org.openid4java.util.HttpFetcher#get(java.lang.String, org.openid4java.util.HttpRequestOptions)
      */
-    public HttpResponse get(String url, HttpRequestOptions requestOptions)
+    public HttpResponse get(final String url, HttpRequestOptions options)
         throws IOException
     {
-        DefaultHttpResponse resp = (DefaultHttpResponse) _getCache.get(url);
+        // the options may be modified by other threads while the request is placed
+        final HttpRequestOptions requestOptions = options.snapshot();
+
+        final DefaultHttpResponse cached = _store.lookupGet(url, requestOptions);
 
-        if (resp != null)
+        if (cached != null && _store.isFresh(cached, requestOptions))
         {
-            if (match(resp, requestOptions))
-            {
-                LOGGER.info("Returning cached GET response for " + url);
-                return resp;
-            } else
-            {
-                LOGGER.info("Removing cached GET for " + url);
-                removeGet(url);
-            }
+            LOGGER.info("Returning cached GET response for " + url);
+            return cached;
         }
 
+        IOException failure = _store.lookupFailure("GET", url, requestOptions);
+        if (failure != null)
+            throw failure;
+
+        return _coalescer.execute(
+            RequestCoalescer.key("GET", url, requestOptions),
+            getCoalescingTimeout(requestOptions),
+            new Callable()
+            {
+                public Object call() throws IOException
+                {
+                    try
+                    {
+                        return fetchGet(url, cached, requestOptions);
+                    }
+                    catch (IOException e)
+                    {
+                        _store.storeFailure("GET", url, e, requestOptions);
+                        throw e;
+                    }
+                }
+            });
+    }
+
+    /**
+     * Places a GET request and caches the response.
+     *
+     * @param url               The HTTP URL to GET.
+     * @param cached            Stale cached response to revalidate, or null.
+     * @param requestOptions    The options to use for the request.
+     */
+    private HttpResponse fetchGet(String url, DefaultHttpResponse cached,
+                                  HttpRequestOptions requestOptions)
+        throws IOException
+    {
         HttpGet get = new HttpGet(url);
 
+        DefaultHttpResponse resp;
         org.apache.http.HttpResponse httpResponse = null;
         HttpEntity responseEntity = null;
 
@@ -132,21 +257,40 @@ public class HttpCache extends AbstractHttpFetcher
             get.getParams().setParameter(AllClientPNames.HANDLE_REDIRECTS, Boolean.TRUE);
             HttpUtils.setRequestOptions(get, requestOptions);
 
+            if (cached != null)
+            {
+                if (LOGGER.isDebugEnabled())
+                    LOGGER.debug("Revalidating stale cached GET response for " + url);
+                if (cached.getETag() != null)
+                    get.setHeader("If-None-Match", cached.getETag());
+                if (cached.getLastModified() != null)
+                    get.setHeader("If-Modified-Since", cached.getLastModified());
+            }
+
             httpResponse = _client.execute(get);
             responseEntity = httpResponse.getEntity();
             int statusCode = httpResponse.getStatusLine().getStatusCode();
             String statusLine = httpResponse.getStatusLine().getReasonPhrase();
 
-            ResponseBody body = getResponseBody(responseEntity,
-                requestOptions.getMaxBodySize());
-
-            resp = new DefaultHttpResponse(statusCode, statusLine,
-                    requestOptions.getMaxRedirects(), get.getURI().toString(),
-                    httpResponse.getAllHeaders(), body.getBody());
-            resp.setBodySizeExceeded(body.isBodyTruncated());
+            if (cached != null && statusCode == HttpStatus.SC_NOT_MODIFIED)
+            {
+                LOGGER.info("Cached GET response for " + url + " not modified.");
+                resp = cached.revalidate(httpResponse.getAllHeaders());
+            }
+            else
+            {
+                ResponseBody body = getResponseBody(get, responseEntity,
+                    requestOptions.getMaxBodySize(), requestOptions.isHtmlHeadOnly());
+
+                resp = new DefaultHttpResponse(statusCode, statusLine,
+                        requestOptions.getMaxRedirects(), get.getURI().toString(),
+                        httpResponse.getAllHeaders(), body.getBytes(), body.getCharset());
+                resp.setBodySizeExceeded(body.isBodyTruncated());
+                resp.setBodyPartial(body.isBodyPartial());
+            }
 
             // save result in cache
-            _getCache.put(url, resp);
+            _store.storeGet(url, resp, requestOptions);
         }
         finally
         {
@@ -166,7 +310,9 @@ public class HttpCache extends AbstractHttpFetcher
 
     @Override
     public HttpResponse post(String url, Map<String, String> parameters,
-        HttpRequestOptions requestOptions) throws IOException {
+        HttpRequestOptions options) throws IOException {
+
+      HttpRequestOptions requestOptions = options.snapshot();
 
       // we don't actually cache posts, since they are used for
       // association requests and signature verification
@@ -190,12 +336,12 @@ public class HttpCache extends AbstractHttpFetcher
           int statusCode = httpResponse.getStatusLine().getStatusCode();
           String statusLine = httpResponse.getStatusLine().getReasonPhrase();
 
-          ResponseBody body = getResponseBody(httpResponse.getEntity(),
-              requestOptions.getMaxBodySize());
+          ResponseBody body = getResponseBody(post, httpResponse.getEntity(),
+              requestOptions.getMaxBodySize(), false);
 
           resp = new DefaultHttpResponse(statusCode, statusLine,
                   requestOptions.getMaxRedirects(), post.getURI().toString(),
-                  httpResponse.getAllHeaders(), body.getBody());
+                  httpResponse.getAllHeaders(), body.getBytes(), body.getCharset());
           resp.setBodySizeExceeded(body.isBodyTruncated());
       }
       finally
@@ -206,121 +352,99 @@ public class HttpCache extends AbstractHttpFetcher
     }
 
     /**
-     * Returns content of an HTTP response entitity, but no more than maxBytes.
+     * Returns content of an HTTP response entitity, but no more than maxBytes,
+     * decoded with the charset of the response.
+     * <p>
+     * If htmlHeadOnly is set and the response is an HTML page, the reading
+     * stops at the end of the head section, and the request is aborted
+     * rather than draining the rest of the body.
      * @throws IOException
      */
-    private ResponseBody getResponseBody(HttpEntity response, int maxBodySize) throws IOException {
-      InputStream httpBodyInput = response.getContent();
+    private ResponseBody getResponseBody(HttpUriRequest request, HttpEntity response,
+        int maxBodySize, boolean htmlHeadOnly) throws IOException {
+      InputStream httpBodyInput = response != null ? response.getContent() : null;
       if (httpBodyInput == null) {
-        return new ResponseBody(null, false);
+        return new ResponseBody(null, ResponseBodyBuffer.DEFAULT_CHARSET, false);
       }
 
-      // trim down maxBodySize if we know the content is smaller than
-      // maxBodySize
-      if ((response.getContentLength() > 0)
-          && (response.getContentLength() < maxBodySize)) {
-        maxBodySize = (int) response.getContentLength();
-      }
+      String contentType = response.getContentType() != null ?
+          response.getContentType().getValue() : null;
 
-      byte data[] = new byte[maxBodySize];
-
-      int totalRead = 0;
-      int currentRead;
-      while (totalRead < maxBodySize)
+      ResponseBodyBuffer buffer = ResponseBodyBuffer.acquire(
+          maxBodySize, response.getContentLength());
+      try
       {
-          currentRead = httpBodyInput.read(
-                  data, totalRead, maxBodySize - totalRead);
-
-          if (currentRead == -1) break;
-
-          totalRead += currentRead;
+          buffer.setHtmlHeadOnly(htmlHeadOnly && ResponseBodyBuffer.isHtml(contentType));
+          buffer.readFrom(httpBodyInput);
+
+          if (buffer.isHtmlHeadComplete())
+          {
+              if (LOGGER.isDebugEnabled())
+                  LOGGER.debug("HTML head complete, aborting " + request.getURI());
+              request.abort();
+          }
+          else
+          {
+              httpBodyInput.close();
+          }
+
+          if (LOGGER.isDebugEnabled()) LOGGER.debug("Read " + buffer.size() + " bytes.");
+
+          return buffer.toBody(ResponseBodyBuffer.getCharset(contentType));
+      }
+      finally
+      {
+          buffer.release();
       }
-
-      boolean bodySizeExceeded = (httpBodyInput.read() > 0);
-
-      httpBodyInput.close();
-
-      if (LOGGER.isDebugEnabled()) LOGGER.debug("Read " + totalRead + " bytes.");
-
-      return new ResponseBody(new String(data, 0, totalRead), bodySizeExceeded);
     }
 
-    private boolean match(DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#head(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse head(final String url, HttpRequestOptions options)
+            throws IOException
     {
-        // use cache?
-        if ( resp != null && ! requestOptions.isUseCache())
-        {
-            LOGGER.info("Explicit fresh GET requested; removing cached copy");
-            return false;
-        }
+        final HttpRequestOptions requestOptions = options.snapshot();
 
-        //is cache fresh?
-        if ( resp != null && (requestOptions.getCacheTTLSeconds() >= 0))
-        {
-            long cacheTTL = requestOptions.getCacheTTLSeconds() * 1000;
-            Date now = new Date();
-            long currentTime = now.getTime();
-            long cacheExpTime = resp.getTimestamp() + cacheTTL;
-            if (cacheExpTime < currentTime)
-            {
-
-                String cacheExpTimeStr = (new Date(cacheExpTime)).toString();
-                LOGGER.info("Cache Expired at " + cacheExpTimeStr + "; removing cached copy");
-                return false;
-        		
-    	    }
-        }
+        DefaultHttpResponse cached = _store.lookupHead(url, requestOptions);
 
-        // content type rules
-        String requiredContentType = requestOptions.getContentType();
-        if (resp != null && requiredContentType != null)
+        if (cached != null)
         {
-            Header responseContentType = resp.getResponseHeader("content-type");
-            if ( responseContentType != null &&
-                 responseContentType.getValue() != null &&
-                 !responseContentType.getValue().split(";")[0]
-                     .equalsIgnoreCase(requiredContentType) )
-            {
-                LOGGER.info("Cached GET response does not match " +
-                    "the required content type, removing.");
-                return false;
-            }
+            LOGGER.info("Returning cached HEAD response for " + url);
+            return cached;
         }
 
-        if (resp != null &&
-            resp.getMaxRedirectsFollowed() > requestOptions.getMaxRedirects())
-        {
-            LOGGER.info("Cached GET response used " +
-                      resp.getMaxRedirectsFollowed() +
-                      " max redirects; current requirement is: " +
-                      requestOptions.getMaxRedirects());
-            return false;
-        }
+        IOException failure = _store.lookupFailure("HEAD", url, requestOptions);
+        if (failure != null)
+            throw failure;
 
-        return true;
+        return _coalescer.execute(
+            RequestCoalescer.key("HEAD", url, requestOptions),
+            getCoalescingTimeout(requestOptions),
+            new Callable()
+            {
+                public Object call() throws IOException
+                {
+                    try
+                    {
+                        return fetchHead(url, requestOptions);
+                    }
+                    catch (IOException e)
+                    {
+                        _store.storeFailure("HEAD", url, e, requestOptions);
+                        throw e;
+                    }
+                }
+            });
     }
 
-    /* (non-Javadoc)
-     * @see org.openid4java.util.HttpFetcher#head(java.lang.String, org.openid4java.util.HttpRequestOptions)
+    /**
+     * Places a HEAD request and caches the response.
      */
-    public HttpResponse head(String url, HttpRequestOptions requestOptions)
+    private HttpResponse fetchHead(String url, HttpRequestOptions requestOptions)
             throws IOException
     {
-        DefaultHttpResponse resp = (DefaultHttpResponse) _headCache.get(url);
-
-        if (resp != null)
-        {
-            if (match(resp, requestOptions))
-            {
-                LOGGER.info("Returning cached HEAD response for " + url);
-                return resp;
-            } else
-            {
-                LOGGER.info("Removing cached HEAD for " + url);
-                removeGet(url);
-            }
-        }
-
+        DefaultHttpResponse resp;
         HttpHead head = new HttpHead(url);
 
         org.apache.http.HttpResponse httpResponse = null;
@@ -342,7 +466,7 @@ public class HttpCache extends AbstractHttpFetcher
                     httpResponse.getAllHeaders(), null);
 
             // save result in cache
-            _headCache.put(url, resp);
+            _store.storeHead(url, resp, requestOptions);
         }
         finally
         {
@@ -351,208 +475,4 @@ public class HttpCache extends AbstractHttpFetcher
 
         return resp;
     }
-
-    private static class DefaultHttpResponse implements HttpResponse
-    {
-        /**
-         * The status code of the HTTP response.
-         */
-        private int _statusCode;
-
-        /**
-         * The status line of the HTTP response.
-         */
-        private String _statusLine;
-
-        /**
-         * The maximum HTTP redirects limit that was configured
-         * when this HTTP response was obtained.
-         */
-        private int _maxRedirectsFollowed;
-
-        /**
-         * The final URI from where the document was obtained,
-         * after following redirects.
-         */
-        private String _finalUri;
-
-        /**
-         * Map of header names  List of Header objects of the HTTP response.
-         */
-        private Map _responseHeaders;
-
-        /**
-         * The HTTP response body.
-         */
-        private String _body;
-
-        /**
-         * Flag to indicate if the HTTP response size exceeded the maximum
-         * allowed by the (default) HttpRequestOptions.
-         */
-        private boolean _bodySizeExceeded = false;
-
-        /**
-         * timestamp of creation 
-         * 
-         *(number of milliseconds since January 1, 1970, 00:00:00 GMT)
-         */
-        private long _timestamp;
-
-
-        /**
-         * Constructs a new HttpResponse with the provided parameters.
-         */
-        public DefaultHttpResponse(int statusCode, String statusLine,
-                            int redirectsFollowed, String finalUri,
-                            Header[] responseHeaders, String body)
-        {
-            _statusCode = statusCode;
-            _statusLine = statusLine;
-
-            _maxRedirectsFollowed = redirectsFollowed;
-            _finalUri = finalUri;
-
-            _responseHeaders = new HashMap();
-            if (responseHeaders != null)
-            {
-                String headerName;
-                Header header;
-                for (int i=0; i < responseHeaders.length; i++)
-                {
-                    // HTTP header names are case-insensitive
-                    headerName = responseHeaders[i].getName().toLowerCase();
-                    header = responseHeaders[i];
-
-                    List headerList = (List) _responseHeaders.get(headerName);
-                    if (headerList != null)
-                        headerList.add(responseHeaders[i]);
-                    else
-                        _responseHeaders.put(headerName,
-                            new ArrayList(Arrays.asList(new Header[] {header})));
-                }
-            }
-
-            _body = body;
-            Date now = new Date();
-            _timestamp = now.getTime();
-        }
-
-        /**
-         * Gets the status code of the HttpResponse.
-         */
-        public int getStatusCode()
-        {
-            return _statusCode;
-        }
-
-        /**
-         * Gets the status line of the HttpResponse.
-         */
-        public String getStatusLine()
-        {
-            return _statusLine;
-        }
-
-        /**
-         * Gets the maximum HTTP redirects limit that was configured
-         * when this HTTP response was obtained.
-         */
-        public int getMaxRedirectsFollowed()
-        {
-            return _maxRedirectsFollowed;
-        }
-
-        /**
-         * Gets the final URI from where the document was obtained,
-         * after following redirects.
-         */
-        public String getFinalUri()
-        {
-            return _finalUri;
-        }
-
-        /**
-         * Gets the first header matching the provided headerName parameter,
-         * or null if no header with that name exists.
-         */
-        public Header getResponseHeader(String headerName)
-        {
-            List headerList = (List) _responseHeaders.get(headerName.toLowerCase());
-
-            if (headerList != null && headerList.size() > 0)
-                return (Header) headerList.get(0);
-            else
-                return null;
-        }
-
-        /**
-         * Gets an array of Header objects for the provided headerName parameter.
-         */
-        public Header[] getResponseHeaders(String headerName)
-        {
-            List headerList = (List) _responseHeaders.get(headerName.toLowerCase());
-
-            if (headerList != null)
-                return (Header[]) headerList.toArray(new Header[headerList.size()]);
-            else
-                return new Header[]{}; // empty array, same as HttpClient's method
-        }
-
-        /**
-         * Gets the HttpResponse body.
-         */
-        public String getBody()
-        {
-            return _body;
-        }
-
-        /**
-         * Returns true if the HTTP response size exceeded the maximum
-         * allowed by the (default) HttpRequestOptions.
-         * @return
-         */
-        public boolean isBodySizeExceeded()
-        {
-            return _bodySizeExceeded;
-        }
-
-
-        /**
-         * Sets the flag to indicate whether the HTTP response size exceeded
-         * the maximum allowed by the (default) HttpRequestOptions.
-         */
-        public void setBodySizeExceeded(boolean bodySizeExceeded)
-        {
-            this._bodySizeExceeded = bodySizeExceeded;
-        }
-
-        public long getTimestamp()
-        {
-
-            return _timestamp;
-        }
-
-    }
-
-    private static class ResponseBody {
-        private final String body;
-        private final boolean bodyIsTruncated;
-
-        public ResponseBody(String body, boolean truncated)
-        {
-            this.body = body;
-            this.bodyIsTruncated = truncated;
-        }
-
-        public String getBody()
-        {
-            return body;
-        }
-
-        public boolean isBodyTruncated()
-        {
-            return bodyIsTruncated;
-        }
-    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+
+import com.google.inject.Provider;
+
+/**
+ * Default {@link HttpFetcher} provider, used by the {@link HttpFetcherFactory}
+ * constructors for non-Guice installations, and by Guice when no binding
+ * for {@link HttpFetcher} is configured.
+ * <p>
+ * The provided {@link HttpCache}s have their own default request options,
+ * but share one HttpClient (and connection pool) and one response cache,
+ * so that the Yadis, HTML, XRI and realm verification discovery of an
+ * identifier reuse each other's connections and responses. Providers
+ * created without SSL settings share a single, process-wide backend;
+ * providers created with SSL settings share one backend per provider.
+ * <p>
+ * A backend keeps the {@link HttpClientFactory} settings (proxy,
+ * connection pool, compression) in effect when it was created; the
+ * process-wide one can be rebuilt with {@link #resetSharedCache()}.
+ */
+public class HttpCacheProvider implements Provider<HttpFetcher>
+{
+    private static HttpCache _sharedCache;
+
+    private final SSLContext _sslContext;
+
+    private final X509HostnameVerifier _hostnameVerifier;
+
+    private HttpCache _cache;
+
+    public HttpCacheProvider()
+    {
+        this(null, null);
+    }
+
+    public HttpCacheProvider(SSLContext sslContext)
+    {
+        this(sslContext, null);
+    }
+
+    public HttpCacheProvider(SSLContext sslContext, X509HostnameVerifier hostnameVerifier)
+    {
+        _sslContext = sslContext;
+        _hostnameVerifier = hostnameVerifier;
+    }
+
+    /**
+     * Gets the HttpCache shared by all the providers created
+     * without SSL settings, e.g. to configure its cache.
+     */
+    public static synchronized HttpCache getSharedCache()
+    {
+        if (_sharedCache == null)
+            _sharedCache = new HttpCache();
+
+        return _sharedCache;
+    }
+
+    /**
+     * Discards the HttpCache shared by the providers created without SSL
+     * settings, so that the HttpClient and response cache are rebuilt,
+     * with the current {@link HttpClientFactory} settings, on next use.
+     * The fetchers already provided keep using the previous backend.
+     */
+    public static synchronized void resetSharedCache()
+    {
+        _sharedCache = null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.google.inject.Provider#get()
+     */
+    public HttpFetcher get()
+    {
+        return getCache().share();
+    }
+
+    private synchronized HttpCache getCache()
+    {
+        // looked up on each call, to follow the resets of the shared cache
+        if (_sslContext == null && _hostnameVerifier == null)
+            return getSharedCache();
+
+        if (_cache == null)
+            _cache = new HttpCache(_sslContext, _hostnameVerifier);
+
+        return _cache;
+    }
+}
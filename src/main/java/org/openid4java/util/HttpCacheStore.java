@@ -0,0 +1,406 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Caching rules shared by the built-in {@link HttpFetcher} and
+ * {@link AsyncHttpFetcher} implementations: which cached responses
+ * may be returned for a request, which need to be revalidated with
+ * the server, and for how long responses are kept.
+ *
+ * @author Marius Scurtescu, Johnny Bufu
+ */
+final class HttpCacheStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpCacheStore.class);
+
+    /**
+     * Cache for GET requests. URL -> HttpResponse.
+     */
+    private final HttpResponseCache _getCache = new HttpResponseCache(
+            "GET", HttpCache.DEFAULT_MAX_CACHE_ENTRIES, HttpCache.DEFAULT_MAX_CACHE_SIZE);
+
+    /**
+     * Cache for HEAD requests. URL -> HttpResponse.
+     */
+    private final HttpResponseCache _headCache = new HttpResponseCache(
+            "HEAD", HttpCache.DEFAULT_MAX_CACHE_ENTRIES, HttpCache.DEFAULT_MAX_CACHE_SIZE);
+
+    /**
+     * Recently failed requests.
+     */
+    private final HttpFailureCache _failures =
+            new HttpFailureCache(HttpCache.DEFAULT_MAX_CACHE_ENTRIES);
+
+    /**
+     * On-disk copy of the successful GET responses, or null.
+     */
+    private volatile HttpResponseDiskCache _diskCache;
+
+    /**
+     * Sets the on-disk tier for GET responses, or null to cache
+     * responses in memory only.
+     */
+    void setDiskCache(HttpResponseDiskCache diskCache)
+    {
+        _diskCache = diskCache;
+    }
+
+    /**
+     * Sets the maximum number of entries kept in each of the GET and HEAD caches.
+     */
+    void setMaxEntries(int maxEntries)
+    {
+        _getCache.setMaxEntries(maxEntries);
+        _headCache.setMaxEntries(maxEntries);
+        _failures.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Sets the maximum (approximate) size in bytes of the responses kept
+     * in each of the GET and HEAD caches.
+     */
+    void setMaxSize(long maxSize)
+    {
+        _getCache.setMaxWeight(maxSize);
+        _headCache.setMaxWeight(maxSize);
+    }
+
+    /**
+     * Removes all cached GET and HEAD responses,
+     * including the ones stored on disk.
+     */
+    void clear()
+    {
+        _getCache.clear();
+        _headCache.clear();
+        _failures.clear();
+
+        HttpResponseDiskCache diskCache = _diskCache;
+        if (diskCache != null)
+        {
+            try
+            {
+                diskCache.clear();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Cannot clear the persisted GET responses.", e);
+            }
+        }
+    }
+
+    /**
+     * Looks up a cached GET response that can be used for the request:
+     * either a fresh one, or a stale one that can be revalidated.
+     * Cached responses that cannot be used are removed.
+     *
+     * @return  The cached response, or null if none can be used.
+     * @see #isFresh(DefaultHttpResponse, HttpRequestOptions)
+     */
+    DefaultHttpResponse lookupGet(String url, HttpRequestOptions requestOptions)
+    {
+        DefaultHttpResponse cached = (DefaultHttpResponse) _getCache.get(url);
+
+        HttpResponseDiskCache diskCache = _diskCache;
+        if (cached == null && diskCache != null)
+        {
+            cached = diskCache.get(url);
+            if (cached != null)
+            {
+                LOGGER.info("Loaded persisted GET response for " + url);
+                _getCache.put(url, cached, cached.getWeight(),
+                    getExpiresAt(cached, requestOptions));
+            }
+        }
+
+        if (cached != null)
+        {
+            if (! match(cached, requestOptions))
+            {
+                LOGGER.info("Removing cached GET for " + url);
+                removeGet(url);
+                cached = null;
+            }
+            else if (! cached.hasValidators() && ! isFresh(cached, requestOptions))
+            {
+                LOGGER.info("Removing stale cached GET for " + url);
+                removeGet(url);
+                cached = null;
+            }
+        }
+
+        return cached;
+    }
+
+    /**
+     * Looks up a fresh cached HEAD response that can be used for the request.
+     * Cached responses that cannot be used are removed.
+     *
+     * @return  The cached response, or null if none can be used.
+     */
+    DefaultHttpResponse lookupHead(String url, HttpRequestOptions requestOptions)
+    {
+        DefaultHttpResponse cached = (DefaultHttpResponse) _headCache.get(url);
+
+        if (cached != null && ! (match(cached, requestOptions) && isFresh(cached, requestOptions)))
+        {
+            LOGGER.info("Removing cached HEAD for " + url);
+            removeHead(url);
+            cached = null;
+        }
+
+        return cached;
+    }
+
+    /**
+     * Looks up a recent failure of a request to the URL, or to its host.
+     *
+     * @param method    The HTTP method of the request.
+     * @return          The exception thrown by the failed request,
+     *                  or null if there was no recent failure.
+     */
+    IOException lookupFailure(String method, String url, HttpRequestOptions requestOptions)
+    {
+        if (! requestOptions.isUseCache() || requestOptions.getNegativeCacheTTLSeconds() <= 0)
+            return null;
+
+        IOException failure = _failures.get(method, url);
+        if (failure != null)
+            LOGGER.info("Failing fast for " + url + "; a recent request failed with: " + failure);
+
+        return failure;
+    }
+
+    /**
+     * Remembers a failed request, for the negative cache TTL, unless
+     * the options exclude its failures.
+     */
+    void storeFailure(String method, String url, IOException failure,
+                      HttpRequestOptions requestOptions)
+    {
+        if (! requestOptions.isCacheFailures())
+            return;
+
+        _failures.put(method, url, failure, requestOptions.getNegativeCacheTTLSeconds() * 1000);
+    }
+
+    /**
+     * Stores a GET response in the cache.
+     */
+    void storeGet(String url, DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        store(_getCache, url, resp, requestOptions);
+        _failures.remove("GET", url);
+
+        HttpResponseDiskCache diskCache = _diskCache;
+        if (diskCache != null)
+        {
+            try
+            {
+                if (resp.getStatusCode() == HttpStatus.SC_OK && ! resp.isNoStore())
+                    diskCache.put(url, resp, getExpiresAt(resp, requestOptions));
+                else
+                    diskCache.remove(url);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Cannot persist GET response for " + url, e);
+            }
+        }
+    }
+
+    /**
+     * Stores a HEAD response in the cache.
+     */
+    void storeHead(String url, DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        store(_headCache, url, resp, requestOptions);
+        _failures.remove("HEAD", url);
+    }
+
+    /**
+     * Removes a cached GET response.
+     *
+     * @param url   The URL for which to remove the cached response.
+     */
+    void removeGet(String url)
+    {
+        if (_getCache.remove(url))
+            LOGGER.info("Removing cached GET response for " + url);
+        else
+            LOGGER.info("NOT removing cached GET for " + url + " NOT FOUND.");
+
+        HttpResponseDiskCache diskCache = _diskCache;
+        if (diskCache != null)
+        {
+            try
+            {
+                diskCache.remove(url);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Cannot remove persisted GET response for " + url, e);
+            }
+        }
+    }
+
+    /**
+     * Removes a cached HEAD response.
+     *
+     * @param url   The URL for which to remove the cached response.
+     */
+    void removeHead(String url)
+    {
+        if (_headCache.remove(url))
+            LOGGER.info("Removing cached HEAD response for " + url);
+        else
+            LOGGER.info("NOT removing cached HEAD for " + url + " NOT FOUND.");
+    }
+
+    /**
+     * Stores a response in the provided cache. Responses marked as
+     * no-store are not cached; responses without validators expire after
+     * their freshness lifetime, while responses with validators are kept
+     * (subject to the cache size limits) so that they can be revalidated.
+     */
+    private void store(HttpResponseCache cache, String url,
+                       DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        if (resp.isNoStore())
+        {
+            LOGGER.info("Response for " + url + " is marked no-store; not caching.");
+            cache.remove(url);
+            return;
+        }
+
+        cache.put(url, resp, resp.getWeight(), getExpiresAt(resp, requestOptions));
+    }
+
+    /**
+     * Gets the time after which a cached response is discarded: responses
+     * with validators are kept so that they can be revalidated.
+     */
+    private long getExpiresAt(DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        long lifetime = getFreshnessLifetime(resp, requestOptions);
+
+        return resp.hasValidators() || lifetime > Long.MAX_VALUE - resp.getTimestamp() ?
+                Long.MAX_VALUE : resp.getTimestamp() + lifetime;
+    }
+
+    /**
+     * Gets the freshness lifetime of a cached response, in milliseconds:
+     * the lifetime advertised by the server through the Cache-Control
+     * max-age directive or the Expires header, capped by the cache TTL
+     * from the request options, or by the negative cache TTL for server
+     * errors.
+     */
+    private long getFreshnessLifetime(DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        long lifetime = requestOptions.getCacheTTLSeconds() >= 0 ?
+                requestOptions.getCacheTTLSeconds() * 1000 : Long.MAX_VALUE - resp.getTimestamp();
+
+        if (resp.getFreshnessLifetime() >= 0)
+            lifetime = Math.min(lifetime, resp.getFreshnessLifetime());
+
+        if (resp.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+            lifetime = Math.min(lifetime,
+                Math.max(0, requestOptions.getNegativeCacheTTLSeconds()) * 1000);
+
+        return lifetime;
+    }
+
+    /**
+     * Checks if a cached response can be returned without contacting
+     * the server.
+     */
+    boolean isFresh(DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        // use cache?
+        if (! requestOptions.isUseCache())
+        {
+            LOGGER.info("Explicit fresh GET requested; not using cached copy");
+            return false;
+        }
+
+        if (resp.isNoCache())
+        {
+            LOGGER.info("Cached response is marked no-cache; revalidating");
+            return false;
+        }
+
+        //is cache fresh?
+        long cacheExpTime = resp.getTimestamp() + getFreshnessLifetime(resp, requestOptions);
+        if (cacheExpTime < System.currentTimeMillis())
+        {
+            String cacheExpTimeStr = (new Date(cacheExpTime)).toString();
+            LOGGER.info("Cache Expired at " + cacheExpTimeStr);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if a cached response satisfies the requirements
+     * of the request options, regardless of its freshness.
+     */
+    private boolean match(DefaultHttpResponse resp, HttpRequestOptions requestOptions)
+    {
+        // content type rules
+        String requiredContentType = requestOptions.getContentType();
+        if (resp != null && requiredContentType != null)
+        {
+            Header responseContentType = resp.getResponseHeader("content-type");
+            if ( responseContentType != null &&
+                 responseContentType.getValue() != null &&
+                 !responseContentType.getValue().split(";")[0]
+                     .equalsIgnoreCase(requiredContentType) )
+            {
+                LOGGER.info("Cached GET response does not match " +
+                    "the required content type, removing.");
+                return false;
+            }
+        }
+
+        if (resp != null &&
+            resp.getMaxRedirectsFollowed() > requestOptions.getMaxRedirects())
+        {
+            LOGGER.info("Cached GET response used " +
+                      resp.getMaxRedirectsFollowed() +
+                      " max redirects; current requirement is: " +
+                      requestOptions.getMaxRedirects());
+            return false;
+        }
+
+        if (resp != null && resp.isBodyPartial() && ! requestOptions.isHtmlHeadOnly())
+        {
+            LOGGER.info("Cached GET response holds only the HTML head; " +
+                      "the full body is required.");
+            return false;
+        }
+
+        // a body truncated to a smaller limit than the current one
+        if (resp != null && resp.isBodySizeExceeded() &&
+            resp.getBodySize() < requestOptions.getMaxBodySize())
+        {
+            LOGGER.info("Cached GET response was truncated to " +
+                      resp.getBodySize() + " bytes; current limit is: " +
+                      requestOptions.getMaxBodySize());
+            return false;
+        }
+
+        return true;
+    }
+}
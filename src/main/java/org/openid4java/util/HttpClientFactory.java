@@ -7,23 +7,42 @@
  */
 package org.openid4java.util;
 
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.params.AllClientPNames;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.ClientParamsStack;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.time.Duration;
 
 import javax.net.ssl.SSLContext;
 
@@ -44,11 +63,33 @@ public class HttpClientFactory
 
     private static boolean multiThreadedHttpClient = true;
 
+    /**
+     * If true, gzip and deflate compressed responses are requested,
+     * and transparently decompressed.
+     */
+    private static boolean contentCompression = true;
+
+    /**
+     * Options for the pooled connection managers.
+     */
+    private static ConnectionPoolOptions connectionPoolOptions = new ConnectionPoolOptions();
+
     public static ProxyProperties getProxyProperties()
     {
         return proxyProperties;
     }
 
+    /**
+     * Configures the proxy used by the HTTP clients constructed by the
+     * factory afterwards.
+     * <p>
+     * The fetchers provided by default share the HttpClient of
+     * {@link HttpCacheProvider#getSharedCache()}, which is constructed on
+     * first use and keeps the proxy, connection pool and compression
+     * settings in effect at that time; call
+     * {@link HttpCacheProvider#resetSharedCache()} after changing them
+     * for the fetchers provided afterwards to use the new settings.
+     */
     public static void setProxyProperties(ProxyProperties proxyProperties)
     {
         HttpClientFactory.proxyProperties = proxyProperties;
@@ -61,14 +102,106 @@ public class HttpClientFactory
     /**
      * Configures the type of HttpClient's constructed by the factory.
      *
-     * @param multiThreadedHttpClient if true, MultiThreadedHttpConnectionManager's are constructed;
-     *                                if false - SimpleHttpConnectionManager's.
+     * Only affects HttpClient's constructed afterwards, so not the
+     * shared one of {@link HttpCacheProvider} until it is reset.
+     *
+     * @param multiThreadedHttpClient if true, PoolingClientConnectionManager's are constructed;
+     *                                if false - SingleClientConnManager's.
      *
+     * @see HttpCacheProvider#resetSharedCache()
      */
     public static void setMultiThreadedHttpClient(boolean multiThreadedHttpClient) {
         HttpClientFactory.multiThreadedHttpClient = multiThreadedHttpClient;
     }
 
+    public static boolean isContentCompression()
+    {
+        return contentCompression;
+    }
+
+    /**
+     * Configures the negotiation of compressed (gzip or deflate) responses
+     * by the HTTP clients used by the built-in fetchers. The maximum body
+     * size of the HttpRequestOptions applies to the decompressed bodies.
+     * Only affects HttpClient's constructed afterwards, so not the
+     * shared one of {@link HttpCacheProvider} until it is reset.
+     *
+     * @param contentCompression    if true (the default), compressed
+     *                              responses are requested and decompressed.
+     * @see HttpCacheProvider#resetSharedCache()
+     */
+    public static void setContentCompression(boolean contentCompression)
+    {
+        HttpClientFactory.contentCompression = contentCompression;
+    }
+
+    public static ConnectionPoolOptions getConnectionPoolOptions()
+    {
+        return connectionPoolOptions;
+    }
+
+    /**
+     * Configures the connection pools of the multi-threaded HttpClient's
+     * constructed by the factory. Only affects HttpClient's constructed
+     * afterwards, so not the shared one of {@link HttpCacheProvider}
+     * until it is reset.
+     *
+     * @see HttpCacheProvider#resetSharedCache()
+     */
+    public static void setConnectionPoolOptions(ConnectionPoolOptions connectionPoolOptions)
+    {
+        HttpClientFactory.connectionPoolOptions = connectionPoolOptions;
+    }
+
+    /**
+     * Gets the statistics (leased, pending and available connections)
+     * of the connection pool used by a HttpClient constructed by the factory.
+     *
+     * @return  The pool statistics for all routes, or null if the HttpClient
+     *          does not use a pooled connection manager.
+     */
+    public static PoolStats getConnectionPoolStats(HttpClient client)
+    {
+        ClientConnectionManager connManager = client.getConnectionManager();
+        if (connManager instanceof PoolingClientConnectionManager)
+            return ((PoolingClientConnectionManager) connManager).getTotalStats();
+        else
+            return null;
+    }
+
+    /**
+     * Gets the statistics (leased, pending and available connections)
+     * of the connection pool used by a HttpClient constructed by the factory,
+     * for the route used to reach the provided URL.
+     *
+     * @return  The pool statistics for the route, or null if the HttpClient
+     *          does not use a pooled connection manager.
+     */
+    public static PoolStats getConnectionPoolStats(HttpClient client, String url)
+    {
+        ClientConnectionManager connManager = client.getConnectionManager();
+        if (! (connManager instanceof PoolingClientConnectionManager) ||
+            ! (client instanceof AbstractHttpClient))
+            return null;
+
+        try
+        {
+            // determine the route the same way the client does when executing
+            HttpGet request = new HttpGet(url);
+            request.setParams(new ClientParamsStack(
+                null, client.getParams(), request.getParams(), null));
+            HttpRoute route = ((AbstractHttpClient) client).getRoutePlanner()
+                .determineRoute(URIUtils.extractHost(request.getURI()),
+                    request, new BasicHttpContext());
+
+            return ((PoolingClientConnectionManager) connManager).getStats(route);
+        }
+        catch (HttpException e)
+        {
+            return null;
+        }
+    }
+
     public static HttpClient getInstance(int maxRedirects,
             Boolean allowCircularRedirects,
             int connTimeout, int socketTimeout,
@@ -103,14 +236,48 @@ public class HttpClientFactory
         }
         registry.register(new Scheme("https", 443, sslSocketFactory));
         
+        final ConnectionPoolOptions poolOptions = new ConnectionPoolOptions(connectionPoolOptions);
+
         ClientConnectionManager connManager;
         if (multiThreadedHttpClient)
-            connManager = new ThreadSafeClientConnManager(registry);
+        {
+            PoolingClientConnectionManager poolingConnManager =
+                new PoolingClientConnectionManager(registry);
+            poolingConnManager.setMaxTotal(poolOptions.getMaxTotalConnections());
+            poolingConnManager.setDefaultMaxPerRoute(poolOptions.getMaxConnectionsPerRoute());
+
+            if (poolOptions.getReaperInterval() > 0)
+                IdleConnectionReaper.register(poolingConnManager, poolOptions);
+
+            connManager = poolingConnManager;
+        }
         else
             connManager = new SingleClientConnManager(registry);
 
+        HttpConnectionParams.setStaleCheckingEnabled(httpParams,
+            poolOptions.isStaleConnectionCheck());
+
         DefaultHttpClient client = new DefaultHttpClient(connManager, httpParams);
 
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy()
+        {
+            public long getKeepAliveDuration(org.apache.http.HttpResponse response,
+                                             HttpContext context)
+            {
+                // use the server's keep-alive timeout, if shorter
+                long duration = super.getKeepAliveDuration(response, context);
+                if (duration <= 0 || duration > poolOptions.getKeepAliveDuration())
+                    duration = poolOptions.getKeepAliveDuration();
+                return duration;
+            }
+        });
+
+        if (contentCompression)
+        {
+            client.addRequestInterceptor(new RequestAcceptEncoding());
+            client.addResponseInterceptor(new ResponseContentEncoding());
+        }
+
         client.getParams().setParameter(AllClientPNames.MAX_REDIRECTS,
                                         new Integer(maxRedirects));
         client.getParams().setParameter(AllClientPNames.ALLOW_CIRCULAR_REDIRECTS,
@@ -148,5 +315,52 @@ public class HttpClientFactory
 
         return client;
     }
-}
 
+    /**
+     * Constructs a JDK HttpClient using HTTP/2 when the server supports it,
+     * so that concurrent requests to the same server share a single
+     * multiplexed connection. Redirects are not followed by the client;
+     * the fetchers follow them as allowed by their HttpRequestOptions.
+     *
+     * @param connTimeout   The connection timeout in milliseconds,
+     *                      or 0 for no timeout.
+     * @param sslContext    The SSL context to use for HTTPS connections,
+     *                      or null for the default one.
+     */
+    public static java.net.http.HttpClient getJdkInstance(int connTimeout, SSLContext sslContext)
+    {
+        java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_2)
+                .followRedirects(java.net.http.HttpClient.Redirect.NEVER);
+
+        if (connTimeout > 0)
+            builder.connectTimeout(Duration.ofMillis(connTimeout));
+
+        if (sslContext != null)
+            builder.sslContext(sslContext);
+
+        if (proxyProperties != null)
+        {
+            final ProxyProperties proxy = proxyProperties;
+
+            builder.proxy(ProxySelector.of(new InetSocketAddress(
+                    proxy.getProxyHostName(),
+                    proxy.getProxyPort() > 0 ? proxy.getProxyPort() : 80)));
+
+            // only Basic proxy authentication is supported by the JDK client
+            builder.authenticator(new Authenticator()
+            {
+                protected PasswordAuthentication getPasswordAuthentication()
+                {
+                    if (getRequestorType() != RequestorType.PROXY)
+                        return null;
+
+                    return new PasswordAuthentication(
+                        proxy.getUserName(), proxy.getPassword().toCharArray());
+                }
+            });
+        }
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded, thread-safe store for failed HTTP requests (negative caching),
+ * letting repeated requests to an unreachable URL fail fast with the
+ * original exception instead of waiting for the network again.
+ * <p>
+ * Failures are remembered per method and URL; failures to reach the host (connection
+ * refused, unknown host, no route, connect timeout) are also remembered
+ * per host, so that the other URLs of that host fail fast as well.
+ *
+ * @see HttpRequestOptions#setNegativeCacheTTLSeconds(long)
+ */
+final class HttpFailureCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpFailureCache.class);
+
+    /**
+     * Failures, least recently stored first. Request or host key -> Entry.
+     */
+    private final LinkedHashMap _entries = new LinkedHashMap();
+
+    private int _maxEntries;
+
+    /**
+     * @param maxEntries    Maximum number of failures kept.
+     */
+    HttpFailureCache(int maxEntries)
+    {
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the exception of a recent failed request to the URL or its host.
+     *
+     * @param method    The HTTP method of the request.
+     * @return          The exception, or null if no recent request has failed.
+     */
+    synchronized IOException get(String method, String url)
+    {
+        long now = System.currentTimeMillis();
+
+        IOException failure = get(method + ' ' + url, now);
+        if (failure == null)
+        {
+            String hostKey = getHostKey(url);
+            if (hostKey != null)
+                failure = get(hostKey, now);
+        }
+
+        return failure;
+    }
+
+    private IOException get(String key, long now)
+    {
+        Entry entry = (Entry) _entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.expiresAt < now)
+        {
+            _entries.remove(key);
+            return null;
+        }
+
+        return entry.failure;
+    }
+
+    /**
+     * Remembers a failed request, if the failure is likely to happen again.
+     *
+     * @param method    The HTTP method of the request.
+     * @param ttlMillis How long to remember the failure, in milliseconds.
+     */
+    synchronized void put(String method, String url, IOException failure, long ttlMillis)
+    {
+        if (ttlMillis <= 0 || ! isCacheable(failure))
+            return;
+
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Caching failure for " + method + " " + url + ": " + failure);
+
+        put(method + ' ' + url, new Entry(failure, expiresAt));
+
+        String hostKey = getHostKey(url);
+        if (hostKey != null && isHostFailure(failure))
+            put(hostKey, new Entry(failure, expiresAt));
+    }
+
+    private void put(String key, Entry entry)
+    {
+        // re-insert, to keep the entries in storage order
+        _entries.remove(key);
+        _entries.put(key, entry);
+
+        Iterator iter = _entries.values().iterator();
+        while (_entries.size() > _maxEntries && iter.hasNext())
+        {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Forgets the failures of the request and its host, after a request succeeded.
+     */
+    synchronized void remove(String method, String url)
+    {
+        if (_entries.isEmpty())
+            return;
+
+        _entries.remove(method + ' ' + url);
+
+        String hostKey = getHostKey(url);
+        if (hostKey != null)
+            _entries.remove(hostKey);
+    }
+
+    synchronized void clear()
+    {
+        _entries.clear();
+    }
+
+    synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    synchronized void setMaxEntries(int maxEntries)
+    {
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Interrupted requests are not failures of the server.
+     */
+    private static boolean isCacheable(IOException failure)
+    {
+        return ! isInterrupt(failure);
+    }
+
+    /**
+     * Checks if the request was interrupted or cancelled, rather than
+     * failed; timeouts are failures.
+     */
+    static boolean isInterrupt(IOException failure)
+    {
+        return failure instanceof InterruptedIOException &&
+            ! (failure instanceof SocketTimeoutException) &&
+            ! (failure instanceof ConnectTimeoutException);
+    }
+
+    /**
+     * Checks if the failure affects all the URLs of the host.
+     */
+    static boolean isHostFailure(IOException failure)
+    {
+        return failure instanceof ConnectException ||
+            failure instanceof UnknownHostException ||
+            failure instanceof NoRouteToHostException ||
+            failure instanceof ConnectTimeoutException ||
+            failure instanceof HttpConnectTimeoutException;
+    }
+
+    /**
+     * Gets the key of the host (and port) of the URL.
+     *
+     * @return  The host key, or null if the URL is not valid.
+     */
+    private static String getHostKey(String url)
+    {
+        try
+        {
+            URI uri = new URI(url);
+            if (uri.getHost() == null)
+                return null;
+
+            return "host:" + uri.getScheme() + "://" + uri.getHost().toLowerCase() +
+                ":" + uri.getPort();
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+    }
+
+    private static class Entry
+    {
+        final IOException failure;
+        final long expiresAt;
+
+        Entry(IOException failure, long expiresAt)
+        {
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -16,16 +16,18 @@
  */
 package org.openid4java.util;
 
-import com.google.inject.ImplementedBy;
+import com.google.inject.ProvidedBy;
 
 import java.io.IOException;
 import java.util.Map;
 
 /**
  * Interface for fetching HTTP requests. The default implementation caches
- * responses, but can be replaced by custom implementations.
+ * responses, shares the connection pool and cache of the other default
+ * fetchers (see {@link HttpCacheProvider}), and can be replaced by custom
+ * implementations.
  */
-@ImplementedBy(HttpCache.class)
+@ProvidedBy(HttpCacheProvider.class)
 public interface HttpFetcher {
 
   /**
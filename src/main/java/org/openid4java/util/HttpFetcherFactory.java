@@ -35,7 +35,9 @@ public class HttpFetcherFactory {
 
   /**
    * Public constructor for non-Guice installations. Results in
-   * {@link HttpCache} being used as the {@link HttpFetcher}
+   * {@link HttpCache} being used as the {@link HttpFetcher}, sharing
+   * one connection pool and response cache with the other factories
+   * created this way (see {@link HttpCacheProvider}).
    */
   public HttpFetcherFactory()
   {
@@ -58,32 +60,4 @@ public class HttpFetcherFactory {
       fetcher.setDefaultRequestOptions(defaultOptions);
       return fetcher;
   }
-
-  private static class HttpCacheProvider implements Provider<HttpFetcher> {
-	  
-	  private final SSLContext sslContext;
-	  
-	  private final X509HostnameVerifier hostnameVerifier;
-	  
-	  public HttpCacheProvider(SSLContext sslContext, X509HostnameVerifier hostnameVerifier)
-	  {
-		  this.sslContext = sslContext;
-		  this.hostnameVerifier = hostnameVerifier;
-	  }
-	  
-	  public HttpCacheProvider(SSLContext sslContext)
-	  {
-		  this(sslContext, null);
-	  }
-	  
-	  public HttpCacheProvider()
-	  {
-		  this(null, null);
-	  }
-	  
-    public HttpFetcher get()
-    {
-    	return new HttpCache(this.sslContext, this.hostnameVerifier);
-    }
-  }
 }
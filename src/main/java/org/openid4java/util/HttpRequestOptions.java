@@ -4,11 +4,24 @@
 
 package org.openid4java.util;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 
 /**
  * Container class for the various options associated with HTTP requests.
+ * <p>
+ * Options shared between threads, such as the default options of an
+ * {@link HttpFetcher}, should not be modified while requests are placed.
+ * Per-call options are best built with a {@link Builder} derived from
+ * the defaults, which produces an immutable snapshot:
+ * <pre>
+ * HttpRequestOptions options = new HttpRequestOptions.Builder(
+ *         fetcher.getDefaultRequestOptions())
+ *     .maxRedirects(5)
+ *     .requestHeader("Accept", "application/xrds+xml")
+ *     .build();
+ * </pre>
  *
  * @see org.openid4java.util.HttpCache
  * @author Marius Scurtescu, Johnny Bufu
@@ -95,6 +108,37 @@ public class HttpRequestOptions
      */
     private long   _cacheTTLSeconds = 60;
 
+    /**
+     * Time (in seconds) during which a failed request (connection error,
+     * timeout, or 5xx server error) is remembered, and repeated requests
+     * fail immediately with the same error. Zero disables negative caching.
+     * Default 10 seconds.
+     *
+     * @see org.openid4java.util.HttpCache
+     */
+    private long   _negativeCacheTTLSeconds = 10;
+
+    /**
+     * If set to false, failed requests are not remembered in the negative
+     * cache, e.g. when they fail because of timeouts shorter than usual;
+     * recent failures of other requests are still used.
+     */
+    private boolean _cacheFailures = true;
+
+    /**
+     * If set, only the head section of HTML responses is read: the download
+     * stops once the closing head tag or the opening body tag is received.
+     * Other responses are read in full (up to the maximum body size).
+     */
+    private boolean _htmlHeadOnly = false;
+
+    /**
+     * If set, the options cannot be modified.
+     *
+     * @see #snapshot()
+     */
+    private boolean _immutable = false;
+
     /**
      * Constructs a set of HTTP request options with the default values.
      */
@@ -104,7 +148,8 @@ public class HttpRequestOptions
 
     /**
      * Creates a new HttpRequestOptions object as a clone of the provided
-     * parameter.
+     * parameter. The clone can be modified, even if the original is
+     * an immutable snapshot.
      *
      * @param other     HttpRequestOptions instance to be cloned.
      */
@@ -120,6 +165,40 @@ public class HttpRequestOptions
         this._contentType = other._contentType;
         this._allowCircularRedirects = other._allowCircularRedirects;
         this._cacheTTLSeconds = other._cacheTTLSeconds;
+        this._negativeCacheTTLSeconds = other._negativeCacheTTLSeconds;
+        this._cacheFailures = other._cacheFailures;
+        this._htmlHeadOnly = other._htmlHeadOnly;
+    }
+
+    /**
+     * Gets an immutable copy of these options, safe to share between
+     * threads; returns this object if it is already immutable.
+     */
+    public HttpRequestOptions snapshot()
+    {
+        if (_immutable)
+            return this;
+
+        HttpRequestOptions snapshot = new HttpRequestOptions(this);
+        if (snapshot._requestHeaders != null)
+            snapshot._requestHeaders = Collections.unmodifiableMap(snapshot._requestHeaders);
+        snapshot._immutable = true;
+        return snapshot;
+    }
+
+    /**
+     * Returns true if these options are an immutable snapshot.
+     */
+    public boolean isImmutable()
+    {
+        return _immutable;
+    }
+
+    private void checkMutable()
+    {
+        if (_immutable)
+            throw new UnsupportedOperationException(
+                "Immutable HttpRequestOptions cannot be modified; use a copy.");
     }
 
     /**
@@ -135,6 +214,7 @@ public class HttpRequestOptions
      */
     public void setConnTimeout(int connTimeout)
     {
+        checkMutable();
         this._connTimeout = connTimeout;
     }
 
@@ -151,6 +231,7 @@ public class HttpRequestOptions
      */
     public void setSocketTimeout(int socketTimeout)
     {
+        checkMutable();
         this._socketTimeout = socketTimeout;
     }
 
@@ -168,6 +249,7 @@ public class HttpRequestOptions
      */
     public void setMaxRedirects(int maxRedirects)
     {
+        checkMutable();
         this._maxRedirects = maxRedirects;
     }
 
@@ -185,6 +267,7 @@ public class HttpRequestOptions
      */
     public void setMaxBodySize(int maxBodySize)
     {
+        checkMutable();
         this._maxBodySize = maxBodySize;
     }
 
@@ -203,6 +286,7 @@ public class HttpRequestOptions
      */
     public void setRequestHeaders(Map requestHeaders)
     {
+        checkMutable();
         this._requestHeaders = requestHeaders;
     }
 
@@ -211,6 +295,7 @@ public class HttpRequestOptions
      */
     public void addRequestHeader(String headerName, String headerValue)
     {
+        checkMutable();
        _requestHeaders.put(headerName, headerValue);
     }
 
@@ -232,6 +317,7 @@ public class HttpRequestOptions
      */
     public void setUseCache(boolean useCache)
     {
+        checkMutable();
         this._useCache = useCache;
     }
 
@@ -252,6 +338,7 @@ public class HttpRequestOptions
      */
     public void setContentType(String contentType)
     {
+        checkMutable();
         this._contentType = contentType;
     }
 
@@ -262,6 +349,7 @@ public class HttpRequestOptions
 
     public void setAllowCircularRedirects(boolean allow)
     {
+        checkMutable();
         _allowCircularRedirects = allow;
     }
 
@@ -281,8 +369,178 @@ public class HttpRequestOptions
 
     public void setCacheTTLSeconds(long ttl)
     {
+        checkMutable();
         _cacheTTLSeconds = ttl;
 
     }
 
+    /**
+     * Gets the time, in seconds, during which failed requests
+     * (connection errors, timeouts and 5xx server errors) are remembered.
+     */
+    public long getNegativeCacheTTLSeconds()
+    {
+        return _negativeCacheTTLSeconds;
+    }
+
+    /**
+     * Sets the time, in seconds, during which failed requests
+     * (connection errors, timeouts and 5xx server errors) are remembered;
+     * repeated requests to the same URL, or to the same host for connection
+     * errors, fail immediately with the original error. Zero disables
+     * negative caching.
+     */
+    public void setNegativeCacheTTLSeconds(long ttl)
+    {
+        checkMutable();
+        _negativeCacheTTLSeconds = ttl;
+    }
+
+    /**
+     * Returns true if the failures of the requests placed with these
+     * options are remembered in the negative cache.
+     */
+    public boolean isCacheFailures()
+    {
+        return _cacheFailures;
+    }
+
+    /**
+     * Sets whether the failures of the requests placed with these options
+     * are remembered in the negative cache. Either way, the requests fail
+     * fast on the failures remembered from other requests.
+     *
+     * @see #setNegativeCacheTTLSeconds(long)
+     */
+    public void setCacheFailures(boolean cacheFailures)
+    {
+        checkMutable();
+        _cacheFailures = cacheFailures;
+    }
+
+    /**
+     * Returns true if only the head section of HTML responses is read.
+     */
+    public boolean isHtmlHeadOnly()
+    {
+        return _htmlHeadOnly;
+    }
+
+    /**
+     * If set, the download of HTML (text/html, application/xhtml+xml)
+     * responses stops as soon as the closing head tag or the opening body
+     * tag is received, which is enough for HTML-based discovery. The
+     * resulting partial responses are not returned from the cache
+     * for requests that need the full body.
+     */
+    public void setHtmlHeadOnly(boolean htmlHeadOnly)
+    {
+        checkMutable();
+        _htmlHeadOnly = htmlHeadOnly;
+    }
+
+    /**
+     * Builds immutable {@link HttpRequestOptions}, starting from
+     * a copy of existing (default) options.
+     */
+    public static class Builder
+    {
+        private final HttpRequestOptions _options;
+
+        /**
+         * Starts from the default option values.
+         */
+        public Builder()
+        {
+            this(new HttpRequestOptions());
+        }
+
+        /**
+         * Starts from a copy of the provided options.
+         */
+        public Builder(HttpRequestOptions options)
+        {
+            _options = new HttpRequestOptions(options);
+        }
+
+        public Builder connTimeout(int connTimeout)
+        {
+            _options.setConnTimeout(connTimeout);
+            return this;
+        }
+
+        public Builder socketTimeout(int socketTimeout)
+        {
+            _options.setSocketTimeout(socketTimeout);
+            return this;
+        }
+
+        public Builder maxRedirects(int maxRedirects)
+        {
+            _options.setMaxRedirects(maxRedirects);
+            return this;
+        }
+
+        public Builder maxBodySize(int maxBodySize)
+        {
+            _options.setMaxBodySize(maxBodySize);
+            return this;
+        }
+
+        public Builder requestHeader(String headerName, String headerValue)
+        {
+            _options.addRequestHeader(headerName, headerValue);
+            return this;
+        }
+
+        public Builder useCache(boolean useCache)
+        {
+            _options.setUseCache(useCache);
+            return this;
+        }
+
+        public Builder contentType(String contentType)
+        {
+            _options.setContentType(contentType);
+            return this;
+        }
+
+        public Builder allowCircularRedirects(boolean allow)
+        {
+            _options.setAllowCircularRedirects(allow);
+            return this;
+        }
+
+        public Builder cacheTTLSeconds(long ttl)
+        {
+            _options.setCacheTTLSeconds(ttl);
+            return this;
+        }
+
+        public Builder negativeCacheTTLSeconds(long ttl)
+        {
+            _options.setNegativeCacheTTLSeconds(ttl);
+            return this;
+        }
+
+        public Builder cacheFailures(boolean cacheFailures)
+        {
+            _options.setCacheFailures(cacheFailures);
+            return this;
+        }
+
+        public Builder htmlHeadOnly(boolean htmlHeadOnly)
+        {
+            _options.setHtmlHeadOnly(htmlHeadOnly);
+            return this;
+        }
+
+        /**
+         * Gets an immutable snapshot of the options built so far.
+         */
+        public HttpRequestOptions build()
+        {
+            return _options.snapshot();
+        }
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an HTTP request is rejected without being placed, to protect
+ * the application from a failing or slow host.
+ *
+ * @see CircuitBreakerHttpFetcher
+ */
+public class HttpRequestRejectedException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int _errorCode;
+
+    /**
+     * @param code  The {@link org.openid4java.OpenIDException} error code
+     *              describing why the request was rejected.
+     */
+    public HttpRequestRejectedException(String message, int code)
+    {
+        super(message);
+
+        _errorCode = code;
+    }
+
+    /**
+     * Gets the {@link org.openid4java.OpenIDException} error code:
+     * HTTP_CIRCUIT_OPEN or HTTP_BULKHEAD_FULL.
+     */
+    public int getErrorCode()
+    {
+        return _errorCode;
+    }
+
+    /**
+     * Gets the error code to report for a failed HTTP request:
+     * the code of the rejection if the request was rejected,
+     * or the provided default code otherwise.
+     */
+    public static int getErrorCode(IOException e, int defaultCode)
+    {
+        return e instanceof HttpRequestRejectedException ?
+            ((HttpRequestRejectedException) e).getErrorCode() : defaultCode;
+    }
+}
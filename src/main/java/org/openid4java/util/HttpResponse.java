@@ -5,6 +5,8 @@ package org.openid4java.util;
 
 import org.apache.http.Header;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Container class for HTTP responses.
  *
@@ -38,6 +40,25 @@ public interface HttpResponse
      */
     String getBody();
 
+    /**
+     * Gets the HttpResponse body as bytes, encoded with the
+     * {@link #getBodyCharset() body charset}. Parsers can consume
+     * these bytes without the body being decoded to a String first.
+     */
+    default byte[] getBodyBytes()
+    {
+        String body = getBody();
+        return body != null ? body.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Gets the name of the charset of the {@link #getBodyBytes() body bytes}.
+     */
+    default String getBodyCharset()
+    {
+        return StandardCharsets.UTF_8.name();
+    }
+
     /**
      * Returns true if the HTTP response size exceeded the maximum
      * allowed by the (default) HttpRequestOptions.
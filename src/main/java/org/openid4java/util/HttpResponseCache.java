@@ -0,0 +1,208 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe store for cached HTTP responses.
+ * <p>
+ * Entries are evicted in least-recently-used order whenever either the
+ * maximum number of entries or the maximum total weight (approximate size
+ * in bytes) is exceeded. Each entry also carries an expiration time after
+ * which it is dropped, so that stale responses do not hold on to memory.
+ *
+ * @see HttpCache
+ */
+final class HttpResponseCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    /**
+     * Number of writes after which expired entries are swept.
+     */
+    private static final int SWEEP_INTERVAL = 256;
+
+    private final String _name;
+
+    private final LinkedHashMap _entries = new LinkedHashMap(16, 0.75f, true);
+
+    private int _maxEntries;
+
+    private long _maxWeight;
+
+    private long _weight;
+
+    private int _writes;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param name          Name used for logging.
+     * @param maxEntries    Maximum number of entries kept in the cache.
+     * @param maxWeight     Maximum total weight of the cached entries.
+     */
+    HttpResponseCache(String name, int maxEntries, long maxWeight)
+    {
+        _name = name;
+        _maxEntries = maxEntries;
+        _maxWeight = maxWeight;
+    }
+
+    /**
+     * Gets the cached response for the key, or null if none exists
+     * or the cached copy has expired.
+     */
+    synchronized HttpResponse get(String key)
+    {
+        Entry entry = (Entry) _entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.isExpired(System.currentTimeMillis()))
+        {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Expired cached " + _name + " response for " + key);
+            removeEntry(key);
+            return null;
+        }
+
+        return entry.response;
+    }
+
+    /**
+     * Stores a response in the cache, evicting least recently used
+     * entries if needed.
+     *
+     * @param key       The cache key.
+     * @param response  The response to cache.
+     * @param weight    The approximate size of the response, in bytes.
+     * @param expiresAt The time (in milliseconds since the epoch) after
+     *                  which the entry may be discarded.
+     */
+    synchronized void put(String key, HttpResponse response, long weight, long expiresAt)
+    {
+        if (weight > _maxWeight)
+        {
+            LOGGER.info("Not caching " + _name + " response for " + key +
+                    "; size " + weight + " exceeds the cache capacity.");
+            removeEntry(key);
+            return;
+        }
+
+        Entry previous = (Entry) _entries.put(key, new Entry(response, weight, expiresAt));
+        if (previous != null)
+            _weight -= previous.weight;
+        _weight += weight;
+
+        if (++_writes % SWEEP_INTERVAL == 0)
+            removeExpired(System.currentTimeMillis());
+
+        evict();
+    }
+
+    /**
+     * Removes the cached response for the key.
+     *
+     * @return true if an entry was removed.
+     */
+    synchronized boolean remove(String key)
+    {
+        return removeEntry(key);
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    synchronized void clear()
+    {
+        _entries.clear();
+        _weight = 0;
+    }
+
+    synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    synchronized long weight()
+    {
+        return _weight;
+    }
+
+    synchronized void setMaxEntries(int maxEntries)
+    {
+        _maxEntries = maxEntries;
+        evict();
+    }
+
+    synchronized void setMaxWeight(long maxWeight)
+    {
+        _maxWeight = maxWeight;
+        evict();
+    }
+
+    private boolean removeEntry(String key)
+    {
+        Entry entry = (Entry) _entries.remove(key);
+        if (entry == null)
+            return false;
+
+        _weight -= entry.weight;
+        return true;
+    }
+
+    private void removeExpired(long now)
+    {
+        Iterator iter = _entries.values().iterator();
+        while (iter.hasNext())
+        {
+            Entry entry = (Entry) iter.next();
+            if (entry.isExpired(now))
+            {
+                _weight -= entry.weight;
+                iter.remove();
+            }
+        }
+    }
+
+    private void evict()
+    {
+        Iterator iter = _entries.entrySet().iterator();
+        while ((_entries.size() > _maxEntries || _weight > _maxWeight) && iter.hasNext())
+        {
+            Map.Entry eldest = (Map.Entry) iter.next();
+            Entry entry = (Entry) eldest.getValue();
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Evicting cached " + _name + " response for " + eldest.getKey());
+            _weight -= entry.weight;
+            iter.remove();
+        }
+    }
+
+    private static class Entry
+    {
+        final HttpResponse response;
+        final long weight;
+        final long expiresAt;
+
+        Entry(HttpResponse response, long weight, long expiresAt)
+        {
+            this.response = response;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now)
+        {
+            return expiresAt < now;
+        }
+    }
+}
@@ -0,0 +1,619 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk tier for cached GET responses, letting the cache survive restarts.
+ * <p>
+ * Responses are appended to a log file in the cache directory; removals are
+ * recorded as tombstones. The index (URL -> position of the latest record)
+ * is rebuilt by scanning the log when the cache is opened, and records are
+ * read back from the file when first looked up. The log is rewritten with
+ * only the live records when the dead records take up more space than the
+ * live ones.
+ * <p>
+ * Each record carries a checksum, so a log left incomplete by a crash is
+ * truncated to its last valid record. A directory can be used by a single
+ * process at a time; within a process, the caches opened on the same
+ * directory share a single instance.
+ *
+ * @see HttpCache#setPersistentCacheDirectory(File)
+ */
+final class HttpResponseDiskCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpResponseDiskCache.class);
+
+    /**
+     * Name of the log file, in the cache directory.
+     */
+    static final String LOG_FILE_NAME = "openid4java-http-cache.log";
+
+    /**
+     * Name of the file locked while a process uses the cache directory.
+     */
+    static final String LOCK_FILE_NAME = "openid4java-http-cache.lock";
+
+    /**
+     * Default maximum size, in bytes, of the live records in the log.
+     */
+    static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAGIC = 0x4f344a43;
+
+    private static final int VERSION = 2;
+
+    /**
+     * Size of the file header: magic number and version.
+     */
+    private static final int FILE_HEADER_SIZE = 8;
+
+    /**
+     * Size of the record header: payload length and checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Log size under which dead records are not compacted.
+     */
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private static final byte PUT = 1;
+
+    private static final byte REMOVE = 2;
+
+    /**
+     * Caches opened by this process. Canonical directory -> HttpResponseDiskCache.
+     */
+    private static final Map OPEN_CACHES = new HashMap();
+
+    private final File _directory;
+
+    private final File _file;
+
+    private final RandomAccessFile _lockFile;
+
+    private final FileLock _lock;
+
+    private RandomAccessFile _log;
+
+    private FileChannel _channel;
+
+    /**
+     * Latest live record of each URL, oldest first. URL -> Entry.
+     */
+    private final LinkedHashMap _index = new LinkedHashMap();
+
+    private long _liveSize;
+
+    private long _maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * Gets the cache stored in the provided directory, creating
+     * the directory if needed.
+     *
+     * @throws IOException  If the directory cannot be created or read,
+     *                      or is used by another process.
+     */
+    static HttpResponseDiskCache open(File directory) throws IOException
+    {
+        synchronized (OPEN_CACHES)
+        {
+            File canonical = directory.getCanonicalFile();
+
+            HttpResponseDiskCache cache = (HttpResponseDiskCache) OPEN_CACHES.get(canonical);
+            if (cache == null)
+            {
+                cache = new HttpResponseDiskCache(canonical);
+                OPEN_CACHES.put(canonical, cache);
+            }
+
+            return cache;
+        }
+    }
+
+    private HttpResponseDiskCache(File directory) throws IOException
+    {
+        if (! directory.isDirectory() && ! directory.mkdirs())
+            throw new IOException("Cannot create cache directory: " + directory);
+
+        _directory = directory;
+        _file = new File(directory, LOG_FILE_NAME);
+
+        _lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+        _lock = _lockFile.getChannel().tryLock();
+        if (_lock == null)
+        {
+            _lockFile.close();
+            throw new IOException("Cache directory is used by another process: " + directory);
+        }
+
+        try
+        {
+            openLog();
+            load();
+        }
+        catch (IOException e)
+        {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    private void openLog() throws IOException
+    {
+        _log = new RandomAccessFile(_file, "rw");
+        _channel = _log.getChannel();
+    }
+
+    /**
+     * Rebuilds the index from the log, truncating it after the last
+     * valid record.
+     */
+    private void load() throws IOException
+    {
+        long size = _channel.size();
+
+        if (size < FILE_HEADER_SIZE || ! hasValidFileHeader())
+        {
+            if (size > 0)
+                LOGGER.warn("Discarding unreadable HTTP cache file: " + _file);
+            reset();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= size)
+        {
+            byte[] payload = readRecord(position, size);
+            if (payload == null)
+                break;
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = input.readByte();
+            String url = input.readUTF();
+
+            removeFromIndex(url);
+            if (type == PUT)
+            {
+                long expiresAt = input.readLong();
+                if (expiresAt >= now)
+                    addToIndex(url, new Entry(position,
+                        RECORD_HEADER_SIZE + payload.length, expiresAt));
+            }
+
+            position += RECORD_HEADER_SIZE + payload.length;
+        }
+
+        if (position < size)
+        {
+            LOGGER.warn("Discarding " + (size - position) +
+                " bytes of incomplete records from HTTP cache file: " + _file);
+            _channel.truncate(position);
+        }
+
+        LOGGER.info("Loaded " + _index.size() + " cached responses from " + _file);
+
+        compactIfNeeded();
+    }
+
+    private boolean hasValidFileHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    /**
+     * Reads the payload of the record at the provided position.
+     *
+     * @return  The payload, or null if the record is incomplete or corrupt.
+     */
+    private byte[] readRecord(long position, long size) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, position);
+        header.flip();
+
+        int length = header.getInt();
+        int checksum = header.getInt();
+
+        if (length <= 0 || position + RECORD_HEADER_SIZE + length > size)
+            return null;
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, position + RECORD_HEADER_SIZE);
+
+        if (checksum(payload.array()) != checksum)
+            return null;
+
+        return payload.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = _channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of HTTP cache file: " + _file);
+            position += read;
+        }
+    }
+
+    private static int checksum(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Empties the log, leaving only the file header.
+     */
+    private void reset() throws IOException
+    {
+        _index.clear();
+        _liveSize = 0;
+
+        _channel.truncate(0);
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        _channel.write(header, 0);
+    }
+
+    /**
+     * Gets the response stored for the URL.
+     *
+     * @return  The stored response, or null if none exists, or it has
+     *          expired, or it cannot be read.
+     */
+    synchronized DefaultHttpResponse get(String url)
+    {
+        Entry entry = (Entry) _index.get(url);
+        if (entry == null)
+            return null;
+
+        if (entry.expiresAt < System.currentTimeMillis())
+        {
+            removeFromIndex(url);
+            return null;
+        }
+
+        try
+        {
+            byte[] payload = readRecord(entry.position, _channel.size());
+            if (payload == null)
+                throw new IOException("Corrupt record at " + entry.position);
+
+            return readResponse(new DataInputStream(new ByteArrayInputStream(payload)));
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Cannot read cached response for " + url + " from " + _file, e);
+            removeFromIndex(url);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a response for the URL, replacing any previous one.
+     *
+     * @param expiresAt The time (in milliseconds since the epoch) after
+     *                  which the response is not loaded any more.
+     */
+    synchronized void put(String url, DefaultHttpResponse resp, long expiresAt)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(PUT);
+        output.writeUTF(url);
+        output.writeLong(expiresAt);
+        writeResponse(output, resp);
+        output.flush();
+
+        if (RECORD_HEADER_SIZE + bytes.size() > _maxSize)
+        {
+            remove(url);
+            return;
+        }
+
+        removeFromIndex(url);
+        long position = append(bytes.toByteArray());
+        addToIndex(url, new Entry(position, _channel.size() - position, expiresAt));
+
+        // evict the oldest records
+        while (_liveSize > _maxSize)
+        {
+            String eldest = (String) _index.keySet().iterator().next();
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Evicting persisted GET response for " + eldest);
+            remove(eldest);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the response stored for the URL.
+     */
+    synchronized void remove(String url) throws IOException
+    {
+        if (! removeFromIndex(url))
+            return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(REMOVE);
+        output.writeUTF(url);
+        output.flush();
+
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Removes all stored responses.
+     */
+    synchronized void clear() throws IOException
+    {
+        reset();
+    }
+
+    synchronized int size()
+    {
+        return _index.size();
+    }
+
+    synchronized void setMaxSize(long maxSize)
+    {
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @return  The position of the record.
+     */
+    private long append(byte[] payload) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+
+        long position = _channel.size();
+        while (record.hasRemaining())
+            _channel.write(record, position + record.position());
+
+        return position;
+    }
+
+    private void addToIndex(String url, Entry entry)
+    {
+        _index.put(url, entry);
+        _liveSize += entry.length;
+    }
+
+    private boolean removeFromIndex(String url)
+    {
+        Entry entry = (Entry) _index.remove(url);
+        if (entry == null)
+            return false;
+
+        _liveSize -= entry.length;
+        return true;
+    }
+
+    /**
+     * Rewrites the log with only the live records, if the dead records
+     * take up more space than the live ones.
+     */
+    private void compactIfNeeded() throws IOException
+    {
+        long size = _channel.size();
+        if (size < MIN_COMPACTION_SIZE || size - FILE_HEADER_SIZE < 2 * _liveSize)
+            return;
+
+        LOGGER.info("Compacting HTTP cache file " + _file + ": " + size +
+            " bytes, " + _liveSize + " bytes live.");
+
+        File compacted = new File(_directory, LOG_FILE_NAME + ".tmp");
+        RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+        try
+        {
+            FileChannel targetChannel = target.getChannel();
+            targetChannel.truncate(0);
+
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            targetChannel.write(header, 0);
+
+            long position = FILE_HEADER_SIZE;
+            Iterator iter = _index.values().iterator();
+            while (iter.hasNext())
+            {
+                Entry entry = (Entry) iter.next();
+
+                long copied = 0;
+                while (copied < entry.length)
+                    copied += _channel.transferTo(entry.position + copied,
+                        entry.length - copied, targetChannel.position(position + copied));
+
+                entry.position = position;
+                position += entry.length;
+            }
+
+            targetChannel.force(true);
+        }
+        finally
+        {
+            target.close();
+        }
+
+        _log.close();
+        try
+        {
+            Files.move(compacted.toPath(), _file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(compacted.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            openLog();
+        }
+    }
+
+    /**
+     * Closes the files, letting another process use the cache directory.
+     * The cache must not be used afterwards.
+     */
+    void close() throws IOException
+    {
+        synchronized (OPEN_CACHES)
+        {
+            OPEN_CACHES.remove(_directory);
+
+            synchronized (this)
+            {
+                closeFiles();
+            }
+        }
+    }
+
+    private void closeFiles() throws IOException
+    {
+        try
+        {
+            if (_log != null)
+                _log.close();
+        }
+        finally
+        {
+            _lock.release();
+            _lockFile.close();
+        }
+    }
+
+    private static void writeResponse(DataOutputStream output, DefaultHttpResponse resp)
+        throws IOException
+    {
+        output.writeLong(resp.getTimestamp());
+        output.writeInt(resp.getStatusCode());
+        writeString(output, resp.getStatusLine());
+        output.writeInt(resp.getMaxRedirectsFollowed());
+        writeString(output, resp.getFinalUri());
+
+        Header[] headers = resp.getAllHeaders();
+        output.writeInt(headers.length);
+        for (int i = 0; i < headers.length; i++)
+        {
+            output.writeUTF(headers[i].getName());
+            writeString(output, headers[i].getValue());
+        }
+
+        output.writeBoolean(resp.isBodySizeExceeded());
+        output.writeBoolean(resp.isBodyPartial());
+        output.writeUTF(resp.getBodyCharset());
+
+        byte[] body = resp.getBodyBytes();
+        output.writeInt(body != null ? body.length : -1);
+        if (body != null)
+            output.write(body);
+    }
+
+    private static DefaultHttpResponse readResponse(DataInputStream input) throws IOException
+    {
+        input.readByte();
+        input.readUTF();
+        input.readLong();
+
+        long timestamp = input.readLong();
+        int statusCode = input.readInt();
+        String statusLine = readString(input);
+        int maxRedirects = input.readInt();
+        String finalUri = readString(input);
+
+        Header[] headers = new Header[input.readInt()];
+        for (int i = 0; i < headers.length; i++)
+            headers[i] = new BasicHeader(input.readUTF(), readString(input));
+
+        boolean bodySizeExceeded = input.readBoolean();
+        boolean bodyPartial = input.readBoolean();
+        String charset = input.readUTF();
+
+        byte[] body = null;
+        int bodyLength = input.readInt();
+        if (bodyLength >= 0)
+        {
+            body = new byte[bodyLength];
+            input.readFully(body);
+        }
+
+        DefaultHttpResponse resp = new DefaultHttpResponse(statusCode, statusLine,
+            maxRedirects, finalUri, headers, body,
+            Charset.isSupported(charset) ? Charset.forName(charset) : StandardCharsets.UTF_8,
+            timestamp);
+        resp.setBodySizeExceeded(bodySizeExceeded);
+        resp.setBodyPartial(bodyPartial);
+        return resp;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException
+    {
+        output.writeBoolean(value != null);
+        if (value != null)
+            output.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream input) throws IOException
+    {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static class Entry
+    {
+        long position;
+        final long length;
+        final long expiresAt;
+
+        Entry(long position, long length, long expiresAt)
+        {
+            this.position = position;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically closes expired and idle connections of the pooled
+ * connection managers created by the {@link HttpClientFactory}, using
+ * a single daemon thread.
+ * <p>
+ * Connection managers are only weakly referenced, and stop being reaped
+ * once they are garbage collected or shut down.
+ */
+final class IdleConnectionReaper implements Runnable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdleConnectionReaper.class);
+
+    private static final ScheduledExecutorService EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "openid4java-connection-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final WeakReference _connManager;
+
+    private final long _idleTimeout;
+
+    private volatile ScheduledFuture _future;
+
+    private IdleConnectionReaper(ClientConnectionManager connManager, long idleTimeout)
+    {
+        _connManager = new WeakReference(connManager);
+        _idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Starts reaping the connections of the provided connection manager.
+     */
+    static void register(ClientConnectionManager connManager, ConnectionPoolOptions poolOptions)
+    {
+        IdleConnectionReaper reaper = new IdleConnectionReaper(
+            connManager, poolOptions.getIdleConnectionTimeout());
+
+        reaper._future = EXECUTOR.scheduleWithFixedDelay(reaper,
+            poolOptions.getReaperInterval(), poolOptions.getReaperInterval(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    public void run()
+    {
+        ClientConnectionManager connManager = (ClientConnectionManager) _connManager.get();
+        if (connManager == null)
+        {
+            if (_future != null)
+                _future.cancel(false);
+            return;
+        }
+
+        try
+        {
+            connManager.closeExpiredConnections();
+            if (_idleTimeout > 0)
+                connManager.closeIdleConnections(_idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (IllegalStateException e)
+        {
+            // connection manager was shut down
+            if (_future != null)
+                _future.cancel(false);
+        }
+        catch (RuntimeException e)
+        {
+            LOGGER.warn("Error closing idle HTTP connections.", e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * {@link HttpFetcher} placing the HTTP requests through the JDK HttpClient,
+ * using HTTP/2 when the server supports it: concurrent requests to the
+ * same server are multiplexed on a single connection, instead of using
+ * a pool of connections.
+ * <p>
+ * Responses are cached with the same rules as {@link HttpCache}, and the
+ * same HttpRequestOptions (timeouts, redirects, maximum body size) are
+ * honored. The proxy configured through
+ * {@link HttpClientFactory#setProxyProperties(ProxyProperties)} is used.
+ *
+ * @see JdkHttpFetcherProvider
+ */
+public class JdkHttpFetcher extends AbstractHttpFetcher
+{
+    /**
+     * Places the requests and caches the responses.
+     */
+    private final AsyncHttpCache _cache;
+
+    public JdkHttpFetcher()
+    {
+        this((SSLContext) null);
+    }
+
+    /**
+     * Constructs a new JdkHttpFetcher object, that will be initialized with
+     * the default set of HttpRequestOptions.
+     *
+     * @param sslContext    The SSL context to use for HTTPS requests,
+     *                      or null for the default one.
+     */
+    public JdkHttpFetcher(SSLContext sslContext)
+    {
+        _cache = new AsyncHttpCache(sslContext);
+    }
+
+    private JdkHttpFetcher(AsyncHttpCache cache)
+    {
+        _cache = cache;
+    }
+
+    /**
+     * Creates a new JdkHttpFetcher sharing the HttpClient (and its
+     * connections), the cached responses and the in-flight requests of
+     * this one, but with its own default request options.
+     * <p>
+     * The cache settings, such as {@link #setMaxCacheEntries(int)}, apply
+     * to all the sharing instances.
+     */
+    public JdkHttpFetcher share()
+    {
+        return new JdkHttpFetcher(_cache);
+    }
+
+    /**
+     * Sets the maximum number of entries kept in each of the GET and HEAD
+     * caches; least recently used entries are evicted first.
+     */
+    public void setMaxCacheEntries(int maxCacheEntries)
+    {
+        _cache.setMaxCacheEntries(maxCacheEntries);
+    }
+
+    /**
+     * Sets the maximum (approximate) size in bytes of the responses kept
+     * in each of the GET and HEAD caches; least recently used entries
+     * are evicted first.
+     */
+    public void setMaxCacheSize(long maxCacheSize)
+    {
+        _cache.setMaxCacheSize(maxCacheSize);
+    }
+
+    /**
+     * Keeps a copy of the successful GET responses in the provided directory,
+     * so that the cache survives restarts: the responses persisted there
+     * by a previous run are used until they expire.
+     * <p>
+     * Fetchers configured with the same directory share its contents;
+     * a directory can be used by a single process at a time.
+     *
+     * @param directory     The cache directory, created if needed,
+     *                      or null to cache responses in memory only.
+     * @throws IOException  If the directory cannot be used.
+     */
+    public void setPersistentCacheDirectory(File directory) throws IOException
+    {
+        _cache.setPersistentCacheDirectory(directory);
+    }
+
+    /**
+     * Removes all cached GET and HEAD responses.
+     */
+    public void clearCache()
+    {
+        _cache.clearCache();
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#get(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse get(String url, HttpRequestOptions requestOptions)
+            throws IOException
+    {
+        return await(_cache.get(url, requestOptions), requestOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#head(java.lang.String, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse head(String url, HttpRequestOptions requestOptions)
+            throws IOException
+    {
+        return await(_cache.head(url, requestOptions), requestOptions);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openid4java.util.HttpFetcher#post(java.lang.String, java.util.Map, org.openid4java.util.HttpRequestOptions)
+     */
+    public HttpResponse post(String url, Map<String, String> parameters,
+                             HttpRequestOptions requestOptions) throws IOException
+    {
+        return await(_cache.post(url, parameters, requestOptions), requestOptions);
+    }
+
+    /**
+     * Waits for the response, rethrowing the exception of failed requests.
+     * The wait is limited to the connection plus socket timeout of the
+     * request options; longer waits fail with a SocketTimeoutException.
+     */
+    private static HttpResponse await(CompletableFuture<HttpResponse> response,
+                                      HttpRequestOptions requestOptions)
+            throws IOException
+    {
+        long timeout = AsyncHttpCache.getTimeout(requestOptions);
+        try
+        {
+            return timeout > 0 ?
+                response.get(timeout, TimeUnit.MILLISECONDS) : response.get();
+        }
+        catch (TimeoutException e)
+        {
+            response.cancel(true);
+            throw new SocketTimeoutException(
+                "Timed out after " + timeout + " ms waiting for HTTP response");
+        }
+        catch (InterruptedException e)
+        {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for HTTP response");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new IOException(cause);
+        }
+    }
+}
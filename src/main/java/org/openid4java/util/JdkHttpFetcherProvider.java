@@ -0,0 +1,63 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import com.google.inject.Provider;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Provides {@link JdkHttpFetcher}s sharing a single JDK HttpClient, and
+ * thus the (multiplexed HTTP/2) connections to the remote servers, as well
+ * as a single response cache, so that the Yadis, HTML, XRI and realm
+ * verification discovery of an identifier reuse each other's responses.
+ * Each provided fetcher has its own default request options.
+ * <p>
+ * Can be passed to {@link HttpFetcherFactory#HttpFetcherFactory(Provider)},
+ * or bound in a Guice module:
+ * <pre>
+ * bind(HttpFetcher.class).toProvider(JdkHttpFetcherProvider.class);
+ * </pre>
+ */
+public class JdkHttpFetcherProvider implements Provider<HttpFetcher>
+{
+    private final SSLContext _sslContext;
+
+    /**
+     * The fetcher whose client and cache are shared by the provided
+     * fetchers; created on first use.
+     */
+    private JdkHttpFetcher _fetcher;
+
+    public JdkHttpFetcherProvider()
+    {
+        this(null);
+    }
+
+    /**
+     * @param sslContext    The SSL context to use for HTTPS requests,
+     *                      or null for the default one.
+     */
+    public JdkHttpFetcherProvider(SSLContext sslContext)
+    {
+        _sslContext = sslContext;
+    }
+
+    /* (non-Javadoc)
+     * @see com.google.inject.Provider#get()
+     */
+    public HttpFetcher get()
+    {
+        return getFetcher().share();
+    }
+
+    private synchronized JdkHttpFetcher getFetcher()
+    {
+        if (_fetcher == null)
+            _fetcher = new JdkHttpFetcher(_sslContext);
+
+        return _fetcher;
+    }
+}
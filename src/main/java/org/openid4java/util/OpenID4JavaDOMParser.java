@@ -54,6 +54,25 @@ public class OpenID4JavaDOMParser extends DOMParser implements HTMLTagBalancingL
         }
     }
 
+    /**
+     * Create an InputSource from bytes, without decoding them first.
+     *
+     * @param bytes
+     *            the bytes
+     * @param encoding
+     *            the encoding of the bytes, or null to let the parser
+     *            detect it
+     * @return an InputSource
+     * @throws NullPointerException
+     *             if bytes is null.
+     */
+    public static InputSource createInputSource(byte[] bytes, String encoding)
+    {
+        InputSource source = new InputSource(new ByteArrayInputStream(bytes));
+        source.setEncoding(encoding);
+        return source;
+    }
+
     /**
      * Transform the document to string.
      * 
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent identical HTTP requests, so that only one of them
+ * is placed on the network while the others wait for and share its result.
+ * <p>
+ * The first thread to request a given key places the call; threads
+ * requesting the same key while the call is in progress wait for it
+ * (up to a timeout) and receive the same response, or the same exception.
+ *
+ * @see HttpCache
+ */
+final class RequestCoalescer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    private final ConcurrentMap _inFlight = new ConcurrentHashMap();
+
+    /**
+     * Builds the key identifying equivalent requests: same method and URL,
+     * and same request options affecting what is fetched.
+     */
+    static String key(String method, String url, HttpRequestOptions requestOptions)
+    {
+        StringBuffer key = new StringBuffer(method).append(' ').append(url)
+                .append(" redirects=").append(requestOptions.getMaxRedirects())
+                .append(" circular=").append(requestOptions.getAllowCircularRedirects())
+                .append(" maxBody=").append(requestOptions.getMaxBodySize())
+                .append(" htmlHeadOnly=").append(requestOptions.isHtmlHeadOnly());
+
+        Map requestHeaders = requestOptions.getRequestHeaders();
+        if (requestHeaders != null)
+        {
+            Iterator iter = new TreeMap(requestHeaders).entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry header = (Map.Entry) iter.next();
+                key.append(' ').append(header.getKey()).append('=').append(header.getValue());
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Executes the call, or waits for an identical call already in progress.
+     *
+     * @param key           Key identifying equivalent requests.
+     * @param timeoutMillis Maximum time to wait for an in-progress call.
+     * @param call          The call to place if none is in progress.
+     * @return              The response of the (shared) call.
+     * @throws IOException  The exception thrown by the (shared) call,
+     *                      or a SocketTimeoutException if the in-progress
+     *                      call did not complete in time.
+     */
+    HttpResponse execute(String key, long timeoutMillis, Callable call)
+            throws IOException
+    {
+        FutureTask task = new FutureTask(call);
+        FutureTask inFlight = (FutureTask) _inFlight.putIfAbsent(key, task);
+
+        if (inFlight == null)
+        {
+            try
+            {
+                task.run();
+                return getResult(task);
+            }
+            finally
+            {
+                _inFlight.remove(key, task);
+            }
+        }
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Waiting for in-flight request: " + key);
+
+        try
+        {
+            return (HttpResponse) (timeoutMillis > 0 ?
+                inFlight.get(timeoutMillis, TimeUnit.MILLISECONDS) : inFlight.get());
+        }
+        catch (TimeoutException e)
+        {
+            throw new SocketTimeoutException("Timed out after " + timeoutMillis +
+                " ms waiting for in-flight request: " + key);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for in-flight request: " + key);
+        }
+        catch (ExecutionException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Returns the number of calls currently in progress.
+     */
+    int getInFlightCount()
+    {
+        return _inFlight.size();
+    }
+
+    private HttpResponse getResult(FutureTask task) throws IOException
+    {
+        try
+        {
+            return (HttpResponse) task.get();
+        }
+        catch (InterruptedException e)
+        {
+            // cannot happen, the task has completed in this thread
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    private IOException unwrap(ExecutionException e)
+    {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+
+        return new IOException(cause);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * The body of an HTTP response, read up to the maximum size allowed
+ * by the request options.
+ */
+final class ResponseBody
+{
+    private final byte[] body;
+    private final Charset charset;
+    private final boolean bodyIsTruncated;
+    private final boolean bodyIsPartial;
+
+    public ResponseBody(byte[] body, Charset charset, boolean truncated)
+    {
+        this(body, charset, truncated, false);
+    }
+
+    /**
+     * @param partial   True if only the head section of an HTML body was read.
+     */
+    public ResponseBody(byte[] body, Charset charset, boolean truncated, boolean partial)
+    {
+        this.body = body;
+        this.charset = charset;
+        this.bodyIsTruncated = truncated;
+        this.bodyIsPartial = partial;
+    }
+
+    /**
+     * Gets the body decoded with its charset.
+     */
+    public String getBody()
+    {
+        return body != null ? new String(body, charset) : null;
+    }
+
+    public byte[] getBytes()
+    {
+        return body;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public boolean isBodyTruncated()
+    {
+        return bodyIsTruncated;
+    }
+
+    public boolean isBodyPartial()
+    {
+        return bodyIsPartial;
+    }
+}
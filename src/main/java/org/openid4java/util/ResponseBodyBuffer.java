@@ -0,0 +1,576 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Accumulates an HTTP response body up to the maximum body size,
+ * growing its buffer on demand so that the memory used is proportional
+ * to the actual size of the response rather than to the size limit.
+ * <p>
+ * Buffers acquired through {@link #acquire(int, long)} reuse a per-thread
+ * array, and must be {@link #release() released} after use.
+ */
+final class ResponseBodyBuffer
+{
+    /**
+     * Initial size of the buffer, when the response size is not known.
+     */
+    private static final int INITIAL_SIZE = 1024;
+
+    /**
+     * Largest array kept for reuse by each thread.
+     */
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    /**
+     * Charset used when the response does not specify one.
+     */
+    static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
+    private static final ThreadLocal POOL = new ThreadLocal();
+
+    /**
+     * Tags (lower case) marking the end of the head section of an HTML page.
+     */
+    private static final byte[][] HTML_HEAD_END = {
+        "</head".getBytes(StandardCharsets.US_ASCII),
+        "<body".getBytes(StandardCharsets.US_ASCII) };
+
+    /**
+     * Start and end tags (lower case) of the head elements whose content
+     * is text up to their end tag: SCRIPT, STYLE and TITLE.
+     */
+    private static final byte[][] RAW_TEXT_START = {
+        "<script".getBytes(StandardCharsets.US_ASCII),
+        "<style".getBytes(StandardCharsets.US_ASCII),
+        "<title".getBytes(StandardCharsets.US_ASCII) };
+
+    private static final byte[][] RAW_TEXT_END = {
+        "</script".getBytes(StandardCharsets.US_ASCII),
+        "</style".getBytes(StandardCharsets.US_ASCII),
+        "</title".getBytes(StandardCharsets.US_ASCII) };
+
+    private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Number of bytes needed after a '<' to tell which markup it starts:
+     * the longest tag above, and the character ending its name.
+     */
+    private static final int MARKUP_LOOKAHEAD = 9;
+
+    private static final int IN_TEXT = 0;
+    private static final int IN_TAG = 1;
+    private static final int IN_ATTRIBUTE_VALUE = 2;
+    private static final int IN_COMMENT = 3;
+    private static final int IN_RAW_TEXT = 4;
+    private static final int IN_SCRIPT_COMMENT = 5;
+
+    private final int _maxSize;
+
+    private final boolean _pooled;
+
+    private byte[] _data;
+
+    private int _size;
+
+    private boolean _truncated;
+
+    private boolean _htmlHeadOnly;
+
+    /**
+     * Number of bytes already scanned for the end of the HTML head.
+     */
+    private int _scanned;
+
+    /**
+     * Where the scan for the end of the HTML head is in the markup.
+     */
+    private int _htmlState = IN_TEXT;
+
+    /**
+     * Offset of the '<' starting the tag or comment being scanned.
+     */
+    private int _markupStart;
+
+    /**
+     * Quote of the attribute value being scanned.
+     */
+    private byte _quote;
+
+    /**
+     * End tag of the SCRIPT, STYLE or TITLE element being scanned,
+     * or null if outside of them.
+     */
+    private byte[] _rawTextEnd;
+
+    private boolean _htmlHeadComplete;
+
+    /**
+     * @param maxSize       The maximum number of bytes to keep.
+     * @param expectedSize  The expected size of the body (the content
+     *                      length), or a negative value if unknown.
+     */
+    ResponseBodyBuffer(int maxSize, long expectedSize)
+    {
+        this(maxSize, expectedSize, null);
+    }
+
+    private ResponseBodyBuffer(int maxSize, long expectedSize, byte[] pooled)
+    {
+        _maxSize = Math.max(maxSize, 0);
+        _pooled = pooled != null;
+
+        int initialSize = (int) Math.min(_maxSize,
+            expectedSize >= 0 ? expectedSize : INITIAL_SIZE);
+
+        _data = pooled != null && pooled.length >= initialSize ?
+            pooled : new byte[initialSize];
+    }
+
+    /**
+     * Gets a buffer reusing the array released by the last buffer
+     * used by the current thread, if any.
+     *
+     * @see #ResponseBodyBuffer(int, long)
+     */
+    static ResponseBodyBuffer acquire(int maxSize, long expectedSize)
+    {
+        byte[] pooled = (byte[]) POOL.get();
+        POOL.set(null);
+
+        return new ResponseBodyBuffer(maxSize, expectedSize,
+            pooled != null ? pooled : new byte[0]);
+    }
+
+    /**
+     * Returns the array of an acquired buffer for reuse by the current
+     * thread; the buffer must not be used afterwards.
+     */
+    void release()
+    {
+        if (_pooled && _data.length <= MAX_POOLED_SIZE)
+            POOL.set(_data);
+
+        _data = null;
+    }
+
+    /**
+     * Reads the input stream until its end, or until the maximum size
+     * is reached. The input stream is not closed.
+     */
+    void readFrom(InputStream input) throws IOException
+    {
+        while (_size < _maxSize)
+        {
+            ensureCapacity(_size + 1);
+
+            int read = input.read(_data, _size, Math.min(_data.length, _maxSize) - _size);
+            if (read == -1)
+                return;
+
+            _size += read;
+
+            if (_htmlHeadOnly && scanHtmlHeadEnd())
+                return;
+        }
+
+        _truncated = _truncated || input.read() != -1;
+    }
+
+    /**
+     * Appends the bytes remaining in the provided buffer.
+     *
+     * @return  False if the maximum size was exceeded; the bytes
+     *          above the limit are discarded.
+     */
+    boolean write(ByteBuffer buffer)
+    {
+        int length = Math.min(buffer.remaining(), _maxSize - _size);
+
+        ensureCapacity(_size + length);
+        buffer.get(_data, _size, length);
+        _size += length;
+
+        if (buffer.hasRemaining())
+            _truncated = true;
+
+        if (_htmlHeadOnly && scanHtmlHeadEnd())
+            return false;
+
+        return ! _truncated;
+    }
+
+    /**
+     * Makes the buffer stop reading once the end of the head section
+     * of an HTML page (closing head tag or opening body tag) is read.
+     * The tags are looked for in the raw bytes, so the body must be
+     * in an ASCII-compatible charset, and must not be compressed.
+     */
+    void setHtmlHeadOnly(boolean htmlHeadOnly)
+    {
+        _htmlHeadOnly = htmlHeadOnly;
+    }
+
+    /**
+     * Returns true if the reading stopped at the end of the HTML head.
+     */
+    boolean isHtmlHeadComplete()
+    {
+        return _htmlHeadComplete;
+    }
+
+    /**
+     * Scans the bytes read since the last call for the end of the HTML
+     * head, including the tags split across two calls. Like the parser
+     * of the head, the tags inside comments, attribute values, and the
+     * content of SCRIPT, STYLE and TITLE elements are skipped.
+     */
+    private boolean scanHtmlHeadEnd()
+    {
+        int i = _scanned;
+        for (; i < _size && ! _htmlHeadComplete; i++)
+        {
+            byte b = _data[i];
+            if (_htmlState == IN_TEXT || _htmlState == IN_RAW_TEXT)
+            {
+                if (b != '<')
+                    continue;
+
+                // rescanned with the next bytes if the markup is cut
+                if (i + MARKUP_LOOKAHEAD > _size)
+                    break;
+
+                _markupStart = i;
+                i = _htmlState == IN_TEXT ? scanMarkup(i) : scanRawTextMarkup(i);
+            }
+            else if (_htmlState == IN_TAG)
+            {
+                if (b == '>')
+                {
+                    _htmlState = _rawTextEnd != null ? IN_RAW_TEXT : IN_TEXT;
+                }
+                else if ((b == '"' || b == '\'') && isAttributeValueStart(i))
+                {
+                    _quote = b;
+                    _htmlState = IN_ATTRIBUTE_VALUE;
+                }
+            }
+            else if (_htmlState == IN_ATTRIBUTE_VALUE)
+            {
+                if (b == _quote)
+                    _htmlState = IN_TAG;
+            }
+            else if (b == '>' && isCommentEnd(i))
+            {
+                _htmlState = _htmlState == IN_COMMENT ? IN_TEXT : IN_RAW_TEXT;
+            }
+        }
+
+        _scanned = i;
+        return _htmlHeadComplete;
+    }
+
+    /**
+     * Scans the start of the markup at the offset, outside of the
+     * SCRIPT, STYLE and TITLE elements.
+     *
+     * @return The offset of the last byte scanned.
+     */
+    private int scanMarkup(int offset)
+    {
+        if (startsWith(offset, COMMENT_START))
+        {
+            _htmlState = IN_COMMENT;
+            return offset + COMMENT_START.length - 1;
+        }
+
+        for (int tag = 0; tag < HTML_HEAD_END.length; tag++)
+        {
+            if (regionMatches(offset, HTML_HEAD_END[tag]))
+            {
+                _htmlHeadComplete = true;
+                return offset;
+            }
+        }
+
+        for (int tag = 0; tag < RAW_TEXT_START.length; tag++)
+        {
+            if (regionMatches(offset, RAW_TEXT_START[tag]))
+                _rawTextEnd = RAW_TEXT_END[tag];
+        }
+
+        // a '<' that starts no tag, declaration or processing
+        // instruction is text
+        int next = _data[offset + 1];
+        if (isLetter(next) || next == '!' || next == '?' ||
+            (next == '/' && isLetter(_data[offset + 2])))
+            _htmlState = IN_TAG;
+
+        return offset;
+    }
+
+    /**
+     * Scans the start of the markup at the offset, in the content of a
+     * SCRIPT, STYLE or TITLE element, where only its end tag matters.
+     *
+     * @return The offset of the last byte scanned.
+     */
+    private int scanRawTextMarkup(int offset)
+    {
+        // like CyberNeko HTML, a script comment hides the end tags
+        if (_rawTextEnd == RAW_TEXT_END[0] && startsWith(offset, COMMENT_START))
+        {
+            _htmlState = IN_SCRIPT_COMMENT;
+            return offset + COMMENT_START.length - 1;
+        }
+
+        if (regionMatches(offset, _rawTextEnd))
+        {
+            _htmlState = IN_TAG;
+            _rawTextEnd = null;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Checks if the quote at the offset starts an attribute value,
+     * that is if it follows an equals sign.
+     */
+    private boolean isAttributeValueStart(int offset)
+    {
+        int i = offset - 1;
+        while (i > _markupStart && isSpace(_data[i]))
+            i--;
+
+        return _data[i] == '=';
+    }
+
+    /**
+     * Checks if the '>' at the offset ends the comment being scanned.
+     */
+    private boolean isCommentEnd(int offset)
+    {
+        return offset - 2 >= _markupStart + COMMENT_START.length &&
+            _data[offset - 1] == '-' && _data[offset - 2] == '-';
+    }
+
+    /**
+     * Checks, ignoring the ASCII case, if the bytes at the offset are those
+     * of the lower case tag, followed by a character ending the tag name.
+     */
+    private boolean regionMatches(int offset, byte[] tag)
+    {
+        if (offset + tag.length >= _size || ! startsWith(offset, tag))
+            return false;
+
+        int next = _data[offset + tag.length];
+        return next == '>' || next == '/' || isSpace(next);
+    }
+
+    /**
+     * Checks, ignoring the ASCII case, if the bytes at the offset are
+     * the lower case ones provided.
+     */
+    private boolean startsWith(int offset, byte[] bytes)
+    {
+        if (offset + bytes.length > _size)
+            return false;
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int b = _data[offset + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isLetter(int b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isSpace(int b)
+    {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+    }
+
+    /**
+     * Returns true if the content type is that of an HTML page.
+     */
+    static boolean isHtml(String contentType)
+    {
+        if (contentType == null)
+            return false;
+
+        String mediaType = contentType.split(";")[0].trim();
+        return "text/html".equalsIgnoreCase(mediaType) ||
+            "application/xhtml+xml".equalsIgnoreCase(mediaType);
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= _data.length)
+            return;
+
+        int newLength = Math.max(_data.length * 2, INITIAL_SIZE);
+        newLength = Math.min(Math.max(newLength, capacity), _maxSize);
+
+        byte[] data = new byte[newLength];
+        System.arraycopy(_data, 0, data, 0, _size);
+        _data = data;
+    }
+
+    /**
+     * Decompresses the bytes read, up to the maximum size.
+     *
+     * @see #decompress(String, int, boolean)
+     */
+    ResponseBodyBuffer decompress(String contentCoding, int maxSize) throws IOException
+    {
+        return decompress(contentCoding, maxSize, false);
+    }
+
+    /**
+     * Decompresses the bytes read, encoded with the provided content coding,
+     * up to the maximum size.
+     *
+     * @param contentCoding The content coding: gzip, x-gzip or deflate.
+     * @param maxSize       The maximum number of decompressed bytes to keep.
+     * @param htmlHeadOnly  If true, stops at the end of the HTML head.
+     * @return              A new buffer holding the decompressed bytes;
+     *                      it is truncated if this buffer was.
+     * @throws IOException  If the data is not valid for the content coding.
+     */
+    ResponseBodyBuffer decompress(String contentCoding, int maxSize, boolean htmlHeadOnly)
+        throws IOException
+    {
+        ResponseBodyBuffer decompressed = new ResponseBodyBuffer(maxSize, -1);
+        decompressed._htmlHeadOnly = htmlHeadOnly;
+
+        try
+        {
+            if ("deflate".equalsIgnoreCase(contentCoding))
+            {
+                try
+                {
+                    decompressed.readFrom(new InflaterInputStream(
+                        new ByteArrayInputStream(_data, 0, _size)));
+                }
+                catch (ZipException e)
+                {
+                    // some servers send raw deflate data, without the zlib wrapper
+                    decompressed = new ResponseBodyBuffer(maxSize, -1);
+                    decompressed._htmlHeadOnly = htmlHeadOnly;
+                    decompressed.readFrom(new InflaterInputStream(
+                        new ByteArrayInputStream(_data, 0, _size), new Inflater(true)));
+                }
+            }
+            else
+            {
+                decompressed.readFrom(new GZIPInputStream(
+                    new ByteArrayInputStream(_data, 0, _size)));
+            }
+        }
+        catch (EOFException e)
+        {
+            // the compressed data was truncated
+            if (! _truncated)
+                throw e;
+        }
+
+        decompressed._truncated = decompressed._truncated || _truncated;
+        return decompressed;
+    }
+
+    /**
+     * Returns true if the bytes can be decompressed by
+     * {@link #decompress(String, int, boolean)}.
+     */
+    static boolean isSupportedContentCoding(String contentCoding)
+    {
+        return "gzip".equalsIgnoreCase(contentCoding) ||
+            "x-gzip".equalsIgnoreCase(contentCoding) ||
+            "deflate".equalsIgnoreCase(contentCoding);
+    }
+
+    /**
+     * Returns the number of bytes read.
+     */
+    int size()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns true if the body was larger than the maximum size.
+     */
+    boolean isTruncated()
+    {
+        return _truncated;
+    }
+
+    /**
+     * Gets the bytes read, in the provided charset.
+     */
+    ResponseBody toBody(Charset charset)
+    {
+        return new ResponseBody(Arrays.copyOf(_data, _size), charset, _truncated,
+            _htmlHeadComplete);
+    }
+
+    /**
+     * Gets the charset from the value of a Content-Type header.
+     *
+     * @return  The charset specified by the content type, or the default
+     *          charset if none, or an unsupported one, is specified.
+     */
+    static Charset getCharset(String contentType)
+    {
+        if (contentType != null)
+        {
+            String[] params = contentType.split(";");
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+                if (! param.regionMatches(true, 0, "charset=", 0, 8))
+                    continue;
+
+                String charset = param.substring(8).trim();
+                if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\""))
+                    charset = charset.substring(1, charset.length() - 1);
+
+                try
+                {
+                    if (Charset.isSupported(charset))
+                        return Charset.forName(charset);
+                }
+                catch (IllegalCharsetNameException e)
+                {
+                    // use the default
+                }
+            }
+        }
+
+        return DEFAULT_CHARSET;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DiscoveryCacheTest extends TestCase
+{
+    private DiscoveryCache _cache;
+
+    private List _endpoints;
+
+    public void setUp() throws Exception
+    {
+        _cache = new DiscoveryCache();
+
+        _endpoints = new ArrayList();
+        _endpoints.add(new DiscoveryInformation(new URL("http://op.example.com/")));
+    }
+
+    public void testReturnsCopiesByNormalizedIdentifier() throws Exception
+    {
+        _cache.put(new UrlIdentifier("http://Example.com"), _endpoints);
+        _endpoints.clear();
+
+        List cached = _cache.get(new UrlIdentifier("http://example.com/"));
+        assertEquals(1, cached.size());
+
+        // callers may modify the returned list
+        cached.clear();
+        assertEquals(1, _cache.get(new UrlIdentifier("http://example.com/")).size());
+
+        assertNull(_cache.get(new UrlIdentifier("http://example.com/other")));
+    }
+
+    public void testInvalidationAndExpiry() throws Exception
+    {
+        UrlIdentifier identifier = new UrlIdentifier("http://example.com/");
+
+        _cache.put(identifier, _endpoints);
+        assertTrue(_cache.remove(identifier));
+        assertFalse(_cache.remove(identifier));
+        assertNull(_cache.get(identifier));
+
+        _cache.setTtlSeconds(0);
+        _cache.put(identifier, _endpoints);
+        assertEquals(0, _cache.size());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        _cache.setMaxEntries(2);
+
+        _cache.put(new UrlIdentifier("http://example.com/a"), _endpoints);
+        _cache.put(new UrlIdentifier("http://example.com/b"), _endpoints);
+        _cache.get(new UrlIdentifier("http://example.com/a"));
+        _cache.put(new UrlIdentifier("http://example.com/c"), _endpoints);
+
+        assertEquals(2, _cache.size());
+        assertNotNull(_cache.get(new UrlIdentifier("http://example.com/a")));
+        assertNull(_cache.get(new UrlIdentifier("http://example.com/b")));
+    }
+
+    public void testRefreshKeepsOrderOfUse() throws Exception
+    {
+        _cache.setMaxEntries(2);
+
+        UrlIdentifier a = new UrlIdentifier("http://example.com/a");
+        _cache.put(a, _endpoints);
+        _cache.get(a);
+        _cache.put(new UrlIdentifier("http://example.com/b"), _endpoints);
+
+        List candidates = _cache.getRefreshCandidates(Long.MAX_VALUE, 1);
+        assertEquals(1, candidates.size());
+        _cache.replace((DiscoveryCache.Entry) candidates.get(0), new ArrayList());
+
+        // the refreshed entry is still the least recently used one
+        _cache.put(new UrlIdentifier("http://example.com/c"), _endpoints);
+        assertNull(_cache.get(a));
+        assertNotNull(_cache.get(new UrlIdentifier("http://example.com/b")));
+    }
+
+    public void testReplaceSkipsReplacedEntries() throws Exception
+    {
+        UrlIdentifier a = new UrlIdentifier("http://example.com/a");
+        _cache.put(a, _endpoints);
+        _cache.get(a);
+
+        DiscoveryCache.Entry entry = (DiscoveryCache.Entry)
+            _cache.getRefreshCandidates(Long.MAX_VALUE, 1).get(0);
+        _cache.put(a, new ArrayList());
+        _cache.replace(entry, _endpoints);
+
+        assertEquals(0, _cache.get(a).size());
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DiscoveryCacheTest.class);
+    }
+}
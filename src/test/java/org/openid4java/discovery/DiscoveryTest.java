@@ -10,6 +10,26 @@ import junit.framework.TestSuite;
 
 import javax.servlet.ServletException;
 
+import org.openid4java.OpenIDException;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.html.HtmlResult;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.util.HttpCache;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 
 /**
  * @author Marius Scurtescu, Johnny Bufu
@@ -64,6 +84,398 @@ public class DiscoveryTest extends TestCase
         assertTrue(_discovery.parseIdentifier("!!1234") instanceof XriIdentifier);
     }
 
+    public void testParallelDiscoveryPrefersYadis() throws Exception
+    {
+        final List yadisEndpoints = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op.example.com/")));
+        final CountDownLatch htmlStarted = new CountDownLatch(1);
+        final CountDownLatch htmlCancelled = new CountDownLatch(1);
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                try
+                {
+                    htmlStarted.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new DiscoveryException(e);
+                }
+                return yadisEndpoints;
+            }
+        });
+        _discovery.setHtmlResolver(new HtmlResolver(new HttpFetcherFactory())
+        {
+            public List discoverHtml(UrlIdentifier identifier, HttpRequestOptions requestOptions,
+                                     DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                assertEquals("text/html; q=0.3, application/xhtml+xml; q=0.5, application/xrds+xml",
+                    requestOptions.getRequestHeaders().get("Accept"));
+                htmlStarted.countDown();
+                try
+                {
+                    Thread.sleep(5000);
+                }
+                catch (InterruptedException e)
+                {
+                    htmlCancelled.countDown();
+                }
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setParallelDiscovery(true);
+
+        assertSame(yadisEndpoints, _discovery.discover("http://example.com/"));
+        assertTrue(htmlCancelled.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testParallelDiscoveryFallsBackToHtml() throws Exception
+    {
+        final List htmlEndpoints = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op.example.com/")));
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+            {
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setHtmlResolver(new HtmlResolver(new HttpFetcherFactory())
+        {
+            public List discoverHtml(UrlIdentifier identifier, HttpRequestOptions requestOptions,
+                                     DiscoveryDeadline deadline)
+            {
+                return htmlEndpoints;
+            }
+        });
+        _discovery.setParallelDiscovery(true);
+
+        assertSame(htmlEndpoints, _discovery.discover("http://example.com/"));
+    }
+
+    public void testHtmlDiscoveryUsesYadisPage() throws Exception
+    {
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                htmlResult.setClaimed(new UrlIdentifier(url));
+                htmlResult.setEndpoint2("http://op.example.com/");
+                htmlResult.setParsed(true);
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setHtmlResolver(new HtmlResolver(new HttpFetcherFactory())
+        {
+            public List discoverHtml(UrlIdentifier identifier) throws DiscoveryException
+            {
+                throw new DiscoveryException("Page retrieved again: " + identifier);
+            }
+        });
+
+        List endpoints = _discovery.discover("http://example.com/");
+        assertEquals(1, endpoints.size());
+        assertEquals("http://op.example.com/",
+            ((DiscoveryInformation) endpoints.get(0)).getOPEndpoint().toString());
+        assertEquals("http://example.com/",
+            ((DiscoveryInformation) endpoints.get(0)).getClaimedIdentifier().getIdentifier());
+    }
+
+    public void testDiscoveryTimeout() throws Exception
+    {
+        final HttpRequestOptions[] limited = new HttpRequestOptions[1];
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                limited[0] = deadline.limit(
+                    getHttpFetcher().getDefaultRequestOptions(), "GET on " + url);
+                try
+                {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new DiscoveryException(e);
+                }
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setDiscoveryTimeout(200);
+
+        // the HTML fall-back is not attempted once the time is up
+        try
+        {
+            _discovery.discover("http://example.com/");
+            fail("Discovery completed after its deadline.");
+        }
+        catch (DiscoveryException expected)
+        {
+            assertEquals(OpenIDException.DISCOVERY_TIMEOUT_ERROR, expected.getErrorCode());
+        }
+
+        // the requests only get the time left
+        assertTrue(limited[0].getConnTimeout() <= 200);
+        assertTrue(limited[0].getSocketTimeout() <= 200);
+        assertFalse(limited[0].isCacheFailures());
+    }
+
+    public void testParallelDiscoveryTimeout() throws Exception
+    {
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+            {
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setHtmlResolver(new HtmlResolver(new HttpFetcherFactory())
+        {
+            public List discoverHtml(UrlIdentifier identifier, HttpRequestOptions requestOptions,
+                                     DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                try
+                {
+                    Thread.sleep(5000);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new DiscoveryException(e);
+                }
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setParallelDiscovery(true);
+        _discovery.setDiscoveryTimeout(200);
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            _discovery.discover("http://example.com/");
+            fail("Discovery completed after its deadline.");
+        }
+        catch (DiscoveryException expected)
+        {
+            assertEquals(OpenIDException.DISCOVERY_TIMEOUT_ERROR, expected.getErrorCode());
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    public void testCachesDiscoveryResults() throws Exception
+    {
+        final List endpoints = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op.example.com/")));
+        final int[] calls = new int[1];
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+            {
+                calls[0]++;
+                return endpoints;
+            }
+        });
+        _discovery.setDiscoveryCache(new DiscoveryCache());
+
+        assertEquals(endpoints, _discovery.discover("http://example.com/"));
+        assertEquals(endpoints, _discovery.discover("http://Example.com/#fragment"));
+        assertEquals(1, calls[0]);
+
+        _discovery.getDiscoveryCache().clear();
+        _discovery.discover("http://example.com/");
+        assertEquals(2, calls[0]);
+    }
+
+    public void testRefreshesFrequentlyUsedResults() throws Exception
+    {
+        final List endpoints = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op.example.com/")));
+        final List refreshed = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op2.example.com/")));
+        final CountDownLatch resultsChanged = new CountDownLatch(1);
+        final int[] coldCalls = new int[1];
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+            {
+                if (url.endsWith("/cold"))
+                    coldCalls[0]++;
+
+                if (resultsChanged.getCount() == 0)
+                    return refreshed;
+
+                return endpoints;
+            }
+        });
+        _discovery.setDiscoveryCache(new DiscoveryCache());
+        _discovery.getDiscoveryCache().setTtlSeconds(2);
+
+        _discovery.discover("http://example.com/cold");
+        _discovery.discover("http://example.com/hot");
+        _discovery.discover("http://example.com/hot");
+
+        DiscoveryRefresher refresher = new DiscoveryRefresher(_discovery);
+        refresher.setRefreshAheadSeconds(2);
+        refresher.setMinHits(1);
+        refresher.setIntervalMillis(50);
+
+        resultsChanged.countDown();
+        refresher.start();
+        try
+        {
+            for (int i = 0; i < 20 &&
+                ! refreshed.equals(_discovery.discover("http://example.com/hot")); i++)
+                Thread.sleep(50);
+        }
+        finally
+        {
+            refresher.stop();
+        }
+
+        assertEquals(refreshed, _discovery.discover("http://example.com/hot"));
+
+        // results not used since stored are left to expire
+        assertEquals(1, coldCalls[0]);
+    }
+
+    public void testDiscoverAll() throws Exception
+    {
+        final List endpoints = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op.example.com/")));
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                if (url.endsWith("/error"))
+                    throw new DiscoveryException("Cannot discover: " + url);
+
+                if (url.endsWith("/slow"))
+                {
+                    try
+                    {
+                        Thread.sleep(5000);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new DiscoveryException(e);
+                    }
+                }
+
+                return endpoints;
+            }
+        });
+        _discovery.setDiscoveryCache(new DiscoveryCache());
+
+        Map results = _discovery.discoverAll(Arrays.asList(new String[] {
+            "http://example.com/slow", "http://example.com/a",
+            "http://example.com/error", "http://example.com/b"}), 2, 1000);
+
+        assertEquals(Arrays.asList(new String[] {
+            "http://example.com/slow", "http://example.com/a",
+            "http://example.com/error", "http://example.com/b"}),
+            new ArrayList(results.keySet()));
+
+        assertEquals(OpenIDException.DISCOVERY_TIMEOUT_ERROR, ((DiscoveryResult)
+            results.get("http://example.com/slow")).getException().getErrorCode());
+        assertEquals(endpoints, ((DiscoveryResult) results.get("http://example.com/a")).getEndpoints());
+        assertNotNull(((DiscoveryResult) results.get("http://example.com/error")).getException());
+        assertTrue(((DiscoveryResult) results.get("http://example.com/b")).isSuccess());
+
+        // the successful discoveries warmed up the cache
+        assertEquals(2, _discovery.getDiscoveryCache().size());
+    }
+
+    public void testDiscoverAllLimitsDiscoveries() throws Exception
+    {
+        final List deadlines = Collections.synchronizedList(new ArrayList());
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+                throws DiscoveryException
+            {
+                deadlines.add(deadline);
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setHtmlResolver(new HtmlResolver(new HttpFetcherFactory())
+        {
+            public List discoverHtml(UrlIdentifier identifier, HtmlResult htmlResult,
+                                     DiscoveryDeadline deadline)
+            {
+                return Collections.EMPTY_LIST;
+            }
+        });
+
+        // the time left in the batch
+        _discovery.setDiscoveryTimeout(60000);
+        _discovery.discoverAll(Collections.singletonList("http://example.com/a"), 1, 5000);
+
+        // the discovery timeout, when shorter
+        _discovery.setDiscoveryTimeout(1000);
+        _discovery.discoverAll(Collections.singletonList("http://example.com/b"), 1, 5000);
+
+        assertEquals(2, deadlines.size());
+        DiscoveryDeadline batch = (DiscoveryDeadline) deadlines.get(0);
+        assertTrue(batch.isLimited());
+        assertTrue(batch.getRemainingMillis() <= 5000);
+        assertTrue(batch.getRemainingMillis() > 1000);
+        assertTrue(((DiscoveryDeadline) deadlines.get(1)).getRemainingMillis() <= 1000);
+    }
+
+    public void testDiscoverAllWithBoundedExecutor() throws Exception
+    {
+        final List endpoints = Collections.singletonList(
+            new DiscoveryInformation(new URL("http://op.example.com/")));
+
+        _discovery.setYadisResolver(new YadisResolver(new HttpCache())
+        {
+            public List discover(String url, HtmlResult htmlResult, DiscoveryDeadline deadline)
+            {
+                return Collections.EMPTY_LIST;
+            }
+        });
+        _discovery.setHtmlResolver(new HtmlResolver(new HttpFetcherFactory())
+        {
+            public List discoverHtml(UrlIdentifier identifier, HttpRequestOptions requestOptions,
+                                     DiscoveryDeadline deadline)
+            {
+                return endpoints;
+            }
+        });
+        _discovery.setParallelDiscovery(true);
+
+        // the HTML discoveries are not queued behind the batch workers
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        _discovery.setExecutor(executor);
+        try
+        {
+            Map results = _discovery.discoverAll(Arrays.asList(new String[] {
+                "http://example.com/a", "http://example.com/b",
+                "http://example.com/c"}), 2, 5000);
+
+            Iterator iter = results.values().iterator();
+            while (iter.hasNext())
+                assertEquals(endpoints, ((DiscoveryResult) iter.next()).getEndpoints());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
     //todo: tests for multiple discovered services / priorities
     //todo: XRI path+query / service selection
     //http://openid.net/pipermail/general/2006-October/000512.html
@@ -71,6 +71,26 @@ public class CyberNekoDOMHtmlParserTest extends TestCase
                 .getOP1Endpoint().toExternalForm());
     }
 
+    /**
+     * Test method for
+     * {@link org.openid4java.discovery.html.CyberNekoDOMHtmlParser#parseHtml(byte[], java.lang.String, org.openid4java.discovery.html.HtmlResult)}
+     * .
+     *
+     * @throws IOException
+     * @throws DiscoveryException
+     */
+    public void testParseHtmlBytes() throws IOException, DiscoveryException
+    {
+        byte[] htmlData = IOUtils.toByteArray(this.getClass().getResourceAsStream(
+                "identityPage.html"));
+        HtmlResult result = new HtmlResult();
+        parser.parseHtml(htmlData, "UTF-8", result);
+        assertEquals("http://www.example.com:8080/openidserver/users/myusername", result
+                .getDelegate1());
+        assertEquals("http://www.example.com:8080/openidserver/openid.server", result
+                .getOP1Endpoint().toExternalForm());
+    }
+
     public void testParseHtmlXXE() throws Exception
     {
         String htmlData = IOUtils.toString(this.getClass().getResourceAsStream(
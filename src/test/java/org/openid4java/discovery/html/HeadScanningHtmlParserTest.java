@@ -0,0 +1,346 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.html;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.io.IOUtils;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.yadis.CyberNekoDOMYadisHtmlParser;
+import org.openid4java.discovery.yadis.YadisException;
+import org.openid4java.discovery.yadis.YadisHtmlParser;
+import org.openid4java.discovery.yadis.YadisResolver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the head scanner finds the same LINK and META elements, and
+ * reports the same errors, as the DOM-based parsers with the CyberNeko HTML
+ * version of the build (1.9.10).
+ */
+public class HeadScanningHtmlParserTest extends TestCase
+{
+    private static final String OP2 =
+        "<link rel=\"openid2.provider\" href=\"http://op.example.com/&#233;\">";
+
+    private static final String META =
+        "<meta http-equiv=\"X-XRDS-Location\" content=\"http://example.com/xrds\">";
+
+    private static final String CHARSET =
+        "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=iso-8859-1\">";
+
+    private static final String[] RELS = {"openid.server", "openid.delegate",
+        "openid2.provider", "openid2.local_id", "openid2.provider openid.server"};
+
+    public HeadScanningHtmlParserTest(String name)
+    {
+        super(name);
+    }
+
+    public void testSameResultsOnTestData() throws IOException
+    {
+        String[] names = {"identityPage.html", "identityPage-with-xml-namespace.html",
+            "identityPageWithExternalEntityReference.html"};
+        for (int i = 0; i < names.length; i++)
+            assertSameResults(names[i], IOUtils.toByteArray(
+                getClass().getResourceAsStream(names[i])));
+
+        assertSameResults("issue83.html", IOUtils.toByteArray(
+            YadisResolver.class.getResourceAsStream("issue83.html")));
+    }
+
+    public void testSameResultsOnEdgeCases() throws IOException
+    {
+        String[] documents = {
+            // the HEAD is implied, and ends with the first body content
+            OP2 + META + "text" + "<link rel=\"openid.server\" href=\"http://op/\">",
+            "<html><head><title>&amp;</title>" + OP2 + "</head><body>" + META,
+            "<title><</title>" + OP2,
+
+            // markup that hides the links
+            "<!-- " + OP2 + " -->" + META,
+            "<script>var a='" + OP2 + "';</script>" + META,
+            "<style>" + OP2 + "</style>" + META,
+            "<html><head>" + OP2 + "<body>" + META,
+            "<![CDATA[" + OP2 + "]]>" + META,
+
+            // the charset given in the markup
+            CHARSET + OP2,
+            "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + OP2,
+
+            // stray and implied end tags
+            "<html></html>" + OP2,
+            "</head>" + META + "</body></html>",
+
+            // no HEAD, or more than one
+            "",
+            "<html><body><p>text</p>" + OP2 + "</body></html>",
+            "text" + OP2,
+            "<p>text</p><head>" + OP2,
+            "<xmp><head></xmp>" + OP2,
+            "<head></head><head>" + OP2,
+            "<head>" + OP2 + "</head>\n<!-- c -->" + META + "<body>",
+            "<head>" + OP2 + "</head><body><head>" + META,
+
+            // unknown elements, which CyberNeko HTML puts in the HEAD
+            "<?xml version=\"1.0\"?><xrds:XRDS><XRD><URI></URI></XRD></xrds:XRDS>",
+            "<foo>" + OP2,
+            "<head></head><o:p/>" + OP2,
+
+            // values and errors
+            "<link rel='openid2.provider openid.server' href=http://op/2 />",
+            "<link rel=openid.server href=http://op/><link rel=openid.server href=http://op2/>",
+            "<link rel=openid2.local_id href=http://l/>",
+            "<link rel=openid2.provider href=/relative>",
+            META + META,
+            "<head><meta",
+        };
+
+        for (int i = 0; i < documents.length; i++)
+            assertSameResults(documents[i], documents[i].getBytes("UTF-8"));
+    }
+
+    /**
+     * Compares the results on documents made of randomly mutated heads: the
+     * order of the elements, the case of the names, the quoting of the
+     * values, unclosed and misplaced tags, links hidden in comments, CDATA
+     * sections and scripts, and stray BODY tags.
+     */
+    public void testSameResultsOnGeneratedHeads() throws IOException
+    {
+        for (long seed = 0; seed < 500; seed++)
+        {
+            String document = generateDocument(new Random(seed));
+            assertSameResults("seed " + seed + ": " + document,
+                document.getBytes("UTF-8"));
+        }
+    }
+
+    private String generateDocument(Random random)
+    {
+        List items = new ArrayList();
+        for (int i = random.nextInt(7); i > 0; i--)
+            items.add(generateHeadItem(random, items.size()));
+        Collections.shuffle(items, random);
+
+        // without a HEAD tag, a HEAD element first implies the HEAD
+        boolean head = random.nextInt(4) != 0;
+        if (! head)
+            items.add(0, generateLink(random, "first"));
+        else if (random.nextInt(6) == 0)
+            items.add(random.nextInt(items.size() + 1), generateTag(random, "body", ""));
+
+        StringBuffer document = new StringBuffer();
+        if (random.nextInt(6) == 0)
+            document.append("<?xml version=\"1.0\"?>\n");
+        if (random.nextBoolean())
+            document.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01//EN\">\n");
+        if (! head || random.nextInt(4) != 0)
+            document.append(generateTag(random, "html", ""));
+        if (head)
+            document.append(generateTag(random, "head", ""));
+        for (int i = 0; i < items.size(); i++)
+            document.append(random.nextBoolean() ? "\n  " : "").append(items.get(i));
+        if (random.nextInt(3) != 0)
+            document.append(generateEndTag(random, "head"));
+
+        switch (random.nextInt(4))
+        {
+            case 0: document.append(generateTag(random, "body", "")); break;
+            case 1: document.append("text"); break;
+            case 2: document.append(generateTag(random, "div", "")); break;
+            default: document.append(generateTag(random, "p", "")); break;
+        }
+        document.append(generateLink(random, "body")).append("</body></html>");
+        return document.toString();
+    }
+
+    private String generateHeadItem(Random random, int index)
+    {
+        String link = generateLink(random, String.valueOf(index));
+        switch (random.nextInt(15))
+        {
+            case 0:
+            case 1:
+            case 2:
+                return link;
+            case 3:
+            case 4:
+                return generateEmptyTag(random, "meta",
+                    generateAttribute(random, "http-equiv", "X-XRDS-Location")
+                    + generateAttribute(random, "content", "http://example.com/xrds/" + index));
+            case 5:
+                return generateEmptyTag(random, "meta",
+                    generateAttribute(random, "http-equiv", "Content-Type")
+                    + generateAttribute(random, "content", random.nextBoolean() ?
+                        "text/html; charset=iso-8859-1" : "text/html; charset=UTF-8"));
+            case 6:
+                return generateTag(random, "title", "") + "Home &amp; away"
+                    + generateEndTag(random, "title");
+            case 7:
+                return generateTag(random, "script", "") + "document.write('" + link
+                    + "');" + generateEndTag(random, "script");
+            case 8:
+                return generateTag(random, "style", "") + "p { color: red }"
+                    + generateEndTag(random, "style");
+            case 9:
+                return "<!-- " + link + " -->";
+            case 10:
+                return "<![CDATA[" + link + "]]>";
+            case 11:
+                return generateEmptyTag(random, "base",
+                    generateAttribute(random, "href", "http://example.com/"));
+            case 12:
+                // stray end tags
+                return generateEndTag(random, random.nextBoolean() ? "title" : "link");
+            case 13:
+                // misnested elements
+                return generateTag(random, "script", "") + generateTag(random, "title", "")
+                    + generateEndTag(random, "script") + generateEndTag(random, "title");
+            default:
+                return generateTag(random, "title", "") + generateTag(random, "script", "")
+                    + generateEndTag(random, "title") + generateEndTag(random, "script");
+        }
+    }
+
+    private String generateLink(Random random, String id)
+    {
+        return generateEmptyTag(random, "link",
+            generateAttribute(random, "rel", RELS[random.nextInt(RELS.length)])
+            + generateAttribute(random, "href", "http://op.example.com/" + id + "?a=1&amp;b=2"));
+    }
+
+    private String generateTag(Random random, String name, String attributes)
+    {
+        return "<" + generateCase(random, name) + attributes + ">";
+    }
+
+    private String generateEmptyTag(Random random, String name, String attributes)
+    {
+        String end = new String[] {"", "", "/", " /"}[random.nextInt(4)];
+        return "<" + generateCase(random, name) + attributes + end + ">";
+    }
+
+    private String generateEndTag(Random random, String name)
+    {
+        return "</" + generateCase(random, name) + ">";
+    }
+
+    private String generateAttribute(Random random, String name, String value)
+    {
+        String quote = value.indexOf(' ') != -1 || random.nextBoolean() ? "\"" : "'";
+        if (value.indexOf(' ') == -1 && random.nextInt(3) == 0)
+            quote = "";
+        return " " + generateCase(random, name) + "=" + quote + value + quote;
+    }
+
+    private String generateCase(Random random, String name)
+    {
+        switch (random.nextInt(3))
+        {
+            case 0: return name;
+            case 1: return name.toUpperCase();
+            default:
+                StringBuffer mixed = new StringBuffer();
+                for (int i = 0; i < name.length(); i++)
+                    mixed.append(random.nextBoolean() ? Character.toUpperCase(name.charAt(i))
+                        : name.charAt(i));
+                return mixed.toString();
+        }
+    }
+
+    private void assertSameResults(String name, byte[] document) throws IOException
+    {
+        String[] charsets = {null, "UTF-8", "ISO-8859-1"};
+        for (int i = 0; i < charsets.length; i++)
+        {
+            assertEquals(name, parseHtml(new CyberNekoDOMHtmlParser(), document, charsets[i]),
+                parseHtml(new HeadScanningHtmlParser(), document, charsets[i]));
+            assertEquals(name, getHtmlMeta(new CyberNekoDOMYadisHtmlParser(), document, charsets[i]),
+                getHtmlMeta(new HeadScanningHtmlParser(), document, charsets[i]));
+        }
+
+        String text = new String(document, "UTF-8");
+        assertEquals(name, parseHtml(new CyberNekoDOMHtmlParser(), text),
+            parseHtml(new HeadScanningHtmlParser(), text));
+        assertEquals(name, getHtmlMeta(new CyberNekoDOMYadisHtmlParser(), text),
+            getHtmlMeta(new HeadScanningHtmlParser(), text));
+    }
+
+    private String parseHtml(HtmlParser parser, byte[] document, String charset)
+    {
+        HtmlResult result = new HtmlResult();
+        try
+        {
+            parser.parseHtml(document, charset, result);
+            return result.toString();
+        }
+        catch (DiscoveryException e)
+        {
+            return getMessage(e);
+        }
+    }
+
+    private String parseHtml(HtmlParser parser, String document)
+    {
+        HtmlResult result = new HtmlResult();
+        try
+        {
+            parser.parseHtml(document, result);
+            return result.toString();
+        }
+        catch (DiscoveryException e)
+        {
+            return getMessage(e);
+        }
+    }
+
+    private String getHtmlMeta(YadisHtmlParser parser,
+                               byte[] document, String charset)
+    {
+        try
+        {
+            return parser.getHtmlMeta(document, charset);
+        }
+        catch (YadisException e)
+        {
+            return getMessage(e);
+        }
+    }
+
+    private String getHtmlMeta(YadisHtmlParser parser,
+                               String document)
+    {
+        try
+        {
+            return parser.getHtmlMeta(document);
+        }
+        catch (YadisException e)
+        {
+            return getMessage(e);
+        }
+    }
+
+    /**
+     * Gets the message of an error, without the details that follow the
+     * first colon, e.g. the DOM nodes given by the DOM-based parsers.
+     */
+    private String getMessage(Exception e)
+    {
+        String message = e.getMessage();
+        int index = message.indexOf(':', message.indexOf(' ') + 1);
+        return index != -1 ? message.substring(0, index).trim() : message;
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HeadScanningHtmlParserTest.class);
+    }
+}
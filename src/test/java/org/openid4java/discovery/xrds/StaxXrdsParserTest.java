@@ -0,0 +1,139 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.xrds;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks that the streaming parser returns the same results as the
+ * DOM-based one.
+ */
+public class StaxXrdsParserTest extends TestCase
+{
+    private static final Set TARGET_TYPES = new HashSet(Arrays.asList(new String[] {
+        DiscoveryInformation.OPENID2, DiscoveryInformation.OPENID2_OP,
+        DiscoveryInformation.OPENID11, DiscoveryInformation.OPENID10,
+        "http://example.com/", "xri://$res*auth*($v*2.0)",
+        "http://example.com/some/service/v3.1"}));
+
+    private static final String HEAD = "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" " +
+        "xmlns=\"xri://$xrd*($v*2.0)\" xmlns:openid=\"http://openid.net/xmlns/1.0\">";
+
+    private static final String TAIL = "</xrds:XRDS>";
+
+    private String _testDataPath;
+
+    public StaxXrdsParserTest(String name)
+    {
+        super(name);
+
+        _testDataPath = System.getProperty("YADIS_TEST_DATA", "target/test-data");
+    }
+
+    public void testSameResultsOnTestData() throws Exception
+    {
+        File[] files = new File(_testDataPath, "xrds").listFiles();
+        assertNotNull("XRDS test data not found in: " + _testDataPath, files);
+
+        for (int i = 0; i < files.length; i++)
+            assertSameResults(files[i].getName(), readFile(files[i]));
+
+        assertSameResults("XrdsParserTest.XRD", XrdsParserTest.XRD.getBytes("UTF-8"));
+    }
+
+    public void testSameResultsOnEdgeCases() throws Exception
+    {
+        String[] documents = {
+            // whitespace, comments and CDATA in the values
+            HEAD + "<XRD><Service priority=\" 10 \"><Type>\n http://example.com/ \n</Type>" +
+                "<URI priority=\"1\"> <!-- c --> http://op/</URI>" +
+                "<URI><![CDATA[http://op2/]]></URI>" +
+                "<LocalID> http://l/ </LocalID></Service></XRD>" + TAIL,
+
+            // default attributes make the missing priorities the lowest
+            HEAD + "<XRD><Service><Type>http://example.com/</Type><URI>http://op/</URI>" +
+                "</Service><Service priority=\"0\"><Type match=\"null\"/>" +
+                "<Type>http://example.com/</Type><URI append=\"none\">http://op2/</URI>" +
+                "</Service></XRD>" + TAIL,
+
+            // only the services of the last XRD are returned
+            HEAD + "<XRD><Service><Type>http://example.com/</Type><URI>http://old/</URI>" +
+                "</Service></XRD><XRD><CanonicalID>=!1</CanonicalID><Service>" +
+                "<Type>http://specs.openid.net/auth/2.0/signon</Type><URI>http://op/</URI>" +
+                "<LocalID>http://l1/</LocalID><LocalID>http://l2/</LocalID>" +
+                "<openid:Delegate>http://d/</openid:Delegate></Service></XRD>" + TAIL,
+
+            // internal entities
+            "<!DOCTYPE xrds:XRDS [<!ENTITY op \"http://op/\">]>" +
+                HEAD + "<XRD><Service><Type>http://example.com/</Type>" +
+                "<URI>&op;</URI></Service></XRD>" + TAIL,
+
+            // errors
+            HEAD + "<XRD><CanonicalID>=!1</CanonicalID><CanonicalID>=!2</CanonicalID>" +
+                "</XRD>" + TAIL,
+            HEAD + TAIL,
+            HEAD + "<XRD><Service><Bogus/></Service></XRD>" + TAIL,
+            "<!DOCTYPE xrds:XRDS SYSTEM \"http://example.com/xrds.dtd\">" + HEAD + TAIL,
+            HEAD + "<XRD>",
+        };
+
+        for (int i = 0; i < documents.length; i++)
+            assertSameResults(documents[i], documents[i].getBytes("UTF-8"));
+    }
+
+    private void assertSameResults(String name, byte[] document)
+    {
+        assertEquals(name, parse(new XrdsParserImpl(), document),
+            parse(new StaxXrdsParser(), document));
+    }
+
+    private String parse(XrdsParser parser, byte[] document)
+    {
+        try
+        {
+            return parser.parseXrds(document, TARGET_TYPES).toString();
+        }
+        catch (DiscoveryException e)
+        {
+            return e.getMessage();
+        }
+    }
+
+    private byte[] readFile(File file) throws IOException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                content.write(buffer, 0, read);
+        }
+        finally
+        {
+            in.close();
+        }
+        return content.toByteArray();
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(StaxXrdsParserTest.class);
+    }
+}
@@ -1,8 +1,12 @@
 package org.openid4java.discovery.xrds;
 
 import junit.framework.TestCase;
+import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.DiscoveryInformation;
 
+import java.util.Collections;
+import java.util.Set;
+
 /**
  * @author jbufu
  */
@@ -14,6 +18,81 @@ public class XrdsParserTest extends TestCase
         parser.parseXrds(XRD, DiscoveryInformation.OPENID_OP_TYPES);
     }
 
+    public void testXrdsParseBytes() throws Exception
+    {
+        XrdsParser parser = new XrdsParserImpl();
+        assertEquals(
+            parser.parseXrds(XRD, DiscoveryInformation.OPENID_OP_TYPES).size(),
+            parser.parseXrds(XRD.getBytes("UTF-8"), DiscoveryInformation.OPENID_OP_TYPES).size());
+    }
+
+    public void testXrdsParseAfterErrors() throws Exception
+    {
+        XrdsParser parser = new XrdsParserImpl();
+
+        String[] invalid = {
+            XRD.replaceFirst("<Status ", "<Bogus "),
+            "<!DOCTYPE XRDS SYSTEM \"http://example.com/xrds.dtd\">" + XRD,
+            XRD.substring(0, 100),
+        };
+        for (int i = 0; i < invalid.length; i++)
+        {
+            try
+            {
+                parser.parseXrds(invalid[i], DiscoveryInformation.OPENID_OP_TYPES);
+                fail("Invalid XRDS document parsed: " + invalid[i]);
+            }
+            catch (DiscoveryException expected)
+            {
+                // the next document is parsed by the same builder
+                parser.parseXrds(XRD, DiscoveryInformation.OPENID_OP_TYPES);
+            }
+        }
+    }
+
+    public void testEntitiesAfterErrors() throws Exception
+    {
+        final XrdsParser parser = new XrdsParserImpl();
+
+        final String entities = "<!DOCTYPE xrds:XRDS [<!ENTITY op \"http://op/\">]>" +
+            "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">" +
+            "<XRD><Service><Type>http://example.com/</Type><URI>&op;</URI></Service>" +
+            "</XRD></xrds:XRDS>";
+        final Set types = Collections.singleton("http://example.com/");
+        final String[] results = new String[2];
+        final Exception[] error = new Exception[1];
+
+        // on a new thread, so that it starts with a new builder
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    results[0] = parser.parseXrds(entities, types).toString();
+                    try
+                    {
+                        parser.parseXrds(XRD.substring(0, 100), types);
+                    }
+                    catch (DiscoveryException expected)
+                    {
+                        // the builder that failed is not reused
+                    }
+                    results[1] = parser.parseXrds(entities, types).toString();
+                }
+                catch (Exception e)
+                {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        if (error[0] != null)
+            throw error[0];
+        assertEquals(results[0], results[1]);
+    }
 
     public static final String XRD = "<XRDS xmlns=\"xri://$xrds\" ref=\"xri://(tel:+1-201-555-0123)*foo\">\n" +
         "\n" +
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.discovery.yadis;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class YadisHostCapabilitiesTest extends TestCase
+{
+    private YadisHostCapabilities _capabilities;
+
+    public void setUp()
+    {
+        _capabilities = new YadisHostCapabilities();
+    }
+
+    public void testUnknownHostsUseHead()
+    {
+        assertTrue(_capabilities.isHeadUseful("http://example.com/alice"));
+
+        // identifiers without XRDS documents teach nothing
+        _capabilities.recordHead("http://example.com/alice", false, false);
+        assertTrue(_capabilities.isHeadUseful("http://example.com/bob"));
+    }
+
+    public void testSkipsHeadMissingLocation()
+    {
+        _capabilities.recordHead("http://example.com/alice", false, true);
+
+        assertFalse(_capabilities.isHeadUseful("http://EXAMPLE.com/bob"));
+        assertTrue(_capabilities.isHeadUseful("https://example.com/bob"));
+
+        // once HEAD returned the location, it keeps being used
+        _capabilities.recordHead("http://example.com/carol", true, false);
+        assertTrue(_capabilities.isHeadUseful("http://example.com/bob"));
+    }
+
+    public void testSkipsHeadWhenGetServesXrds()
+    {
+        _capabilities.recordHead("http://example.com/alice", true, false);
+        _capabilities.recordGetServesXrds("http://example.com/bob");
+
+        assertFalse(_capabilities.isHeadUseful("http://example.com/carol"));
+    }
+
+    public void testLearnedCapabilitiesExpire() throws Exception
+    {
+        _capabilities.setTtlMillis(50);
+        _capabilities.recordGetServesXrds("http://example.com/alice");
+        _capabilities.setGetOnly("http://example.org/");
+
+        Thread.sleep(100);
+
+        assertTrue(_capabilities.isHeadUseful("http://example.com/alice"));
+        assertFalse(_capabilities.isHeadUseful("http://example.org/bob"));
+
+        _capabilities.reset();
+        assertTrue(_capabilities.isHeadUseful("http://example.org/bob"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(YadisHostCapabilitiesTest.class);
+    }
+}
@@ -16,6 +16,9 @@ import org.openid4java.OpenIDException;
 import org.openid4java.consumer.ConsumerManager;
 import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.UrlIdentifier;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.html.HtmlResult;
 import org.openid4java.util.HttpCache;
 import org.openid4java.util.HttpFetcher;
 import org.openid4java.util.HttpFetcherFactory;
@@ -340,6 +343,27 @@ public class YadisResolverTest extends TestCase
         assertEquals("Should have discovered no endpoints; found: " + result.size(), result.size(), 0);
     }
 
+    public void testHtmlLinksKeptForHtmlDiscovery() throws Exception
+    {
+        String url = "http://localhost:" + _servletPort + "/?html=openidlinks";
+        HtmlResult htmlResult = new HtmlResult();
+        List result = _resolver.discover(url, htmlResult);
+
+        assertEquals(0, result.size());
+        assertTrue(htmlResult.isParsed());
+        assertEquals(url, htmlResult.getClaimedId().getIdentifier());
+
+        // HTML discovery does not retrieve the page again
+        _server.stop();
+        List endpoints = new HtmlResolver(new HttpFetcherFactory())
+            .discoverHtml(new UrlIdentifier(url), htmlResult);
+
+        assertEquals(1, endpoints.size());
+        DiscoveryInformation endpoint = (DiscoveryInformation) endpoints.get(0);
+        assertEquals("http://op.example.com/", endpoint.getOPEndpoint().toString());
+        assertEquals("http://joe.example.com/", endpoint.getDelegateIdentifier());
+    }
+
     public void testEmptyHtml()
     {
         try
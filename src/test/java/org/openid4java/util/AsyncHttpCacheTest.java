@@ -0,0 +1,209 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.client.ClientProtocolException;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncHttpCacheTest extends TestCase
+{
+    private Server _server;
+
+    private String _baseUrl;
+
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    private AsyncHttpCache _fetcher;
+
+    public void setUp() throws Exception
+    {
+        _server = new Server(0);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.addServlet(new ServletHolder(new TestServlet()), "/*");
+        _server.setHandler(context);
+        _server.start();
+
+        _baseUrl = "http://localhost:" +
+            ((ServerConnector) _server.getConnectors()[0]).getLocalPort();
+
+        _fetcher = new AsyncHttpCache();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+    }
+
+    public void testGetIsCached() throws Exception
+    {
+        HttpResponse resp = (HttpResponse) _fetcher.get(_baseUrl + "/body?size=10").get();
+
+        assertEquals(200, resp.getStatusCode());
+        assertEquals(10, resp.getBody().length());
+        assertFalse(resp.isBodySizeExceeded());
+
+        assertSame(resp, _fetcher.get(_baseUrl + "/body?size=10").get());
+        assertEquals(1, _requests.get());
+    }
+
+    public void testBodySizeAndRedirectsLimits() throws Exception
+    {
+        HttpRequestOptions options = _fetcher.getRequestOptions();
+        options.setMaxBodySize(100);
+
+        HttpResponse resp = (HttpResponse) _fetcher.get(
+            _baseUrl + "/redirect?count=2", options).get();
+
+        assertEquals(_baseUrl + "/body?size=1000", resp.getFinalUri());
+        assertEquals(100, resp.getBody().length());
+        assertTrue(resp.isBodySizeExceeded());
+
+        options.setMaxRedirects(1);
+        options.setUseCache(false);
+        try
+        {
+            _fetcher.get(_baseUrl + "/redirect?count=3", options).get();
+            fail("Should have exceeded the maximum number of redirects.");
+        }
+        catch (ExecutionException expected)
+        {
+            assertTrue(expected.getCause() instanceof ClientProtocolException);
+        }
+    }
+
+    public void testConcurrentGetsAreCoalesced() throws Exception
+    {
+        List futures = new ArrayList();
+        for (int i = 0; i < 20; i++)
+            futures.add(_fetcher.get(_baseUrl + "/slow"));
+
+        Iterator iter = futures.iterator();
+        while (iter.hasNext())
+            assertEquals("slow", ((HttpResponse) ((CompletableFuture) iter.next()).get()).getBody());
+
+        assertEquals(1, _requests.get());
+    }
+
+    public void testSlowBodyTimesOut() throws Exception
+    {
+        HttpRequestOptions options = _fetcher.getRequestOptions();
+        options.setConnTimeout(200);
+        options.setSocketTimeout(300);
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            _fetcher.get(_baseUrl + "/trickle", options).get();
+            fail("Should have timed out reading the body.");
+        }
+        catch (ExecutionException expected)
+        {
+            assertTrue(expected.getCause() instanceof SocketTimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    public void testWaitForInFlightRequestTimesOut() throws Exception
+    {
+        CompletableFuture slow = _fetcher.get(_baseUrl + "/slow");
+
+        HttpRequestOptions options = _fetcher.getRequestOptions();
+        options.setConnTimeout(50);
+        options.setSocketTimeout(50);
+        try
+        {
+            _fetcher.get(_baseUrl + "/slow", options).get();
+            fail("Should have timed out waiting for the in-flight request.");
+        }
+        catch (ExecutionException expected)
+        {
+            assertTrue(expected.getCause() instanceof SocketTimeoutException);
+        }
+
+        // the in-flight request is not affected
+        assertEquals("slow", ((HttpResponse) slow.get()).getBody());
+        assertEquals(1, _requests.get());
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(AsyncHttpCacheTest.class);
+    }
+
+    private class TestServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException
+        {
+            if ("/redirect".equals(request.getPathInfo()))
+            {
+                int count = Integer.parseInt(request.getParameter("count"));
+                response.sendRedirect(count > 1 ?
+                    "/redirect?count=" + (count - 1) : "/body?size=1000");
+                return;
+            }
+
+            _requests.incrementAndGet();
+
+            // sends the headers and the start of the body, then stalls
+            if ("/trickle".equals(request.getPathInfo()))
+            {
+                response.getWriter().write("trickle");
+                response.flushBuffer();
+                try
+                {
+                    Thread.sleep(3000);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new ServletException(e);
+                }
+                response.getWriter().write(" end");
+                return;
+            }
+
+            if ("/slow".equals(request.getPathInfo()))
+            {
+                try
+                {
+                    Thread.sleep(500);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new ServletException(e);
+                }
+                response.getWriter().write("slow");
+                return;
+            }
+
+            int size = Integer.parseInt(request.getParameter("size"));
+            StringBuffer body = new StringBuffer(size);
+            for (int i = 0; i < size; i++)
+                body.append('a');
+            response.getWriter().write(body.toString());
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openid4java.OpenIDException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class CircuitBreakerHttpFetcherTest extends TestCase
+{
+    private StubFetcher _stub;
+
+    private CircuitBreakerRegistry _registry;
+
+    private CircuitBreakerHttpFetcher _fetcher;
+
+    public void setUp()
+    {
+        _stub = new StubFetcher();
+
+        _registry = new CircuitBreakerRegistry();
+        _registry.setMinimumRequests(4);
+        _registry.setWindowSize(4);
+        _registry.setFailureRateThreshold(50);
+        _registry.setOpenMillis(100);
+
+        _fetcher = new CircuitBreakerHttpFetcher(_stub, _registry);
+    }
+
+    public void testOpensAfterFailuresAndRecovers() throws Exception
+    {
+        _stub.status = 200;
+        _fetcher.get("http://example.com/a");
+        _fetcher.get("http://example.com/b");
+
+        _stub.failure = new ConnectException("Connection refused");
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                _fetcher.get("http://example.com/c");
+                fail("Should have failed.");
+            }
+            catch (ConnectException expected)
+            {
+            }
+        }
+
+        assertEquals(CircuitBreakerRegistry.OPEN, _registry.getState("http://example.com/"));
+        assertEquals(CircuitBreakerRegistry.CLOSED, _registry.getState("http://other.com/"));
+
+        int calls = _stub.calls;
+        try
+        {
+            _fetcher.get("http://example.com/d");
+            fail("Should have been rejected.");
+        }
+        catch (HttpRequestRejectedException expected)
+        {
+            assertEquals(OpenIDException.HTTP_CIRCUIT_OPEN, expected.getErrorCode());
+        }
+        assertEquals(calls, _stub.calls);
+
+        Thread.sleep(150);
+        assertEquals(CircuitBreakerRegistry.HALF_OPEN, _registry.getState("http://example.com/"));
+
+        // a successful trial request closes the circuit
+        _stub.failure = null;
+        _fetcher.get("http://example.com/e");
+        assertEquals(CircuitBreakerRegistry.CLOSED, _registry.getState("http://example.com/"));
+    }
+
+    public void testOnlyTrialRequestDecidesHalfOpenCircuit() throws Exception
+    {
+        CircuitBreakerRegistry.CircuitBreaker breaker =
+            _registry.getBreaker("http://example.com/", true);
+
+        // placed while the circuit is closed, completed once half-open
+        CircuitBreakerRegistry.Permit early = breaker.acquire();
+        CircuitBreakerRegistry.Permit cancelled = breaker.acquire();
+        assertFalse(early.trial);
+
+        for (int i = 0; i < 4; i++)
+            breaker.release(breaker.acquire(), true, 0);
+        assertEquals(CircuitBreakerRegistry.OPEN, _registry.getState("http://example.com/"));
+
+        Thread.sleep(150);
+        CircuitBreakerRegistry.Permit trial = breaker.acquire();
+        assertTrue(trial.trial);
+        assertRejected(breaker);
+
+        breaker.release(early, false, 0);
+        breaker.release(cancelled);
+        assertEquals(CircuitBreakerRegistry.HALF_OPEN, _registry.getState("http://example.com/"));
+        assertRejected(breaker);
+
+        breaker.release(trial, false, 0);
+        assertEquals(CircuitBreakerRegistry.CLOSED, _registry.getState("http://example.com/"));
+    }
+
+    public void testCancelledTrialAllowsAnotherTrial() throws Exception
+    {
+        CircuitBreakerRegistry.CircuitBreaker breaker =
+            _registry.getBreaker("http://example.com/", true);
+
+        for (int i = 0; i < 4; i++)
+            breaker.release(breaker.acquire(), true, 0);
+
+        Thread.sleep(150);
+        breaker.release(breaker.acquire());
+
+        CircuitBreakerRegistry.Permit trial = breaker.acquire();
+        assertTrue(trial.trial);
+        breaker.release(trial, true, 0);
+        assertEquals(CircuitBreakerRegistry.OPEN, _registry.getState("http://example.com/"));
+    }
+
+    public void testMinimumRequestsWithinWindow()
+    {
+        try
+        {
+            _registry.setMinimumRequests(5);
+            fail("The circuit could never open.");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        try
+        {
+            _registry.setWindowSize(3);
+            fail("The circuit could never open.");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        assertEquals(4, _registry.getMinimumRequests());
+        assertEquals(4, _registry.getWindowSize());
+    }
+
+    public void testServerErrorsCountAsFailures() throws Exception
+    {
+        _stub.status = 503;
+        for (int i = 0; i < 4; i++)
+            _fetcher.post("http://example.com/op", null);
+
+        assertEquals(CircuitBreakerRegistry.OPEN, _registry.getState("http://example.com/op"));
+    }
+
+    public void testInterruptsAreNotFailures() throws Exception
+    {
+        _stub.failure = new InterruptedIOException("Cancelled");
+        for (int i = 0; i < 4; i++)
+            assertFailure("http://example.com/cancelled");
+        assertEquals(CircuitBreakerRegistry.CLOSED, _registry.getState("http://example.com/"));
+
+        // timeouts are failures
+        _stub.failure = new SocketTimeoutException("Read timed out");
+        for (int i = 0; i < 4; i++)
+            assertFailure("http://example.com/slow");
+        assertEquals(CircuitBreakerRegistry.OPEN, _registry.getState("http://example.com/"));
+    }
+
+    public void testBulkheadRejectsExcessConcurrentRequests() throws Exception
+    {
+        _registry.setMaxConcurrentRequests(1);
+        _stub.status = 200;
+        _stub.block = new CountDownLatch(1);
+
+        Thread slow = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    _fetcher.get("http://example.com/slow");
+                }
+                catch (IOException e)
+                {
+                    // ignore
+                }
+            }
+        };
+        slow.start();
+
+        while (_stub.calls == 0)
+            Thread.sleep(5);
+
+        try
+        {
+            _fetcher.head("http://example.com/other");
+            fail("Should have been rejected.");
+        }
+        catch (HttpRequestRejectedException expected)
+        {
+            assertEquals(OpenIDException.HTTP_BULKHEAD_FULL, expected.getErrorCode());
+        }
+
+        _stub.block.countDown();
+        slow.join();
+
+        assertEquals(200, _fetcher.head("http://example.com/other").getStatusCode());
+    }
+
+    private void assertFailure(String url)
+    {
+        try
+        {
+            _fetcher.get(url);
+            fail("Should have failed.");
+        }
+        catch (IOException expected)
+        {
+            assertSame(_stub.failure, expected);
+        }
+    }
+
+    private void assertRejected(CircuitBreakerRegistry.CircuitBreaker breaker)
+    {
+        try
+        {
+            breaker.acquire();
+            fail("Should have been rejected.");
+        }
+        catch (HttpRequestRejectedException expected)
+        {
+            assertEquals(OpenIDException.HTTP_CIRCUIT_OPEN, expected.getErrorCode());
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(CircuitBreakerHttpFetcherTest.class);
+    }
+
+    private static class StubFetcher extends AbstractHttpFetcher
+    {
+        volatile int status;
+        volatile IOException failure;
+        volatile CountDownLatch block;
+        volatile int calls;
+
+        private HttpResponse respond(String url) throws IOException
+        {
+            calls++;
+
+            if (block != null)
+            {
+                try
+                {
+                    block.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException(e);
+                }
+            }
+
+            if (failure != null)
+                throw failure;
+
+            return new DefaultHttpResponse(status, null, 0, url, null, "");
+        }
+
+        public HttpResponse get(String url, HttpRequestOptions requestOptions) throws IOException
+        {
+            return respond(url);
+        }
+
+        public HttpResponse head(String url, HttpRequestOptions requestOptions) throws IOException
+        {
+            return respond(url);
+        }
+
+        public HttpResponse post(String url, Map<String, String> parameters,
+                                 HttpRequestOptions requestOptions) throws IOException
+        {
+            return respond(url);
+        }
+    }
+}
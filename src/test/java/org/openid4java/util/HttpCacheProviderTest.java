@@ -0,0 +1,166 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.net.ssl.SSLContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpCacheProviderTest extends TestCase
+{
+    private Server _server;
+
+    private String _baseUrl;
+
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    /**
+     * The Host header of the last request.
+     */
+    private String _host;
+
+    public void setUp() throws Exception
+    {
+        _server = new Server(0);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.addServlet(new ServletHolder(new TestServlet()), "/*");
+        _server.setHandler(context);
+        _server.start();
+
+        _baseUrl = "http://localhost:" +
+            ((ServerConnector) _server.getConnectors()[0]).getLocalPort();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+    }
+
+    public void testFactoryFetchersShareClientAndCache() throws Exception
+    {
+        HttpCache first = (HttpCache) new HttpFetcherFactory()
+            .createFetcher(new HttpRequestOptions());
+        HttpCache second = (HttpCache) new HttpFetcherFactory()
+            .createFetcher(new HttpRequestOptions());
+        assertNotSame(first, second);
+
+        HttpResponse resp = first.get(_baseUrl + "/");
+        assertSame(resp, second.get(_baseUrl + "/"));
+        assertEquals(1, _requests.get());
+
+        // the connection kept alive by the first is in the pool of the second
+        assertEquals(1, second.getConnectionPoolStats(_baseUrl + "/").getAvailable());
+
+        first.clearCache();
+        assertNotSame(resp, second.get(_baseUrl + "/"));
+        assertEquals(2, _requests.get());
+    }
+
+    public void testSharedFetchersKeepTheirOwnDefaultOptions() throws Exception
+    {
+        HttpFetcherFactory factory = new HttpFetcherFactory();
+
+        HttpRequestOptions limited = new HttpRequestOptions();
+        limited.setMaxBodySize(1);
+        HttpFetcher first = factory.createFetcher(limited);
+        HttpFetcher second = factory.createFetcher(new HttpRequestOptions());
+
+        assertSame(limited, first.getDefaultRequestOptions());
+        assertEquals(new HttpRequestOptions().getMaxBodySize(),
+            second.getDefaultRequestOptions().getMaxBodySize());
+
+        HttpCache shared = ((HttpCache) second).share();
+        shared.getDefaultRequestOptions().setMaxBodySize(2);
+        assertEquals(1, first.getDefaultRequestOptions().getMaxBodySize());
+        assertEquals(new HttpRequestOptions().getMaxBodySize(),
+            second.getDefaultRequestOptions().getMaxBodySize());
+
+        // the default options of each fetcher apply to its own requests
+        HttpRequestOptions uncached = second.getRequestOptions();
+        uncached.setUseCache(false);
+        assertEquals(4, second.get(_baseUrl + "/", uncached).getBody().length());
+        assertEquals(1, first.get(_baseUrl + "/truncated").getBody().length());
+        assertEquals(2, shared.get(_baseUrl + "/truncated-too").getBody().length());
+    }
+
+    public void testSslProvidersHaveTheirOwnBackend() throws Exception
+    {
+        HttpCacheProvider provider = new HttpCacheProvider(SSLContext.getDefault());
+        HttpFetcher first = provider.get();
+        HttpFetcher second = provider.get();
+
+        HttpResponse resp = first.get(_baseUrl + "/");
+        assertSame(resp, second.get(_baseUrl + "/"));
+
+        HttpFetcher other = new HttpCacheProvider(SSLContext.getDefault()).get();
+        assertNotSame(resp, other.get(_baseUrl + "/"));
+        assertNotSame(resp, new HttpCacheProvider().get().get(_baseUrl + "/"));
+        assertEquals(3, _requests.get());
+    }
+
+    public void testResetSharedCacheAppliesNewSettings() throws Exception
+    {
+        HttpCacheProvider provider = new HttpCacheProvider();
+        HttpFetcher before = provider.get();
+        HttpResponse resp = before.get(_baseUrl + "/");
+
+        ProxyProperties proxy = new ProxyProperties();
+        proxy.setProxyHostName("localhost");
+        proxy.setProxyPort(((ServerConnector) _server.getConnectors()[0]).getLocalPort());
+
+        ProxyProperties previous = HttpClientFactory.getProxyProperties();
+        HttpClientFactory.setProxyProperties(proxy);
+        try
+        {
+            // the settings are fixed when the shared backend is created
+            assertSame(resp, provider.get().get(_baseUrl + "/"));
+
+            HttpCacheProvider.resetSharedCache();
+            HttpFetcher after = provider.get();
+            assertNotSame(resp, after.get(_baseUrl + "/"));
+            assertEquals("body", after.get("http://www.example.com/").getBody());
+            assertEquals("www.example.com", _host);
+            assertEquals(3, _requests.get());
+
+            // the fetchers provided before keep the previous backend
+            assertSame(resp, before.get(_baseUrl + "/"));
+        }
+        finally
+        {
+            HttpClientFactory.setProxyProperties(previous);
+            HttpCacheProvider.resetSharedCache();
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpCacheProviderTest.class);
+    }
+
+    private class TestServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException
+        {
+            _requests.incrementAndGet();
+            _host = request.getHeader("Host");
+            response.getWriter().write("body");
+        }
+    }
+}
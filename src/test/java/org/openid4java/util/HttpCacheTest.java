@@ -0,0 +1,263 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpCacheTest extends TestCase
+{
+    private static final String ETAG = "\"v1\"";
+
+    private static final String LAST_MODIFIED = "Mon, 01 Jan 2007 00:00:00 GMT";
+
+    private Server _server;
+
+    private String _baseUrl;
+
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    /**
+     * The If-None-Match or If-Modified-Since header of the last request.
+     */
+    private String _conditionalHeader;
+
+    private HttpCache _fetcher;
+
+    public void setUp() throws Exception
+    {
+        _server = new Server(0);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.addServlet(new ServletHolder(new TestServlet()), "/*");
+        _server.setHandler(context);
+        _server.start();
+
+        _baseUrl = "http://localhost:" +
+            ((ServerConnector) _server.getConnectors()[0]).getLocalPort();
+
+        _fetcher = new HttpCache();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+    }
+
+    public void testMaxAge() throws Exception
+    {
+        HttpResponse resp = _fetcher.get(_baseUrl + "/max-age?seconds=60");
+        assertEquals("1", resp.getBody());
+        assertSame(resp, _fetcher.get(_baseUrl + "/max-age?seconds=60"));
+        assertEquals(1, _requests.get());
+
+        // max-age takes precedence over the cache TTL
+        _fetcher.get(_baseUrl + "/max-age?seconds=0");
+        waitForExpiry();
+        assertEquals("3", _fetcher.get(_baseUrl + "/max-age?seconds=0").getBody());
+        assertEquals(3, _requests.get());
+        assertNull(_conditionalHeader);
+    }
+
+    public void testExpires() throws Exception
+    {
+        HttpResponse resp = _fetcher.get(_baseUrl + "/expires?seconds=60");
+        assertSame(resp, _fetcher.get(_baseUrl + "/expires?seconds=60"));
+        assertEquals(1, _requests.get());
+
+        // the lifetime is relative to the Date header of the server
+        _fetcher.get(_baseUrl + "/expires?seconds=-60");
+        waitForExpiry();
+        assertEquals("3", _fetcher.get(_baseUrl + "/expires?seconds=-60").getBody());
+        assertEquals(3, _requests.get());
+    }
+
+    public void testETagRevalidation() throws Exception
+    {
+        HttpResponse resp = _fetcher.get(_baseUrl + "/etag");
+        assertEquals(200, resp.getStatusCode());
+        assertEquals("1", resp.getBody());
+        assertNull(_conditionalHeader);
+
+        HttpResponse revalidated = _fetcher.get(_baseUrl + "/etag");
+        assertEquals(2, _requests.get());
+        assertEquals(ETAG, _conditionalHeader);
+        assertEquals(200, revalidated.getStatusCode());
+        assertEquals("1", revalidated.getBody());
+    }
+
+    public void testLastModifiedRevalidation() throws Exception
+    {
+        _fetcher.get(_baseUrl + "/last-modified");
+
+        HttpResponse revalidated = _fetcher.get(_baseUrl + "/last-modified");
+        assertEquals(2, _requests.get());
+        assertEquals(LAST_MODIFIED, _conditionalHeader);
+        assertEquals("1", revalidated.getBody());
+        assertEquals(LAST_MODIFIED, revalidated.getResponseHeader("Last-Modified").getValue());
+    }
+
+    public void testNotModifiedHeadersMerged() throws Exception
+    {
+        HttpResponse resp = _fetcher.get(_baseUrl + "/etag?max-age=0");
+        assertEquals("1", resp.getResponseHeader("X-Request").getValue());
+        assertTrue(resp.getResponseHeader("Content-Type").getValue().startsWith("text/plain"));
+
+        waitForExpiry();
+        HttpResponse revalidated = _fetcher.get(_baseUrl + "/etag?max-age=0");
+        assertNotSame(resp, revalidated);
+        assertEquals("1", revalidated.getBody());
+
+        // the headers of the 304 response replace the stored ones
+        assertEquals(1, revalidated.getResponseHeaders("X-Request").length);
+        assertEquals("2", revalidated.getResponseHeader("X-Request").getValue());
+        assertEquals("max-age=60", revalidated.getResponseHeader("Cache-Control").getValue());
+        assertTrue(revalidated.getResponseHeader("Content-Type").getValue().startsWith("text/plain"));
+
+        // and the freshness lifetime they advertise is used
+        assertSame(revalidated, _fetcher.get(_baseUrl + "/etag?max-age=0"));
+        assertEquals(2, _requests.get());
+    }
+
+    public void testModifiedResponseReplacesCachedOne() throws Exception
+    {
+        _fetcher.get(_baseUrl + "/etag?changed=true");
+
+        HttpResponse resp = _fetcher.get(_baseUrl + "/etag?changed=true");
+        assertEquals(ETAG, _conditionalHeader);
+        assertEquals(200, resp.getStatusCode());
+        assertEquals("2", resp.getBody());
+    }
+
+    public void testFailuresNotCachedStillFailFast() throws Exception
+    {
+        String url = "http://localhost:" + getClosedPort() + "/";
+        HttpRequestOptions options = new HttpRequestOptions.Builder(
+                _fetcher.getDefaultRequestOptions())
+            .cacheFailures(false)
+            .build();
+
+        IOException failure = getFailure(url, options);
+        assertNotSame(failure, getFailure(url, options));
+
+        // the failures of other requests are used
+        failure = getFailure(url, _fetcher.getDefaultRequestOptions());
+        assertSame(failure, getFailure(url, options));
+    }
+
+    private IOException getFailure(String url, HttpRequestOptions options)
+    {
+        try
+        {
+            _fetcher.get(url, options);
+            fail("Request on a closed port succeeded: " + url);
+            return null;
+        }
+        catch (IOException expected)
+        {
+            return expected;
+        }
+    }
+
+    private int getClosedPort() throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        socket.close();
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Lets the responses with a zero freshness lifetime go stale.
+     */
+    private void waitForExpiry() throws InterruptedException
+    {
+        Thread.sleep(10);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpCacheTest.class);
+    }
+
+    /**
+     * Answers with the number of the request as the body, and with the
+     * caching headers selected by the path:
+     * <ul>
+     * <li>/max-age?seconds=N : Cache-Control: max-age=N
+     * <li>/expires?seconds=N : Expires N seconds after the Date
+     * <li>/etag : an ETag, revalidated on each use unless a max-age is
+     *     requested; 304 responses advertise a max-age of 60 seconds,
+     *     and changed=true makes the resource change on each request
+     * <li>/last-modified : a Last-Modified date, revalidated on each use
+     * </ul>
+     */
+    private class TestServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException
+        {
+            int count = _requests.incrementAndGet();
+            String path = request.getPathInfo();
+
+            response.setHeader("X-Request", Integer.toString(count));
+
+            if ("/max-age".equals(path))
+            {
+                response.setHeader("Cache-Control",
+                    "max-age=" + request.getParameter("seconds"));
+            }
+            else if ("/expires".equals(path))
+            {
+                long now = System.currentTimeMillis();
+                response.setDateHeader("Date", now);
+                response.setDateHeader("Expires",
+                    now + Long.parseLong(request.getParameter("seconds")) * 1000);
+            }
+            else if ("/etag".equals(path))
+            {
+                _conditionalHeader = request.getHeader("If-None-Match");
+                if (ETAG.equals(_conditionalHeader) && request.getParameter("changed") == null)
+                {
+                    response.setHeader("Cache-Control", "max-age=60");
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+
+                response.setHeader("Cache-Control", request.getParameter("max-age") != null ?
+                    "max-age=" + request.getParameter("max-age") : "no-cache");
+                response.setHeader("ETag", ETAG);
+            }
+            else if ("/last-modified".equals(path))
+            {
+                _conditionalHeader = request.getHeader("If-Modified-Since");
+                if (LAST_MODIFIED.equals(_conditionalHeader))
+                {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+
+                response.setHeader("Cache-Control", "no-cache");
+                response.setHeader("Last-Modified", LAST_MODIFIED);
+            }
+
+            response.setContentType("text/plain");
+            response.getWriter().write(Integer.toString(count));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+public class HttpClientFactoryTest extends TestCase
+{
+    private Server _server;
+
+    private int _port;
+
+    private String _baseUrl;
+
+    /**
+     * The Host header of the last request.
+     */
+    private String _host;
+
+    private ConnectionPoolOptions _poolOptions;
+
+    private ProxyProperties _proxyProperties;
+
+    public void setUp() throws Exception
+    {
+        _server = new Server(0);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.addServlet(new ServletHolder(new TestServlet()), "/*");
+        _server.setHandler(context);
+        _server.start();
+
+        _port = ((ServerConnector) _server.getConnectors()[0]).getLocalPort();
+        _baseUrl = "http://localhost:" + _port;
+
+        _poolOptions = HttpClientFactory.getConnectionPoolOptions();
+        _proxyProperties = HttpClientFactory.getProxyProperties();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        HttpClientFactory.setConnectionPoolOptions(_poolOptions);
+        HttpClientFactory.setProxyProperties(_proxyProperties);
+        _server.stop();
+    }
+
+    public void testPoolLimitsApplied() throws Exception
+    {
+        ConnectionPoolOptions options = new ConnectionPoolOptions();
+        options.setMaxConnectionsPerRoute(2);
+        options.setMaxTotalConnections(3);
+        options.setStaleConnectionCheck(false);
+        HttpClientFactory.setConnectionPoolOptions(options);
+
+        HttpClient client = newClient();
+
+        // later changes only affect the clients constructed afterwards
+        options.setMaxTotalConnections(4);
+
+        PoolingClientConnectionManager connManager =
+            (PoolingClientConnectionManager) client.getConnectionManager();
+        assertEquals(2, connManager.getDefaultMaxPerRoute());
+        assertEquals(3, connManager.getMaxTotal());
+        assertEquals(3, HttpClientFactory.getConnectionPoolStats(client).getMax());
+        assertEquals(2, HttpClientFactory.getConnectionPoolStats(client, _baseUrl + "/").getMax());
+        assertFalse(HttpConnectionParams.isStaleCheckingEnabled(client.getParams()));
+    }
+
+    public void testRouteStats() throws Exception
+    {
+        HttpClient client = newClient();
+        get(client, _baseUrl + "/");
+
+        assertEquals(1, HttpClientFactory.getConnectionPoolStats(client).getAvailable());
+        assertEquals(1, HttpClientFactory.getConnectionPoolStats(
+            client, _baseUrl + "/other?query").getAvailable());
+        assertEquals(0, HttpClientFactory.getConnectionPoolStats(
+            client, "http://127.0.0.1:" + _port + "/").getAvailable());
+        assertEquals(0, HttpClientFactory.getConnectionPoolStats(
+            client, "https://localhost:" + _port + "/").getAvailable());
+    }
+
+    public void testRouteStatsThroughProxy() throws Exception
+    {
+        ProxyProperties proxy = new ProxyProperties();
+        proxy.setProxyHostName("localhost");
+        proxy.setProxyPort(_port);
+        HttpClientFactory.setProxyProperties(proxy);
+
+        HttpClient client = newClient();
+        get(client, "http://www.example.com/");
+        assertEquals("www.example.com", _host);
+
+        // the routes through the proxy are per target host, including
+        // the route to the proxy host itself
+        assertEquals(1, HttpClientFactory.getConnectionPoolStats(
+            client, "http://www.example.com/other").getAvailable());
+        assertEquals(0, HttpClientFactory.getConnectionPoolStats(
+            client, "http://www.example.org/").getAvailable());
+        assertEquals(0, HttpClientFactory.getConnectionPoolStats(
+            client, _baseUrl + "/").getAvailable());
+    }
+
+    public void testIdleConnectionsReaped() throws Exception
+    {
+        ConnectionPoolOptions options = new ConnectionPoolOptions();
+        options.setIdleConnectionTimeout(100);
+        options.setReaperInterval(50);
+        HttpClientFactory.setConnectionPoolOptions(options);
+
+        HttpClient client = newClient();
+        get(client, _baseUrl + "/");
+        assertEquals(1, HttpClientFactory.getConnectionPoolStats(client).getAvailable());
+
+        for (int i = 0; i < 100 &&
+             HttpClientFactory.getConnectionPoolStats(client).getAvailable() > 0; i++)
+            Thread.sleep(50);
+
+        assertEquals(0, HttpClientFactory.getConnectionPoolStats(client).getAvailable());
+    }
+
+    private HttpClient newClient()
+    {
+        HttpRequestOptions options = new HttpRequestOptions();
+        return HttpClientFactory.getInstance(options.getMaxRedirects(),
+            options.getAllowCircularRedirects(), options.getConnTimeout(),
+            options.getSocketTimeout(), null);
+    }
+
+    private void get(HttpClient client, String url) throws IOException
+    {
+        org.apache.http.HttpResponse response = client.execute(new HttpGet(url));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        HttpUtils.dispose(response);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpClientFactoryTest.class);
+    }
+
+    private class TestServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException
+        {
+            _host = request.getHeader("Host");
+            response.getWriter().write("body");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+public class HttpFailureCacheTest extends TestCase
+{
+    private static final long TTL = 60000;
+
+    public void testRemembersFailuresPerRequest()
+    {
+        HttpFailureCache cache = new HttpFailureCache(100);
+        IOException failure = new SocketTimeoutException("Read timed out");
+
+        cache.put("GET", "http://example.com/a", failure, TTL);
+
+        assertSame(failure, cache.get("GET", "http://example.com/a"));
+        assertNull(cache.get("HEAD", "http://example.com/a"));
+        assertNull(cache.get("GET", "http://example.com/b"));
+
+        cache.remove("GET", "http://example.com/a");
+        assertNull(cache.get("GET", "http://example.com/a"));
+    }
+
+    public void testRemembersConnectionFailuresPerHost()
+    {
+        HttpFailureCache cache = new HttpFailureCache(100);
+        IOException failure = new ConnectException("Connection refused");
+
+        cache.put("GET", "http://Example.com/a", failure, TTL);
+
+        assertSame(failure, cache.get("HEAD", "http://example.com/b"));
+        assertNull(cache.get("GET", "https://example.com/b"));
+        assertNull(cache.get("GET", "http://example.com:8080/b"));
+
+        // a successful request to the host clears its failures
+        cache.remove("GET", "http://example.com/c");
+        assertNull(cache.get("GET", "http://example.com/b"));
+    }
+
+    public void testSkipsInterruptionsAndDisabledTtl() throws Exception
+    {
+        HttpFailureCache cache = new HttpFailureCache(100);
+
+        cache.put("GET", "http://example.com/a", new InterruptedIOException(), TTL);
+        cache.put("GET", "http://example.com/b", new ConnectException(), 0);
+        assertEquals(0, cache.size());
+
+        cache.put("GET", "http://example.com/c", new ConnectException(), 1);
+        Thread.sleep(10);
+        assertNull(cache.get("GET", "http://example.com/c"));
+    }
+
+    public void testEvictsOldestFailures()
+    {
+        HttpFailureCache cache = new HttpFailureCache(2);
+
+        cache.put("GET", "http://example.com/a", new IOException(), TTL);
+        cache.put("GET", "http://example.com/b", new IOException(), TTL);
+        cache.put("GET", "http://example.com/c", new IOException(), TTL);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("GET", "http://example.com/a"));
+        assertNotNull(cache.get("GET", "http://example.com/c"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpFailureCacheTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class HttpRequestOptionsTest extends TestCase
+{
+    public void testBuilderDerivesFromDefaults()
+    {
+        HttpRequestOptions defaults = new HttpRequestOptions();
+        defaults.setMaxBodySize(5000);
+        defaults.addRequestHeader("User-Agent", "test");
+
+        HttpRequestOptions options = new HttpRequestOptions.Builder(defaults)
+            .maxRedirects(3)
+            .requestHeader("Accept", "application/xrds+xml")
+            .build();
+
+        assertEquals(5000, options.getMaxBodySize());
+        assertEquals(3, options.getMaxRedirects());
+        assertEquals("test", options.getRequestHeaders().get("User-Agent"));
+        assertEquals("application/xrds+xml", options.getRequestHeaders().get("Accept"));
+
+        // the defaults are left untouched
+        assertEquals(10, defaults.getMaxRedirects());
+        assertNull(defaults.getRequestHeaders().get("Accept"));
+    }
+
+    public void testSnapshotIsImmutable()
+    {
+        HttpRequestOptions options = new HttpRequestOptions();
+        options.addRequestHeader("Accept", "text/html");
+
+        HttpRequestOptions snapshot = options.snapshot();
+        assertTrue(snapshot.isImmutable());
+        assertSame(snapshot, snapshot.snapshot());
+
+        options.addRequestHeader("Accept", "application/xrds+xml");
+        options.setMaxRedirects(0);
+        assertEquals("text/html", snapshot.getRequestHeaders().get("Accept"));
+        assertEquals(10, snapshot.getMaxRedirects());
+
+        try
+        {
+            snapshot.setMaxRedirects(0);
+            fail("Should not be able to modify a snapshot.");
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+
+        try
+        {
+            snapshot.getRequestHeaders().put("Accept", "*/*");
+            fail("Should not be able to modify the headers of a snapshot.");
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+
+        // copies can be modified
+        HttpRequestOptions copy = new HttpRequestOptions(snapshot);
+        copy.addRequestHeader("Accept", "*/*");
+        assertFalse(copy.isImmutable());
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpRequestOptionsTest.class);
+    }
+}
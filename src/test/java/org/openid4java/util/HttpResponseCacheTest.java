@@ -0,0 +1,141 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.Header;
+
+public class HttpResponseCacheTest extends TestCase
+{
+    private static final long NEVER = Long.MAX_VALUE;
+
+    public void testEvictsLeastRecentlyUsedEntry()
+    {
+        HttpResponseCache cache = new HttpResponseCache("GET", 2, 1000);
+
+        cache.put("a", new TestResponse("a"), 10, NEVER);
+        cache.put("b", new TestResponse("b"), 10, NEVER);
+
+        // touch "a", so that "b" becomes the eldest entry
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", new TestResponse("c"), 10, NEVER);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    public void testEvictsOnTotalWeight()
+    {
+        HttpResponseCache cache = new HttpResponseCache("GET", 100, 100);
+
+        cache.put("a", new TestResponse("a"), 40, NEVER);
+        cache.put("b", new TestResponse("b"), 40, NEVER);
+        cache.put("c", new TestResponse("c"), 40, NEVER);
+
+        assertEquals(2, cache.size());
+        assertEquals(80, cache.weight());
+        assertNull(cache.get("a"));
+    }
+
+    public void testDoesNotCacheOversizedEntry()
+    {
+        HttpResponseCache cache = new HttpResponseCache("GET", 100, 100);
+
+        cache.put("a", new TestResponse("a"), 40, NEVER);
+        cache.put("big", new TestResponse("big"), 101, NEVER);
+
+        assertEquals(1, cache.size());
+        assertNull(cache.get("big"));
+        assertNotNull(cache.get("a"));
+    }
+
+    public void testReplaceUpdatesWeight()
+    {
+        HttpResponseCache cache = new HttpResponseCache("GET", 100, 100);
+
+        cache.put("a", new TestResponse("a"), 40, NEVER);
+        cache.put("a", new TestResponse("a2"), 10, NEVER);
+
+        assertEquals(1, cache.size());
+        assertEquals(10, cache.weight());
+        assertEquals("a2", cache.get("a").getBody());
+    }
+
+    public void testExpiredEntryIsDropped()
+    {
+        HttpResponseCache cache = new HttpResponseCache("GET", 100, 100);
+
+        cache.put("a", new TestResponse("a"), 40, System.currentTimeMillis() - 1);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    public void testShrinkingLimitsEvicts()
+    {
+        HttpResponseCache cache = new HttpResponseCache("GET", 100, 100);
+
+        cache.put("a", new TestResponse("a"), 10, NEVER);
+        cache.put("b", new TestResponse("b"), 10, NEVER);
+        cache.put("c", new TestResponse("c"), 10, NEVER);
+
+        cache.setMaxEntries(1);
+
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("c"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpResponseCacheTest.class);
+    }
+
+    private static class TestResponse implements HttpResponse
+    {
+        private final String _body;
+
+        TestResponse(String body)
+        {
+            _body = body;
+        }
+
+        public int getStatusCode()
+        {
+            return 200;
+        }
+
+        public String getFinalUri()
+        {
+            return "http://example.com/";
+        }
+
+        public Header getResponseHeader(String headerName)
+        {
+            return null;
+        }
+
+        public Header[] getResponseHeaders(String headerName)
+        {
+            return new Header[0];
+        }
+
+        public String getBody()
+        {
+            return _body;
+        }
+
+        public boolean isBodySizeExceeded()
+        {
+            return false;
+        }
+    }
+}
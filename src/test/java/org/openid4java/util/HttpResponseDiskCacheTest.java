@@ -0,0 +1,140 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class HttpResponseDiskCacheTest extends TestCase
+{
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private File _directory;
+
+    private HttpResponseDiskCache _cache;
+
+    public void setUp() throws Exception
+    {
+        _directory = Files.createTempDirectory("openid4java-cache").toFile();
+        _cache = HttpResponseDiskCache.open(_directory);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _cache.close();
+
+        File[] files = _directory.listFiles();
+        for (int i = 0; i < files.length; i++)
+            files[i].delete();
+        _directory.delete();
+    }
+
+    private DefaultHttpResponse newResponse(String body)
+    {
+        return new DefaultHttpResponse(200, "OK", 10, "http://example.com/final",
+            new Header[] { new BasicHeader("Content-Type", "application/xrds+xml"),
+                           new BasicHeader("ETag", "\"v1\"") },
+            body.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8, 1234L);
+    }
+
+    private void reopen() throws Exception
+    {
+        _cache.close();
+        _cache = HttpResponseDiskCache.open(_directory);
+    }
+
+    public void testResponsesSurviveReopening() throws Exception
+    {
+        assertSame(_cache, HttpResponseDiskCache.open(_directory));
+
+        _cache.put("http://example.com/", newResponse("<XRDS/>"), NEVER);
+        reopen();
+
+        DefaultHttpResponse resp = _cache.get("http://example.com/");
+        assertNotNull(resp);
+        assertEquals(200, resp.getStatusCode());
+        assertEquals("OK", resp.getStatusLine());
+        assertEquals(10, resp.getMaxRedirectsFollowed());
+        assertEquals("http://example.com/final", resp.getFinalUri());
+        assertEquals("application/xrds+xml", resp.getResponseHeader("content-type").getValue());
+        assertEquals("\"v1\"", resp.getETag());
+        assertEquals("<XRDS/>", resp.getBody());
+        assertEquals(1234L, resp.getTimestamp());
+    }
+
+    public void testRemovalsAndExpirationsSurviveReopening() throws Exception
+    {
+        _cache.put("a", newResponse("a"), NEVER);
+        _cache.put("b", newResponse("b"), NEVER);
+        _cache.put("c", newResponse("c"), System.currentTimeMillis() - 1);
+        _cache.put("a", newResponse("a2"), NEVER);
+        _cache.remove("b");
+        reopen();
+
+        assertEquals(1, _cache.size());
+        assertEquals("a2", _cache.get("a").getBody());
+        assertNull(_cache.get("b"));
+        assertNull(_cache.get("c"));
+
+        _cache.clear();
+        reopen();
+        assertEquals(0, _cache.size());
+    }
+
+    public void testIncompleteRecordIsDiscarded() throws Exception
+    {
+        _cache.put("a", newResponse("a"), NEVER);
+        _cache.put("b", newResponse("b"), NEVER);
+        _cache.close();
+
+        // simulate a crash while writing the last record
+        RandomAccessFile log = new RandomAccessFile(
+            new File(_directory, HttpResponseDiskCache.LOG_FILE_NAME), "rw");
+        log.setLength(log.length() - 3);
+        log.close();
+
+        _cache = HttpResponseDiskCache.open(_directory);
+        assertEquals(1, _cache.size());
+        assertEquals("a", _cache.get("a").getBody());
+
+        _cache.put("c", newResponse("c"), NEVER);
+        reopen();
+        assertEquals(2, _cache.size());
+        assertEquals("c", _cache.get("c").getBody());
+    }
+
+    public void testEvictsOldestAndCompacts() throws Exception
+    {
+        StringBuffer body = new StringBuffer();
+        for (int i = 0; i < 10000; i++)
+            body.append('x');
+
+        _cache.setMaxSize(100 * 1024);
+        for (int i = 0; i < 300; i++)
+            _cache.put("url" + (i % 20), newResponse(body.toString() + i), NEVER);
+
+        File log = new File(_directory, HttpResponseDiskCache.LOG_FILE_NAME);
+        assertTrue(log.length() < 2 * 1024 * 1024);
+        assertTrue(_cache.size() < 20);
+
+        reopen();
+        assertEquals((body.toString() + 299), _cache.get("url19").getBody());
+        assertNull(_cache.get("url0"));
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(HttpResponseDiskCacheTest.class);
+    }
+}
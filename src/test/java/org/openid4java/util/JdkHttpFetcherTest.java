@@ -0,0 +1,281 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.client.CircularRedirectException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.RedirectException;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JdkHttpFetcherTest extends TestCase
+{
+    private Server _server;
+
+    private int _port;
+
+    private String _baseUrl;
+
+    /**
+     * The Host and Proxy-Authorization headers of the last proxied request.
+     */
+    private String _proxiedHost;
+
+    private String _proxyAuthorization;
+
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    private HttpFetcher _fetcher;
+
+    public void setUp() throws Exception
+    {
+        _server = new Server(0);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.addServlet(new ServletHolder(new TestServlet()), "/*");
+        _server.setHandler(context);
+        _server.start();
+
+        _port = ((ServerConnector) _server.getConnectors()[0]).getLocalPort();
+        _baseUrl = "http://localhost:" + _port;
+
+        _fetcher = new JdkHttpFetcherProvider().get();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+    }
+
+    public void testRedirectsAndBodySize() throws Exception
+    {
+        HttpRequestOptions options = _fetcher.getRequestOptions();
+        options.setMaxBodySize(100);
+
+        HttpResponse resp = _fetcher.get(_baseUrl + "/redirect?count=2", options);
+
+        assertEquals(200, resp.getStatusCode());
+        assertEquals(_baseUrl + "/body?size=1000", resp.getFinalUri());
+        assertEquals(100, resp.getBody().length());
+        assertTrue(resp.isBodySizeExceeded());
+
+        resp = _fetcher.get(_baseUrl + "/body?size=100", options);
+        assertEquals(100, resp.getBody().length());
+        assertFalse(resp.isBodySizeExceeded());
+    }
+
+    public void testProviderFetchersShareCache() throws Exception
+    {
+        JdkHttpFetcherProvider provider = new JdkHttpFetcherProvider();
+        HttpFetcher first = provider.get();
+        HttpFetcher second = provider.get();
+        assertNotSame(first, second);
+
+        HttpResponse resp = first.get(_baseUrl + "/body?size=10");
+        assertSame(resp, second.get(_baseUrl + "/body?size=10"));
+        assertEquals(1, _requests.get());
+
+        // each fetcher has its own default options
+        first.getDefaultRequestOptions().setMaxBodySize(5);
+        assertEquals(new HttpRequestOptions().getMaxBodySize(),
+            second.getDefaultRequestOptions().getMaxBodySize());
+
+        // fetchers from other providers have their own cache
+        assertNotSame(resp, new JdkHttpFetcherProvider().get().get(_baseUrl + "/body?size=10"));
+        assertEquals(2, _requests.get());
+    }
+
+    public void testRedirectLimits() throws Exception
+    {
+        HttpRequestOptions options = _fetcher.getRequestOptions();
+        options.setMaxRedirects(2);
+        assertEquals(_baseUrl + "/body?size=1000",
+            _fetcher.get(_baseUrl + "/redirect?count=2", options).getFinalUri());
+
+        // the limits of the request options apply, not those of the client
+        try
+        {
+            _fetcher.get(_baseUrl + "/redirect?count=3", options);
+            fail("Should have exceeded the maximum number of redirects.");
+        }
+        catch (ClientProtocolException expected)
+        {
+            assertTrue(expected.getCause() instanceof RedirectException);
+        }
+
+        options.setMaxRedirects(10);
+        options.setAllowCircularRedirects(false);
+        try
+        {
+            _fetcher.get(_baseUrl + "/loop", options);
+            fail("Should have detected the circular redirect.");
+        }
+        catch (ClientProtocolException expected)
+        {
+            assertTrue(expected.getCause() instanceof CircularRedirectException);
+        }
+    }
+
+    public void testFailuresAreUnwrapped() throws Exception
+    {
+        ServerSocket socket = new ServerSocket(0);
+        socket.close();
+
+        try
+        {
+            _fetcher.get("http://localhost:" + socket.getLocalPort() + "/");
+            fail("Request on a closed port succeeded.");
+        }
+        catch (ConnectException expected)
+        {
+        }
+    }
+
+    public void testSlowResponseTimesOut() throws Exception
+    {
+        HttpRequestOptions options = _fetcher.getRequestOptions();
+        options.setConnTimeout(200);
+        options.setSocketTimeout(300);
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            _fetcher.get(_baseUrl + "/trickle", options);
+            fail("Should have timed out.");
+        }
+        catch (SocketTimeoutException expected)
+        {
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    public void testInterruptedWhileWaiting() throws Exception
+    {
+        Thread.currentThread().interrupt();
+        try
+        {
+            _fetcher.get(_baseUrl + "/body?size=10");
+            fail("Should have been interrupted.");
+        }
+        catch (InterruptedIOException expected)
+        {
+            // the interrupt status is kept
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    public void testProxyAndAuthenticator() throws Exception
+    {
+        ProxyProperties proxy = new ProxyProperties();
+        proxy.setProxyHostName("localhost");
+        proxy.setProxyPort(_port);
+        proxy.setUserName("user");
+        proxy.setPassword("secret");
+
+        ProxyProperties previous = HttpClientFactory.getProxyProperties();
+        HttpClientFactory.setProxyProperties(proxy);
+        try
+        {
+            HttpFetcher fetcher = new JdkHttpFetcherProvider().get();
+
+            HttpResponse resp = fetcher.get("http://www.example.com/proxied");
+            assertEquals(200, resp.getStatusCode());
+            assertEquals("proxied", resp.getBody());
+
+            assertEquals("www.example.com", _proxiedHost);
+            assertEquals("Basic " + Base64.getEncoder().encodeToString(
+                "user:secret".getBytes(StandardCharsets.UTF_8)), _proxyAuthorization);
+        }
+        finally
+        {
+            HttpClientFactory.setProxyProperties(previous);
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(JdkHttpFetcherTest.class);
+    }
+
+    private class TestServlet extends HttpServlet
+    {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException
+        {
+            if ("/redirect".equals(request.getPathInfo()))
+            {
+                int count = Integer.parseInt(request.getParameter("count"));
+                response.sendRedirect(count > 1 ?
+                    "/redirect?count=" + (count - 1) : "/body?size=1000");
+                return;
+            }
+
+            if ("/loop".equals(request.getPathInfo()))
+            {
+                response.sendRedirect("/loop");
+                return;
+            }
+
+            // sends the headers and the start of the body, then stalls
+            if ("/trickle".equals(request.getPathInfo()))
+            {
+                response.getWriter().write("trickle");
+                response.flushBuffer();
+                try
+                {
+                    Thread.sleep(3000);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new ServletException(e);
+                }
+                return;
+            }
+
+            // acts as a proxy requiring Basic authentication
+            if ("/proxied".equals(request.getPathInfo()))
+            {
+                _proxiedHost = request.getHeader("Host");
+                _proxyAuthorization = request.getHeader("Proxy-Authorization");
+                if (_proxyAuthorization == null)
+                {
+                    response.setHeader("Proxy-Authenticate", "Basic realm=\"proxy\"");
+                    response.setStatus(HttpServletResponse.SC_PROXY_AUTHENTICATION_REQUIRED);
+                    return;
+                }
+
+                response.getWriter().write("proxied");
+                return;
+            }
+
+            _requests.incrementAndGet();
+
+            int size = Integer.parseInt(request.getParameter("size"));
+            StringBuffer body = new StringBuffer(size);
+            for (int i = 0; i < size; i++)
+                body.append('a');
+            response.getWriter().write(body.toString());
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.http.Header;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestCoalescerTest extends TestCase
+{
+    private static final int THREADS = 8;
+
+    public void testConcurrentCallsAreCoalesced() throws Exception
+    {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final HttpResponse response = new TestResponse();
+
+        final Callable call = new Callable()
+        {
+            public Object call() throws Exception
+            {
+                calls.incrementAndGet();
+                release.await(5, TimeUnit.SECONDS);
+                return response;
+            }
+        };
+
+        final HttpResponse[] results = new HttpResponse[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        results[index] = coalescer.execute("key", 5000, call);
+                    }
+                    catch (IOException e)
+                    {
+                        // left null, fails below
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        // let all the threads queue up behind the first call
+        waitForInFlight(coalescer);
+        Thread.sleep(200);
+        release.countDown();
+
+        for (int i = 0; i < THREADS; i++)
+        {
+            threads[i].join(5000);
+            assertSame(response, results[i]);
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    public void testErrorIsPropagatedToWaiters() throws Exception
+    {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CountDownLatch release = new CountDownLatch(1);
+        final IOException error = new IOException("connection refused");
+
+        Thread leader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    coalescer.execute("key", 5000, new Callable()
+                    {
+                        public Object call() throws Exception
+                        {
+                            release.await(5, TimeUnit.SECONDS);
+                            throw error;
+                        }
+                    });
+                }
+                catch (IOException expected)
+                {
+                    // expected
+                }
+            }
+        };
+        leader.start();
+        waitForInFlight(coalescer);
+
+        Thread releaser = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ignored)
+                {
+                    // ignored
+                }
+                release.countDown();
+            }
+        };
+        releaser.start();
+
+        try
+        {
+            coalescer.execute("key", 5000, new Callable()
+            {
+                public Object call()
+                {
+                    fail("Call should have been coalesced.");
+                    return null;
+                }
+            });
+            fail("Should have thrown the error of the in-flight call.");
+        }
+        catch (IOException expected)
+        {
+            assertSame(error, expected);
+        }
+
+        leader.join(5000);
+    }
+
+    public void testWaiterTimesOut() throws Exception
+    {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread leader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    coalescer.execute("key", 5000, new Callable()
+                    {
+                        public Object call() throws Exception
+                        {
+                            release.await(5, TimeUnit.SECONDS);
+                            return new TestResponse();
+                        }
+                    });
+                }
+                catch (IOException ignored)
+                {
+                    // ignored
+                }
+            }
+        };
+        leader.start();
+        waitForInFlight(coalescer);
+
+        try
+        {
+            coalescer.execute("key", 100, new Callable()
+            {
+                public Object call()
+                {
+                    return new TestResponse();
+                }
+            });
+            fail("Should have timed out waiting for the in-flight call.");
+        }
+        catch (SocketTimeoutException expected)
+        {
+            // expected
+        }
+        finally
+        {
+            release.countDown();
+            leader.join(5000);
+        }
+    }
+
+    public void testKeyDependsOnRequestHeaders()
+    {
+        HttpRequestOptions options = new HttpRequestOptions();
+        String plain = RequestCoalescer.key("GET", "http://example.com/", options);
+
+        options.addRequestHeader("Accept", "application/xrds+xml");
+        String withAccept = RequestCoalescer.key("GET", "http://example.com/", options);
+
+        assertFalse(plain.equals(withAccept));
+        assertFalse(plain.equals(
+            RequestCoalescer.key("HEAD", "http://example.com/", new HttpRequestOptions())));
+    }
+
+    private void waitForInFlight(RequestCoalescer coalescer) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && coalescer.getInFlightCount() == 0; i++)
+            Thread.sleep(10);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(RequestCoalescerTest.class);
+    }
+
+    private static class TestResponse implements HttpResponse
+    {
+        public int getStatusCode()
+        {
+            return 200;
+        }
+
+        public String getFinalUri()
+        {
+            return "http://example.com/";
+        }
+
+        public Header getResponseHeader(String headerName)
+        {
+            return null;
+        }
+
+        public Header[] getResponseHeaders(String headerName)
+        {
+            return new Header[0];
+        }
+
+        public String getBody()
+        {
+            return "";
+        }
+
+        public boolean isBodySizeExceeded()
+        {
+            return false;
+        }
+    }
+}
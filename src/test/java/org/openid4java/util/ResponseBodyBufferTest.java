@@ -0,0 +1,241 @@
+/*
+ * Copyright 2006-2008 Sxip Identity Corporation
+ */
+
+package org.openid4java.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ResponseBodyBufferTest extends TestCase
+{
+    public void testReadsWholeBody() throws Exception
+    {
+        ResponseBodyBuffer buffer = ResponseBodyBuffer.acquire(100 * 1024, -1);
+        try
+        {
+            buffer.readFrom(new ByteArrayInputStream("key:value\n".getBytes("UTF-8")));
+
+            ResponseBody body = buffer.toBody(StandardCharsets.UTF_8);
+            assertEquals("key:value\n", body.getBody());
+            assertFalse(body.isBodyTruncated());
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
+
+    public void testTruncatesAtMaxSize() throws Exception
+    {
+        byte[] data = new byte[5000];
+        java.util.Arrays.fill(data, (byte) 'a');
+
+        ResponseBodyBuffer buffer = ResponseBodyBuffer.acquire(3000, -1);
+        try
+        {
+            buffer.readFrom(new SlowInputStream(data));
+
+            assertEquals(3000, buffer.size());
+            assertTrue(buffer.isTruncated());
+        }
+        finally
+        {
+            buffer.release();
+        }
+
+        // exactly at the limit is not truncated
+        buffer = new ResponseBodyBuffer(5000, 5000);
+        buffer.readFrom(new ByteArrayInputStream(data));
+        assertEquals(5000, buffer.size());
+        assertFalse(buffer.isTruncated());
+    }
+
+    public void testWriteByteBuffers()
+    {
+        ResponseBodyBuffer buffer = new ResponseBodyBuffer(6, -1);
+
+        assertTrue(buffer.write(ByteBuffer.wrap("abc".getBytes())));
+        assertFalse(buffer.write(ByteBuffer.wrap("defgh".getBytes())));
+
+        ResponseBody body = buffer.toBody(StandardCharsets.US_ASCII);
+        assertEquals("abcdef", body.getBody());
+        assertTrue(body.isBodyTruncated());
+    }
+
+    public void testDecodesWithResponseCharset() throws Exception
+    {
+        String text = "café";
+
+        ResponseBodyBuffer buffer = new ResponseBodyBuffer(100, -1);
+        buffer.readFrom(new ByteArrayInputStream(text.getBytes("ISO-8859-1")));
+        assertEquals(text, buffer.toBody(
+            ResponseBodyBuffer.getCharset("text/html; charset=\"ISO-8859-1\"")).getBody());
+
+        assertEquals(StandardCharsets.UTF_8, ResponseBodyBuffer.getCharset("text/html"));
+        assertEquals(StandardCharsets.UTF_8, ResponseBodyBuffer.getCharset("text/html; charset=bogus"));
+        assertEquals(StandardCharsets.UTF_8, ResponseBodyBuffer.getCharset(null));
+    }
+
+    public void testDecompress() throws Exception
+    {
+        byte[] data = new byte[5000];
+        java.util.Arrays.fill(data, (byte) 'a');
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutput = new GZIPOutputStream(gzip);
+        gzipOutput.write(data);
+        gzipOutput.close();
+
+        ResponseBodyBuffer buffer = new ResponseBodyBuffer(1000, -1);
+        buffer.readFrom(new ByteArrayInputStream(gzip.toByteArray()));
+
+        ResponseBodyBuffer decompressed = buffer.decompress("gzip", 10000);
+        assertEquals(5000, decompressed.size());
+        assertFalse(decompressed.isTruncated());
+
+        // the size limit applies to the decompressed body
+        decompressed = buffer.decompress("gzip", 3000);
+        assertEquals(3000, decompressed.size());
+        assertTrue(decompressed.isTruncated());
+
+        // deflate without the zlib wrapper
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        DeflaterOutputStream deflateOutput =
+            new DeflaterOutputStream(deflate, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        deflateOutput.write("key:value\n".getBytes("UTF-8"));
+        deflateOutput.close();
+
+        buffer = new ResponseBodyBuffer(1000, -1);
+        buffer.readFrom(new ByteArrayInputStream(deflate.toByteArray()));
+        assertEquals("key:value\n",
+            buffer.decompress("deflate", 1000).toBody(StandardCharsets.UTF_8).getBody());
+    }
+
+    public void testStopsAtHtmlHeadEnd() throws Exception
+    {
+        StringBuffer html = new StringBuffer("<html><head><title>t</title>");
+        while (html.length() < 197)
+            html.append(' ');
+        // the closing head tag straddles two reads
+        html.append("</HEAD>");
+        for (int i = 0; i < 1000; i++)
+            html.append("<p>content</p>");
+
+        ResponseBodyBuffer buffer = new ResponseBodyBuffer(100 * 1024, -1);
+        buffer.setHtmlHeadOnly(true);
+        buffer.readFrom(new SlowInputStream(html.toString().getBytes("UTF-8")));
+
+        assertEquals(300, buffer.size());
+        assertTrue(buffer.isHtmlHeadComplete());
+
+        ResponseBody body = buffer.toBody(StandardCharsets.UTF_8);
+        assertTrue(body.isBodyPartial());
+        assertFalse(body.isBodyTruncated());
+
+        // tags merely starting with "body" do not end the head
+        buffer = new ResponseBodyBuffer(100, -1);
+        buffer.setHtmlHeadOnly(true);
+        assertTrue(buffer.write(ByteBuffer.wrap("<html><head><bodyguard/><bo".getBytes())));
+        assertFalse(buffer.write(ByteBuffer.wrap("dy class=x>text".getBytes())));
+        assertTrue(buffer.isHtmlHeadComplete());
+
+        assertTrue(ResponseBodyBuffer.isHtml("text/html; charset=UTF-8"));
+        assertTrue(ResponseBodyBuffer.isHtml("application/xhtml+xml"));
+        assertFalse(ResponseBodyBuffer.isHtml("application/xrds+xml"));
+        assertFalse(ResponseBodyBuffer.isHtml(null));
+    }
+
+    public void testHeadEndInCommentIgnored() throws Exception
+    {
+        assertHeadRead("<html><head><!-- <body> </head> -->" +
+            "<!--><body>--><link rel=\"openid.server\" href=\"http://op/\">");
+    }
+
+    public void testHeadEndInScriptIgnored() throws Exception
+    {
+        assertHeadRead("<html><head><script>document.write(\"<body>\")</script>" +
+            "<SCRIPT type=text/javascript><!-- document.write('</script><body>') -->" +
+            "</SCRIPT ><link rel=\"openid.server\" href=\"http://op/\">");
+    }
+
+    public void testHeadEndInStyleIgnored() throws Exception
+    {
+        assertHeadRead("<html><head><style>/* </head> <body> */ p {}</style>" +
+            "<link rel=\"openid.server\" href=\"http://op/\">");
+    }
+
+    public void testHeadEndInTitleIgnored() throws Exception
+    {
+        assertHeadRead("<html><head><title><body> of work</title>" +
+            "<link rel=\"openid.server\" href=\"http://op/\">");
+    }
+
+    public void testHeadEndInAttributeValueIgnored() throws Exception
+    {
+        assertHeadRead("<html><head><meta name=\"x\" content=\"<body>\">" +
+            "<meta name = 'y' content = '</head>'><meta content=it's>" +
+            "<link rel=\"openid.server\" href=\"http://op/\">");
+    }
+
+    /**
+     * Checks that the head, followed by the rest of the page, is read
+     * up to the end of the head only, one byte at a time to split every tag.
+     */
+    private void assertHeadRead(String head)
+    {
+        StringBuffer html = new StringBuffer(head).append("</head><body>");
+        for (int i = 0; i < 100; i++)
+            html.append("<p>content</p>");
+        byte[] bytes = html.toString().getBytes(StandardCharsets.UTF_8);
+
+        ResponseBodyBuffer buffer = new ResponseBodyBuffer(100 * 1024, -1);
+        buffer.setHtmlHeadOnly(true);
+        int i = 0;
+        while (i < bytes.length && buffer.write(ByteBuffer.wrap(bytes, i, 1)))
+            i++;
+
+        assertTrue(buffer.isHtmlHeadComplete());
+        String body = buffer.toBody(StandardCharsets.UTF_8).getBody();
+        assertTrue(body, body.startsWith(head + "</head>"));
+        assertTrue(body, body.indexOf("<p>") == -1);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(ResponseBodyBufferTest.class);
+    }
+
+    /**
+     * Returns at most 100 bytes on each read, as network streams do.
+     */
+    private static class SlowInputStream extends InputStream
+    {
+        private final ByteArrayInputStream _input;
+
+        SlowInputStream(byte[] data)
+        {
+            _input = new ByteArrayInputStream(data);
+        }
+
+        public int read()
+        {
+            return _input.read();
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            return _input.read(b, off, Math.min(len, 100));
+        }
+    }
+}